@@ -0,0 +1,67 @@
+package plog;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+Records the call site of a log message.
+
+Creating a CallSite only fills in the native stack on the caller thread. The stack trace
+elements are not materialized until describe() is called, which is done on the queue pump
+thread when the message is written.
+*/
+class CallSite extends Throwable {
+    private static final long serialVersionUID = 1L;
+
+    /*
+    Index of the calling frame. The frames above the caller are PLog.log and the public
+    PLog level method (info, warn, ...). Every public log method must call log directly.
+    */
+    private static final int DEPTH = 2;
+
+    private static final int CACHE_SIZE = 10000; // Maximum cached call site descriptions.
+
+    // Call site descriptions keyed by frame. Only used from the queue pump thread.
+    private static final Map<StackTraceElement, String> cache = new HashMap<StackTraceElement, String>();
+
+    /*
+    Returns the calling frame of a log call, from a method called directly by PLog.log, or null
+    if the stack isn't available. Walks the stack on the caller thread. See RateLimit.
+    */
+    static StackTraceElement Caller() {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        return stack.length > DEPTH + 2 ? stack[DEPTH + 2] : null; // Skip this method and its caller.
+    }
+
+    /*
+    Returns the calling frame, or null if the stack isn't available. Materializes the stack trace
+    on the caller thread. See RateLimit.
+    */
+    StackTraceElement frame() {
+        StackTraceElement[] stack = getStackTrace();
+        return stack.length > DEPTH ? stack[DEPTH] : null;
+    }
+
+    /*
+    Returns the calling method / line number, e.g. "plog.PLog.main(PLog.java:79)".
+    */
+    public String describe() {
+        StackTraceElement[] stack = getStackTrace();
+        if(stack.length <= DEPTH) {
+            return "Unknown";
+        }
+
+        StackTraceElement ste = stack[DEPTH];
+        String s = cache.get(ste);
+        if(s == null) {
+            if(cache.size() >= CACHE_SIZE) {
+                cache.clear();
+            }
+
+            s = ste.toString();
+            cache.put(ste, s);
+        }
+
+        return s;
+    }
+}
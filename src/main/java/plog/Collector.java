@@ -0,0 +1,339 @@
+package plog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.sql.SQLException;
+import com.sun.net.httpserver.HttpExchange;
+
+/*
+Receives batches of log messages from other nodes, so many processes can log into one PLog. Nodes in
+client mode (see LogShipper) POST their batches to /plog/ingest, and the messages are queued here
+like local ones, keeping the name of the node they came from. The log server can then show and
+filter the logs of all nodes.
+
+A batch is queued whole if the queue has room for all of it, bypassing the overflow policy, and
+otherwise answered with 503 and Retry-After, so a node falling behind waits and keeps its messages
+instead of them being dropped here. A batch larger than the whole queue is answered with 413, and
+the node sends smaller ones.
+
+Messages carry the sequence number their node's journal gave them, and the highest accepted is kept
+for each node's journal, so a batch sent again after its response was lost isn't queued twice. It
+is kept in memory for the most recently seen journals, starting from the ones committed to the
+database. The writer also skips messages up to the highest committed from their journal, updated in
+the same transaction (see LogWriter), so a batch sent again after the collector restarted isn't
+inserted twice either.
+
+The request body is gzipped binary, big endian:
+
+magic (int) | node (UTF) | journal id (long) | count (int) | count records
+record: seq (long) | time (long) | level (byte) | node (UTF) | logger (UTF) | message length (int, -1 for null) | message (UTF-8)
+        | trace length (int, -1 for null) | trace (UTF-8)
+
+Set in plog.properties:
+
+collector=false               (true accepts batches from other nodes)
+collector.token=              (batches must carry the same token. Empty refuses all batches)
+collector.request.bytes=67108864   (largest batch accepted, uncompressed)
+*/
+class Collector {
+    static final int MAGIC = 0x504C4732; // "PLG2"
+    static final String TOKEN_HEADER = "X-PLog-Token";
+    private static final int JOURNALS = 10000; // Node journals remembered for dropping duplicates.
+    private static final int STRING_BYTES = 8192; // Strings longer than this are read as their bytes arrive.
+
+    private final String token;
+    private final long maxBytes;
+    private final Map<String, Long> accepted = new LinkedHashMap<String, Long>(16, 0.75f, true) { // Highest sequence number by node and journal. Least recently used first.
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > JOURNALS;
+        }
+    };
+    private final Counter batches = Metrics.Counter("plog_ingest_batches_total", "Batches accepted from other nodes.");
+    private final Counter received = Metrics.Counter("plog_ingest_messages_total", "Messages accepted from other nodes.");
+    private final Counter duplicates = Metrics.Counter("plog_ingest_duplicates_total", "Messages from other nodes dropped because they were accepted before.");
+    private final Counter rejected = Metrics.Counter("plog_ingest_rejected_total", "Batches from other nodes answered with 503 because the queue was full.");
+
+    public Collector() {
+        this.token = PLog.GetProperty("collector.token", "").trim();
+        this.maxBytes = Math.max(1024, PLog.GetLongProperty("collector.request.bytes", 64 * 1024 * 1024));
+        if(token.length() == 0) {
+            System.out.println("collector.token isn't set. Batches from other nodes are refused until it is.");
+        }
+
+        try {
+            accepted.putAll(LogWriter.IngestCheckpoints());
+        } catch(SQLException e) {
+            System.out.println("Couldn't read the ingest checkpoints: " + e);
+        }
+    }
+
+    /*
+    Returns true if the collector is enabled in plog.properties.
+    */
+    public static boolean Enabled() {
+        return Boolean.parseBoolean(PLog.GetProperty("collector", "false").trim());
+    }
+
+    /*
+    Handle an ingest request: read the batch, drop messages accepted before, and queue the rest.
+    Sends the response headers.
+    */
+    public void receive(HttpExchange exchange) throws IOException {
+        if(!exchange.getRequestMethod().equals("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        if(token.length() == 0 || !token.equals(exchange.getRequestHeaders().getFirst(TOKEN_HEADER))) {
+            exchange.sendResponseHeaders(403, -1);
+            return;
+        }
+
+        InputStream in = exchange.getRequestBody();
+        if("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+
+        Batch batch;
+        try {
+            batch = Read(in, maxBytes);
+        } catch(TooLarge e) {
+            exchange.sendResponseHeaders(413, -1);
+            return;
+        } catch(IOException e) {
+            System.out.println("Invalid log batch from " + exchange.getRemoteAddress() + ": " + e);
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+
+        int code = ingest(batch);
+        if(code == 503) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+        }
+        exchange.sendResponseHeaders(code, -1);
+    }
+
+    /*
+    Queue the messages of a batch that weren't accepted before. Returns the response code: 204 if
+    they were queued, or were all accepted before, 413 if they would never fit in the queue, and
+    503 if the queue doesn't have room for them now.
+    One batch at a time, so a batch and its resend can't both get past the check.
+    */
+    synchronized int ingest(Batch batch) {
+        String journal = batch.node + ":" + batch.journal; // Key in ingest_checkpoint.
+        Long last = accepted.get(journal);
+        long highest = last != null ? last : 0;
+
+        List<Message> msgs = new ArrayList<Message>(batch.msgs.size());
+        for(Message m : batch.msgs) {
+            if(m.seq == 0 || m.seq > highest) {
+                msgs.add(m);
+            }
+        }
+        long seq = highest;
+        for(Message m : msgs) {
+            seq = Math.max(seq, m.seq);
+            if(m.seq != 0) {
+                m.source = journal;
+                m.sourceSeq = m.seq;
+            }
+            m.seq = 0; // Numbered again by this node's journal.
+        }
+
+        if(msgs.size() > PLog.QueueCapacity()) {
+            // Would never fit.
+            return 413;
+        }
+        if(!PLog.Enqueue(msgs)) {
+            rejected.increment();
+            return 503;
+        }
+
+        if(seq > 0) {
+            accepted.put(journal, seq);
+        }
+        batches.increment();
+        received.add(msgs.size());
+        duplicates.add(batch.msgs.size() - msgs.size());
+        return 204;
+    }
+
+    /*
+    Returns the ingest counters, for display.
+    */
+    public synchronized Map<String, Object> describe() {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("batches", batches.get());
+        map.put("messages", received.get());
+        map.put("duplicates", duplicates.get());
+        map.put("rejected", rejected.get());
+        map.put("journals", accepted.size());
+        return map;
+    }
+
+    /*
+    Write a batch in the ingest format. The messages must be formatted.
+    */
+    static void Write(OutputStream os, String node, long journal, List<Message> msgs) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeUTF(node);
+        out.writeLong(journal);
+        out.writeInt(msgs.size());
+
+        for(Message m : msgs) {
+            out.writeLong(m.seq);
+            out.writeLong(m.time);
+            out.writeByte(m.level.severity);
+            out.writeUTF(m.node != null ? m.node : node);
+            out.writeUTF(m.logger);
+            WriteString(out, m.message);
+            WriteString(out, m.trace);
+        }
+        out.flush();
+    }
+
+    /*
+    Read a batch in the ingest format, of up to limit bytes.
+    */
+    static Batch Read(InputStream is, long limit) throws IOException {
+        DataInputStream in = new DataInputStream(new Limited(is, limit));
+        if(in.readInt() != MAGIC) {
+            throw new IOException("Not a log batch.");
+        }
+
+        Batch batch = new Batch();
+        batch.node = in.readUTF();
+        batch.journal = in.readLong();
+        int count = in.readInt();
+        if(count < 0) {
+            throw new IOException("Invalid message count: " + count);
+        }
+
+        batch.msgs = new ArrayList<Message>(Math.min(count, 65536));
+        for(int a = 0; a < count; a++) {
+            Message m = new Message();
+            m.seq = in.readLong();
+            m.time = in.readLong();
+            try {
+                m.level = Message.Level.FromSeverity(in.readByte());
+            } catch(IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+            m.node = in.readUTF();
+            m.logger = in.readUTF();
+            m.message = ReadString(in, limit);
+            m.trace = ReadString(in, limit);
+            batch.msgs.add(m);
+        }
+
+        return batch;
+    }
+
+    /*
+    Write a string that may be longer than writeUTF allows, or null.
+    */
+    private static void WriteString(DataOutputStream out, String s) throws IOException {
+        if(s != null) {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            out.writeInt(-1);
+        }
+    }
+
+    /*
+    Read a string written by WriteString. The length comes from the client, so a long string is
+    read into a buffer that grows as its bytes arrive, instead of allocating the length up front.
+    */
+    private static String ReadString(DataInputStream in, long limit) throws IOException {
+        int length = in.readInt();
+        if(length > limit) {
+            throw new TooLarge();
+        }
+        if(length < 0) {
+            return null;
+        }
+        if(length <= STRING_BYTES) {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(STRING_BYTES);
+        byte[] buf = new byte[STRING_BYTES];
+        while(bytes.size() < length) {
+            int n = in.read(buf, 0, Math.min(buf.length, length - bytes.size()));
+            if(n < 0) {
+                throw new EOFException();
+            }
+            bytes.write(buf, 0, n);
+        }
+        return bytes.toString("UTF-8");
+    }
+
+    /*
+    A batch of messages from one node.
+    */
+    static class Batch {
+        String node;
+        long journal; // Random id of the node's journal.
+        List<Message> msgs;
+    }
+
+    private static class TooLarge extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLarge() {
+            super("Log batch too large.");
+        }
+    }
+
+    /*
+    Input stream that fails once more than a limit has been read, so a batch can't take more
+    memory than that.
+    */
+    private static class Limited extends FilterInputStream {
+        private long remaining;
+
+        Limited(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(long n) throws TooLarge {
+            remaining -= n;
+            if(remaining < 0) {
+                throw new TooLarge();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package plog;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Counter that many threads can add to without all contending on one memory location.
+Each thread adds to one of several cells, picked by its thread id, and reading the count adds the
+cells up. Cells are a cache line apart, so threads adding to different cells don't invalidate each
+other's caches. Adding is one atomic increment with no allocation. Reads are slower, which suits
+counters that are read only for display.
+*/
+class Counter {
+    private static final int PAD = 8; // Longs per 64 byte cache line.
+    private static final int CELLS = Cells();
+
+    private final AtomicLongArray cells = new AtomicLongArray(CELLS * PAD);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long n) {
+        long id = Thread.currentThread().getId();
+        cells.addAndGet((int)((id ^ (id >>> 8)) & (CELLS - 1)) * PAD, n);
+    }
+
+    public long get() {
+        long total = 0;
+        for(int a = 0; a < CELLS; a++) {
+            total += cells.get(a * PAD);
+        }
+        return total;
+    }
+
+    /*
+    Number of cells: a power of 2, twice the number of cores, up to 64.
+    */
+    private static int Cells() {
+        int cells = 1;
+        while(cells < 2 * Runtime.getRuntime().availableProcessors() && cells < 64) {
+            cells <<= 1;
+        }
+        return cells;
+    }
+}
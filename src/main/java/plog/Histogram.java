@@ -0,0 +1,104 @@
+package plog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Lock free histogram of non-negative values with power of 2 buckets.
+Bucket i counts values in [2^(i-1), 2^i), and bucket 0 counts zeros. Recording a value is a few
+atomic increments with no allocation. Percentiles are reported as the upper bound of the bucket
+they fall in.
+*/
+class Histogram {
+    static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long m = max.get();
+        while(value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long sum() {
+        return sum.get();
+    }
+
+    /*
+    Returns the number of values counted by a bucket.
+    */
+    public long bucket(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /*
+    Returns the upper bound of the bucket holding the given percentile (0 - 100), or 0 if empty.
+    */
+    public long percentile(double p) {
+        long total = count.get();
+        if(total == 0) {
+            return 0;
+        }
+
+        long rank = (long)Math.ceil(total * p / 100.0);
+        long seen = 0;
+        for(int a = 0; a < BUCKETS; a++) {
+            seen += buckets.get(a);
+            if(seen >= rank) {
+                return Math.min(UpperBound(a), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /*
+    Returns a summary and the non-empty buckets (keyed by upper bound), for display.
+    */
+    public Map<String, Object> describe() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for(int a = 0; a < BUCKETS; a++) {
+            long c = buckets.get(a);
+            if(c > 0) {
+                counts.put(String.valueOf(UpperBound(a)), c);
+            }
+        }
+
+        long total = count.get();
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("count", total);
+        map.put("mean", total > 0 ? sum.get() / total : 0);
+        map.put("max", max.get());
+        map.put("p50", percentile(50));
+        map.put("p90", percentile(90));
+        map.put("p99", percentile(99));
+        map.put("buckets", counts);
+        return map;
+    }
+
+    /*
+    Largest value counted by a bucket.
+    */
+    static long UpperBound(int bucket) {
+        return bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,539 @@
+package plog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/*
+Append only journal of log messages, in memory mapped segment files in the journal directory under
+the log directory. Off unless journal=true, since it moves every message through the disk once more
+and takes up to journal.max.bytes of it. Always on in client mode (see LogShipper), where it is the
+buffer while the collector is down, and its sequence numbers let the collector drop batches sent
+again.
+
+The queue pump appends each batch here before anything else, which is a copy into mapped memory,
+and the replay thread inserts the messages into the database from here. A locked database or a
+slow disk then only grows the journal: the queue keeps draining, and the heap holds at most one
+batch. Messages are in the operating system's page cache once appended, so they survive the
+process being killed, and are replayed on the next start. With journal.sync they are also forced
+to disk on each batch, to survive a power failure.
+
+Each message is a record with a sequence number, numbered on from the previous one:
+
+length (int) | CRC32 of the payload (int) | payload: seq, time, level, logger, message, node, trace,
+                                                     and for collected messages, source and source seq
+
+The length is written last, so a record cut short by a crash is either missing or fails its
+checksum, and the journal ends before it. Segments are named by the sequence number of their first
+record, unmapped once they have been read and written, and deleted once all their records are in
+the database.
+
+Replay is idempotent. Each database file keeps the sequence number of the last journaled message
+it committed, updated in the same transaction as the messages (see LogWriter), and messages up to
+it are skipped. After a restart the remaining segments are replayed from the start, and messages
+already inserted before the restart aren't inserted again.
+
+Set in plog.properties:
+
+journal=false                     (true journals each batch before it is inserted. Without it the queue
+                                   pump inserts directly, holding a failed batch in memory. Ignored
+                                   in client mode, where the journal is always on)
+journal.segment.bytes=67108864    (size of a segment file)
+journal.max.bytes=1073741824      (the queue stops draining when the journal is this large, not
+                                   counting the segment being appended to, and its overflow policy
+                                   applies. At least two segments)
+journal.sync=false                (force each batch to disk)
+*/
+class Journal {
+    private static final int HEADER = 8; // Record length and checksum.
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".seg";
+
+    private final File dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final boolean sync;
+    private final TreeMap<Long, File> segments = new TreeMap<Long, File>(); // By first sequence number. Guarded by this.
+
+    // Appending. Only used by the queue pump.
+    private MappedByteBuffer writeBuf = null;
+    private long writeFirst = 0; // First sequence number of the segment being appended to.
+    private int writePos = 0;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096); // Record payload being encoded.
+    private final CRC32 crc = new CRC32();
+    private volatile long nextSeq = 1; // Sequence number of the next record appended. Records before it can be read.
+
+    // Replaying. Only used by the replay thread.
+    private MappedByteBuffer readBuf = null; // Segment at the replay position.
+    private long readFirst = 0; // First sequence number of the segment being read.
+    private int readPos = 0;
+    private volatile long readSeq = 1; // Sequence number of the next record to replay.
+    private MappedByteBuffer pendingBuf = null; // Position after the records returned by read(), until replayed() is called.
+    private long pendingFirst;
+    private int pendingPos;
+    private long pendingSeq;
+    private byte[] readBytes = new byte[4096];
+    private final CRC32 readCrc = new CRC32();
+    private volatile Thread reader = null; // The replay thread while it is waiting in await().
+    private long damagedFirst = -1; // Segment whose remaining records can't be read.
+    private volatile boolean rollRequested = false; // The segment being appended to is damaged. The next record starts a new one.
+
+    public Journal(File dir) throws IOException {
+        this(dir, PLog.GetLongProperty("journal.segment.bytes", 64 * 1024 * 1024), PLog.GetLongProperty("journal.max.bytes", 1024L * 1024 * 1024));
+    }
+
+    Journal(File dir, long segmentBytes, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = (int)Math.max(1024 * 1024, Math.min(Integer.MAX_VALUE, segmentBytes));
+        this.sync = Boolean.parseBoolean(PLog.GetProperty("journal.sync", "false").trim());
+
+        // With less, the journal would be full as soon as it rolls to a new segment, and stay full.
+        if(maxBytes < 2L * this.segmentBytes) {
+            System.out.println("journal.max.bytes is less than two segments. Using " + 2L * this.segmentBytes + ".");
+            maxBytes = 2L * this.segmentBytes;
+        }
+        this.maxBytes = maxBytes;
+
+        dir.mkdirs();
+        String[] names = dir.list();
+        if(names != null) {
+            for(String name : names) {
+                if(name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), new File(dir, name));
+                    } catch(NumberFormatException e) {}
+                }
+            }
+        }
+
+        recover();
+    }
+
+    /*
+    Returns true if the journal is enabled in plog.properties, or client mode is.
+    */
+    public static boolean Enabled() {
+        return LogShipper.Enabled() || Boolean.parseBoolean(PLog.GetProperty("journal", "false").trim());
+    }
+
+    /*
+    Append the messages, formatting them first, and give them their sequence numbers. If this fails
+    part way, the messages appended have their sequence numbers and the rest don't. Called by the
+    queue pump.
+    */
+    public void append(List<Message> msgs) throws IOException {
+        for(Message m : msgs) {
+            m.format();
+
+            encode(m, nextSeq);
+            int length = scratch.position();
+            if(writeBuf == null || rollRequested || writePos + HEADER + length > writeBuf.capacity()) {
+                rollRequested = false;
+                roll(length);
+            }
+
+            crc.reset();
+            crc.update(scratch.array(), 0, length);
+
+            writeBuf.position(writePos + HEADER);
+            writeBuf.put(scratch.array(), 0, length);
+            writeBuf.putInt(writePos + 4, (int)crc.getValue());
+            writeBuf.putInt(writePos, length); // Last, so the record is complete once it has a length.
+            writePos += HEADER + length;
+            m.seq = nextSeq++;
+        }
+
+        if(sync && writeBuf != null) {
+            writeBuf.force();
+        }
+
+        Thread t = reader;
+        if(t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /*
+    Number the next records after seq, if they would be numbered lower. The database may have
+    messages numbered up to seq if the journal files were deleted. Records already in the journal
+    are still replayed, since not every database file may have them. Called before the first append.
+    */
+    public void skipTo(long seq) {
+        if(nextSeq <= seq) {
+            if(readSeq >= nextSeq) {
+                readSeq = seq + 1;
+            }
+            nextSeq = seq + 1;
+        }
+    }
+
+    /*
+    Returns true if the journal has reached journal.max.bytes. The segment being appended to isn't
+    counted.
+    */
+    public synchronized boolean full() {
+        return (long)Math.max(0, segments.size() - 1) * segmentBytes >= maxBytes;
+    }
+
+    /*
+    Returns true if all records have been replayed.
+    */
+    public boolean caughtUp() {
+        return readSeq >= nextSeq;
+    }
+
+    /*
+    Waits until there are records to replay, or the timeout passes. Called by the replay thread.
+    */
+    public void await(long timeoutNanos) {
+        reader = Thread.currentThread();
+        if(caughtUp()) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+        reader = null;
+    }
+
+    /*
+    Returns up to max records from the replay position, as messages. The position moves past them
+    when replayed() is called, so after a failed insert the same records are read again. Called by
+    the replay thread.
+
+    The rest of a damaged segment is skipped, since record lengths after the damage can't be trusted.
+    If it is the segment being appended to, the records appended to it so far are skipped, and the
+    queue pump is asked to start a new segment for the next ones. If no records are returned, the
+    position moves at once, so the journal is caught up.
+    */
+    public List<Message> read(int max) throws IOException {
+        List<Message> msgs = new ArrayList<Message>();
+        long end = nextSeq;
+        long first = readFirst;
+        int pos = readPos;
+        long seq = readSeq;
+        MappedByteBuffer buf = readBuf;
+        if(pendingBuf != readBuf) {
+            // Reading again from the replay position after a failed insert.
+            Unmap(pendingBuf);
+            pendingBuf = null;
+        }
+
+        while(msgs.size() < max && seq < end) {
+            boolean damaged = first == damagedFirst;
+            int length = damaged || buf == null || pos + HEADER > buf.capacity() ? 0 : buf.getInt(pos);
+            Message m = length > 0 && length <= buf.capacity() - pos - HEADER ? decode(buf, pos, length) : null;
+            if(length > 0 && m == null) {
+                System.out.println("Skipping damaged log journal records after message " + (seq - 1) + ".");
+                damagedFirst = first;
+                damaged = true;
+            }
+
+            if(m == null) {
+                // End of the segment, or damaged. The next record is at the start of the next one.
+                Long next = next(first);
+                if(next == null) {
+                    if(damaged) {
+                        rollRequested = true;
+                        System.out.println("Skipped log journal messages " + seq + " to " + (end - 1) + ".");
+                        seq = end;
+                    }
+                    break;
+                }
+                if(damaged && seq < next) {
+                    System.out.println("Skipped log journal messages " + seq + " to " + (next - 1) + ".");
+                    seq = next;
+                }
+                if(buf != readBuf) {
+                    Unmap(buf);
+                }
+                first = next;
+                buf = map(first);
+                pos = 0;
+                continue;
+            }
+            msgs.add(m);
+            pos += HEADER + length;
+            seq = m.seq + 1;
+        }
+
+        pendingBuf = buf;
+        pendingFirst = first;
+        pendingPos = pos;
+        pendingSeq = seq;
+        if(msgs.isEmpty()) {
+            // Nothing to insert, so the position can move past skipped records now.
+            replayed();
+        }
+        return msgs;
+    }
+
+    /*
+    Move the replay position past the records returned by read(), and delete the segments before
+    it. Called once they have been committed.
+    */
+    public void replayed() {
+        if(pendingBuf != readBuf) {
+            Unmap(readBuf);
+            readBuf = pendingBuf;
+        }
+        readFirst = pendingFirst;
+        readPos = pendingPos;
+        readSeq = pendingSeq;
+
+        synchronized(this) {
+            while(!segments.isEmpty() && segments.firstKey() < readFirst) {
+                File f = segments.remove(segments.firstKey());
+                if(!f.delete()) {
+                    f.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    /*
+    Returns the journal size and the number of messages waiting to be replayed, for display.
+    */
+    public synchronized Map<String, Object> describe() {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("segments", segments.size());
+        map.put("bytes", (long)segments.size() * segmentBytes);
+        map.put("maxBytes", maxBytes);
+        map.put("backlog", backlog());
+        map.put("nextSeq", nextSeq);
+        map.put("sync", sync);
+        return map;
+    }
+
+    /*
+    Returns the sequence number of the last record appended, or 0 if there is none.
+    */
+    public long last() {
+        return nextSeq - 1;
+    }
+
+    /*
+    Returns the number of records waiting to be replayed.
+    */
+    public long backlog() {
+        return Math.max(0, nextSeq - readSeq);
+    }
+
+    /*
+    Find the end of the journal after a restart, and start replaying from the oldest segment.
+    Records at the end that were cut short are dropped.
+    */
+    private void recover() throws IOException {
+        if(segments.isEmpty()) {
+            return;
+        }
+
+        readFirst = segments.firstKey();
+        readSeq = readFirst;
+        readBuf = map(readFirst);
+        readPos = 0;
+
+        // Count the records of the newest segment.
+        writeFirst = segments.lastKey();
+        RandomAccessFile raf = new RandomAccessFile(segments.get(writeFirst), "rw");
+        try {
+            writeBuf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        writePos = 0;
+        long seq = writeFirst;
+        while(writePos + HEADER <= writeBuf.capacity()) {
+            int length = writeBuf.getInt(writePos);
+            Message m = length > 0 && writePos + HEADER + length <= writeBuf.capacity() ? decode(writeBuf, writePos, length) : null;
+            if(m == null) {
+                break;
+            }
+            seq = m.seq + 1;
+            writePos += HEADER + length;
+        }
+        nextSeq = seq;
+
+        // Clear what is left of a record cut short, so it can't be mistaken for a record later.
+        for(int a = writePos; a < writeBuf.capacity() && a < writePos + HEADER; a++) {
+            writeBuf.put(a, (byte)0);
+        }
+    }
+
+    /*
+    Start a new segment with room for a record of the given length.
+    */
+    private void roll(int length) throws IOException {
+        if(writeBuf != null && writePos + 4 <= writeBuf.capacity()) {
+            writeBuf.putInt(writePos, 0); // End of the segment.
+        }
+        Unmap(writeBuf); // The replay thread maps the segment on its own.
+        writeBuf = null;
+
+        File f = new File(dir, String.format("%s%019d%s", PREFIX, nextSeq, SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            writeBuf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, HEADER + length + 4));
+        } finally {
+            raf.close(); // The mapping stays valid.
+        }
+        writeFirst = nextSeq;
+        writePos = 0;
+
+        synchronized(this) {
+            segments.put(writeFirst, f);
+        }
+    }
+
+    private synchronized Long next(long first) {
+        return segments.higherKey(first);
+    }
+
+    /*
+    Map a segment for reading.
+    */
+    private MappedByteBuffer map(long first) throws IOException {
+        File f;
+        synchronized(this) {
+            f = segments.get(first);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*
+    Release a mapping once it won't be used again, instead of when the buffer is garbage collected,
+    so retired segments don't keep address space and, on some platforms, can be deleted. Left to the
+    garbage collector if the JVM doesn't allow it.
+    */
+    private static void Unmap(MappedByteBuffer buf) {
+        if(buf == null) {
+            return;
+        }
+
+        try {
+            try {
+                // Java 9 and later.
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buf);
+            } catch(NoSuchMethodException e) {
+                // Java 8 and earlier.
+                Method cleaner = buf.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object c = cleaner.invoke(buf);
+                if(c != null) {
+                    c.getClass().getMethod("clean").invoke(c);
+                }
+            }
+        } catch(Exception e) {}
+    }
+
+    private void encode(Message m, long seq) throws UnsupportedEncodingException {
+        byte[] logger = m.logger.getBytes("UTF-8");
+        byte[] message = m.message != null ? m.message.getBytes("UTF-8") : null;
+        byte[] node = m.node != null ? m.node.getBytes("UTF-8") : null;
+        byte[] trace = m.trace != null ? m.trace.getBytes("UTF-8") : null;
+        byte[] source = m.source != null ? m.source.getBytes("UTF-8") : null;
+
+        int length = 8 + 8 + 1 + 4 + logger.length + 4 + (message != null ? message.length : 0) + 4 + (node != null ? node.length : 0) + 4 + (trace != null ? trace.length : 0) + (source != null ? 4 + source.length + 8 : 0);
+        if(scratch.capacity() < length) {
+            scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+        }
+
+        scratch.clear();
+        scratch.putLong(seq);
+        scratch.putLong(m.time);
+        scratch.put((byte)m.level.severity);
+        scratch.putInt(logger.length);
+        scratch.put(logger);
+        scratch.putInt(message != null ? message.length : -1);
+        if(message != null) {
+            scratch.put(message);
+        }
+        scratch.putInt(node != null ? node.length : -1);
+        if(node != null) {
+            scratch.put(node);
+        }
+        scratch.putInt(trace != null ? trace.length : -1);
+        if(trace != null) {
+            scratch.put(trace);
+        }
+        if(source != null) {
+            scratch.putInt(source.length);
+            scratch.put(source);
+            scratch.putLong(m.sourceSeq);
+        }
+    }
+
+    /*
+    Returns the message in the record at the position, or null if it fails its checksum.
+    */
+    private Message decode(MappedByteBuffer buf, int pos, int length) throws UnsupportedEncodingException {
+        if(readBytes.length < length) {
+            readBytes = new byte[Math.max(length, readBytes.length * 2)];
+        }
+
+        ByteBuffer dup = buf.duplicate();
+        dup.position(pos + HEADER);
+        dup.get(readBytes, 0, length);
+
+        readCrc.reset();
+        readCrc.update(readBytes, 0, length);
+        if((int)readCrc.getValue() != buf.getInt(pos + 4)) {
+            return null;
+        }
+
+        ByteBuffer b = ByteBuffer.wrap(readBytes, 0, length);
+        Message m = new Message();
+        m.seq = b.getLong();
+        m.time = b.getLong();
+        m.level = Message.Level.FromSeverity(b.get());
+        int loggerLength = b.getInt();
+        m.logger = new String(readBytes, b.position(), loggerLength, "UTF-8");
+        b.position(b.position() + loggerLength);
+        int messageLength = b.getInt();
+        m.message = messageLength >= 0 ? new String(readBytes, b.position(), messageLength, "UTF-8") : null;
+        b.position(b.position() + Math.max(0, messageLength));
+
+        // Records written before nodes were added end here. They are from this node.
+        m.node = PLog.NODE;
+        if(b.remaining() >= 4) {
+            int nodeLength = b.getInt();
+            m.node = nodeLength >= 0 ? new String(readBytes, b.position(), nodeLength, "UTF-8") : null;
+            b.position(b.position() + Math.max(0, nodeLength));
+        }
+
+        // Or here, before stack traces were added.
+        if(b.remaining() >= 4) {
+            int traceLength = b.getInt();
+            m.trace = traceLength >= 0 ? new String(readBytes, b.position(), traceLength, "UTF-8") : null;
+            b.position(b.position() + Math.max(0, traceLength));
+        }
+
+        // Collected messages have their source journal at the end.
+        if(b.remaining() >= 4) {
+            int sourceLength = b.getInt();
+            m.source = new String(readBytes, b.position(), sourceLength, "UTF-8");
+            b.position(b.position() + sourceLength);
+            m.sourceSeq = b.getLong();
+        }
+        return m;
+    }
+}
@@ -0,0 +1,195 @@
+package plog;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Live tail of new log messages, streamed to the web interface with Server-Sent Events.
+
+The queue pump publishes each batch after it has been committed. Every subscriber has its own
+filter, bounded buffer and thread, so tailing never queries the database and a slow client can't
+hold up the pump or the other clients: when a subscriber's buffer is full, new messages are dropped
+for that subscriber and counted. Set in plog.properties:
+
+tail.buffer=1000        (messages buffered per subscriber)
+tail.subscribers=16     (open streams, more get 503)
+*/
+class LiveTail {
+    private static final long KEEPALIVE_SECONDS = 15; // Comment sent to idle streams, to notice closed clients.
+    private static final int WRITE_BATCH = 1000; // Messages written per flush.
+
+    private final int buffer;
+    private final int maxSubscribers;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong(); // Total for all subscribers.
+    private volatile boolean stopped = false;
+
+    public LiveTail() {
+        this.buffer = (int)Math.max(1, PLog.GetLongProperty("tail.buffer", 1000));
+        this.maxSubscribers = (int)Math.max(1, PLog.GetLongProperty("tail.subscribers", 16));
+    }
+
+    /*
+    Pass committed messages to the subscribers. Called by the queue pump. Never blocks.
+    */
+    public void publish(List<Message> msgs) {
+        for(Subscriber s : subscribers) {
+            for(Message m : msgs) {
+                if(s.filter.matches(m) && !s.queue.offer(m)) {
+                    s.dropped.incrementAndGet();
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /*
+    Start streaming messages that pass the filter to the exchange, on a thread of its own. The
+    exchange is closed when the client disconnects or the tail is stopped.
+    Returns false, without touching the exchange, if there are already too many subscribers.
+    */
+    public synchronized boolean subscribe(LogQuery filter, HttpExchange exchange) {
+        if(stopped || subscribers.size() >= maxSubscribers) {
+            return false;
+        }
+
+        Subscriber s = new Subscriber(filter, exchange);
+        subscribers.add(s);
+        s.start();
+        return true;
+    }
+
+    /*
+    Close all streams.
+    */
+    public synchronized void stop() {
+        stopped = true;
+        for(Subscriber s : subscribers) {
+            s.interrupt();
+        }
+    }
+
+    /*
+    Returns subscriber counters, for display.
+    */
+    public Map<String, Object> describe() {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("subscribers", subscribers.size());
+        map.put("dropped", dropped.get());
+        return map;
+    }
+
+    /*
+    One open stream.
+    */
+    private class Subscriber extends Thread {
+        final LogQuery filter;
+        final BlockingQueue<Message> queue;
+        final AtomicLong dropped = new AtomicLong();
+        private final HttpExchange exchange;
+
+        Subscriber(LogQuery filter, HttpExchange exchange) {
+            super("plog-tail-" + threadCount.incrementAndGet());
+            setDaemon(true);
+            this.filter = filter;
+            this.queue = new ArrayBlockingQueue<Message>(buffer);
+            this.exchange = exchange;
+        }
+
+        public void run() {
+            DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            df.setTimeZone(TimeZone.getDefault());
+
+            try {
+                exchange.getResponseHeaders().set("content-type", "text/event-stream; charset=utf-8");
+                exchange.getResponseHeaders().set("cache-control", "no-cache");
+                exchange.sendResponseHeaders(200, 0);
+
+                Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), "UTF-8"));
+                out.write("retry: 3000\n\n"); // Browser reconnect delay.
+                out.flush();
+
+                List<Message> batch = new ArrayList<Message>();
+                long reported = 0;
+
+                while(!stopped && !isInterrupted()) {
+                    Message m = queue.poll(KEEPALIVE_SECONDS, TimeUnit.SECONDS);
+                    if(m == null) {
+                        out.write(": keepalive\n\n");
+                        out.flush();
+                        continue;
+                    }
+
+                    batch.add(m);
+                    queue.drainTo(batch, WRITE_BATCH - 1);
+                    for(Message b : batch) {
+                        out.write("data: ");
+                        out.write(Json(b, df));
+                        out.write("\n\n");
+                    }
+                    batch.clear();
+
+                    // Let the client know it missed messages.
+                    long d = dropped.get();
+                    if(d != reported) {
+                        out.write("event: dropped\ndata: " + d + "\n\n");
+                        reported = d;
+                    }
+
+                    out.flush();
+                }
+            } catch(IOException e) {
+                // Client disconnected.
+            } catch(InterruptedException e) {
+                // Stopping.
+            } finally {
+                subscribers.remove(this);
+                exchange.close();
+            }
+        }
+    }
+
+    /*
+    Returns the message as one line of JSON, in the same form as the logs query. The message is
+    shared with the other subscribers, so it isn't modified.
+    */
+    private static String Json(Message m, DateFormat df) throws IOException {
+        StringWriter s = new StringWriter();
+        JsonWriter w = new JsonWriter(s);
+        w.setHtmlSafe(true);
+        w.beginObject();
+        w.name("ts").value(df.format(new Date(m.time)));
+        w.name("level").value(m.level.toString());
+        w.name("logger").value(m.logger);
+        w.name("message").value(m.message);
+        if(m.node != null) {
+            w.name("node").value(m.node);
+        }
+        if(m.trace != null) {
+            w.name("trace").value(m.trace);
+        }
+        w.endObject();
+        w.close();
+        return s.toString();
+    }
+}
@@ -0,0 +1,365 @@
+package plog;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Map;
+import java.util.TimeZone;
+
+/*
+Parameters of a log query, parsed from the request.
+
+Pages are selected with a cursor (keyset pagination) rather than an offset. A cursor is the
+"ts_id" of a row. The next page starts after the last row of the current page, and the previous
+page ends before its first row, using the (ts, id) order. Deep pages cost the same as the first.
+
+Request parameters:
+level - Level name, or "all".
+logger - Logger name, or "all". A name ending with * matches loggers starting with the text before it.
+node - Node name, or "all". See Collector.
+trace - Fingerprint of a stack trace, for the messages that logged it. Optional. See Trace.
+q - Full text search of the message, using the SQLite FTS query syntax, e.g. NumberFormatException
+    or "connection refused". Optional.
+from, to - Time range, "yyyy-MM-dd HH:mm:ss.SSS" in the server's local timezone.
+order - "asc" or "desc".
+limit - Page size. Defaults to page.size in plog.properties (50), and can't exceed page.size.max (50000).
+cursor - Cursor returned by a previous page. Missing for the first page.
+dir - "next" (default) or "prev": the direction to page from the cursor.
+*/
+class LogQuery {
+    static final int PAGE_SIZE = (int)Math.max(1, PLog.GetLongProperty("page.size", 50));
+    static final int PAGE_SIZE_MAX = (int)Math.max(PAGE_SIZE, PLog.GetLongProperty("page.size.max", 50000));
+
+    long from; // Epoch millis, inclusive.
+    long to; // Epoch millis, inclusive.
+    Message.Level level; // Null for all levels.
+    String logger; // Null for all loggers.
+    boolean loggerPrefix; // Match loggers starting with logger.
+    String node; // Null for all nodes.
+    String trace; // Trace fingerprint. Null for all messages.
+    String search; // Null for no search.
+    boolean searchByTime; // Test rows in time order against the search, instead of looking up the matches. See SearchIndex.
+    boolean asc; // Display order.
+    int limit;
+    boolean hasCursor;
+    long cursorTs;
+    long cursorId;
+    boolean prev; // Page backwards from the cursor.
+
+    /*
+    Parse the request parameters. Throws IllegalArgumentException for missing or invalid values.
+    */
+    public static LogQuery Parse(Map<String, String> query) {
+        LogQuery q = ParseFilter(query);
+
+        try {
+            // Timestamps are stored as epoch millis. The user selects them in the local timezone.
+            DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            df.setTimeZone(TimeZone.getDefault());
+            q.from = df.parse(Param(query, "from", null)).getTime();
+            q.to = df.parse(Param(query, "to", null)).getTime();
+        } catch(ParseException e) {
+            throw new IllegalArgumentException("Invalid from / to: " + e.getMessage());
+        }
+
+        q.asc = Param(query, "order", "desc").equalsIgnoreCase("asc");
+        q.limit = Math.max(1, Math.min(PAGE_SIZE_MAX, Integer.parseInt(Param(query, "limit", "" + PAGE_SIZE))));
+
+        String cursor = Param(query, "cursor", "");
+        if(cursor.length() > 0) {
+            String[] parts = cursor.split("_");
+            if(parts.length != 2) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            q.hasCursor = true;
+            q.cursorTs = Long.parseLong(parts[0]);
+            q.cursorId = Long.parseLong(parts[1]);
+            q.prev = Param(query, "dir", "next").equalsIgnoreCase("prev");
+        }
+
+        return q;
+    }
+
+    /*
+    Parse only the level, logger, node, trace and search parameters, for filtering messages with matches().
+    */
+    public static LogQuery ParseFilter(Map<String, String> query) {
+        LogQuery q = new LogQuery();
+
+        String level = Param(query, "level", "all");
+        if(!level.equalsIgnoreCase("all")) {
+            q.level = Message.Level.valueOf(level.toUpperCase());
+        }
+
+        String logger = Param(query, "logger", "all");
+        if(!logger.equalsIgnoreCase("all") && logger.length() > 0) {
+            q.loggerPrefix = logger.endsWith("*");
+            q.logger = q.loggerPrefix ? logger.substring(0, logger.length() - 1) : logger;
+        }
+
+        String node = Param(query, "node", "all");
+        if(!node.equalsIgnoreCase("all") && node.length() > 0) {
+            q.node = node;
+        }
+
+        String trace = Param(query, "trace", "");
+        if(trace.length() > 0) {
+            q.trace = trace;
+        }
+
+        String search = Param(query, "q", "");
+        if(search.length() > 0) {
+            q.search = search;
+        }
+
+        return q;
+    }
+
+    /*
+    Returns true if the message passes the level, logger, node, trace and search filters. The search is
+    approximated by requiring each word in it to appear in the message, ignoring case.
+    */
+    public boolean matches(Message m) {
+        if(level != null && m.level != level) {
+            return false;
+        }
+        if(logger != null && !(loggerPrefix ? m.logger.startsWith(logger) : m.logger.equals(logger))) {
+            return false;
+        }
+        if(node != null && !node.equals(m.node)) {
+            return false;
+        }
+        if(trace != null && !trace.equals(m.fingerprint)) {
+            return false;
+        }
+        if(search != null) {
+            String message = m.message != null ? m.message.toLowerCase() : "";
+            for(String word : search.toLowerCase().replace("\"", " ").split("\\s+")) {
+                if(!message.contains(word)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /*
+    Returns the parsed parameters in a normal form, e.g. as a cache key. Queries with the same key
+    have the same result.
+    */
+    public String key() {
+        String cursor = hasCursor ? Cursor(cursorTs, cursorId) + (prev ? " prev" : " next") : "";
+        return from + "\0" + to + "\0" + level + "\0" + logger + (loggerPrefix ? "*" : "") + "\0" + node + "\0" + trace + "\0" + search + "\0" + asc + "\0" + limit + "\0" + cursor;
+    }
+
+    /*
+    Returns the cursor for a row.
+    */
+    public static String Cursor(long ts, long id) {
+        return ts + "_" + id;
+    }
+
+    /*
+    Returns a copy of this query.
+    */
+    public LogQuery copy() {
+        LogQuery q = new LogQuery();
+        q.from = from;
+        q.to = to;
+        q.level = level;
+        q.logger = logger;
+        q.loggerPrefix = loggerPrefix;
+        q.node = node;
+        q.trace = trace;
+        q.search = search;
+        q.searchByTime = searchByTime;
+        q.asc = asc;
+        q.limit = limit;
+        q.hasCursor = hasCursor;
+        q.cursorTs = cursorTs;
+        q.cursorId = cursorId;
+        q.prev = prev;
+        return q;
+    }
+
+    /*
+    Returns true if rows are read in ascending (ts, id) order. Paging backwards reads in the
+    opposite of the display order.
+    */
+    public boolean scanAsc() {
+        return asc != prev;
+    }
+
+    /*
+    Returns the lowest ts the query can match, with the cursor folded in.
+    */
+    public long lower() {
+        return hasCursor && scanAsc() ? Math.max(from, cursorTs) : from;
+    }
+
+    /*
+    Returns the highest ts the query can match, with the cursor folded in.
+    */
+    public long upper() {
+        return hasCursor && !scanAsc() ? Math.min(to, cursorTs) : to;
+    }
+
+    /*
+    Returns true if a row is in the time range and past the cursor, like where(). For messages in
+    memory.
+    */
+    public boolean inRange(long ts, long id) {
+        if(ts < lower() || ts > upper()) {
+            return false;
+        }
+        if(hasCursor && ts == cursorTs) {
+            return scanAsc() ? id > cursorId : id < cursorId;
+        }
+
+        return true;
+    }
+
+    /*
+    Returns the where clause for the filters and cursor, on the log table.
+    The exact level, logger and node filters use the (level, ts), (logger_id, ts) and (node_id, ts) indexes,
+    and the trace filter the (ts, trace_id) index of messages with a trace.
+    The cursor is folded into the ts range, since SQLite only uses one bound on each side of the
+    range. The rest of the cursor condition only breaks ties between rows with the cursor's ts.
+    */
+    public String where() {
+        StringBuilder sql = new StringBuilder("log.ts >= ? and log.ts <= ?");
+        if(level != null) {
+            sql.append(" and log.level = ?");
+        }
+        if(logger != null) {
+            if(loggerPrefix) {
+                sql.append(" and log.logger_id in (select id from logger where name like ? escape '\\')");
+            } else {
+                sql.append(" and log.logger_id = (select id from logger where name = ?)");
+            }
+        }
+        if(node != null) {
+            sql.append(" and log.node_id = (select id from node where name = ?)");
+        }
+        if(trace != null) {
+            sql.append(" and log.trace_id = (select id from trace where fingerprint = ?)");
+        }
+        if(search != null) {
+            if(SearchIndex.Enabled()) {
+                // The unary + keeps SQLite from looking the matches up by id.
+                sql.append(" and " + (searchByTime ? "+" : "") + "log.id in (select docid from log_fts where log_fts match ?)");
+            } else {
+                sql.append(" and log.message like ? escape '\\'"); // No index: scan.
+            }
+        }
+        if(hasCursor) {
+            String op = scanAsc() ? ">" : "<";
+            sql.append(" and (log.ts " + op + " ? or log.id " + op + " ?)");
+        }
+
+        return sql.toString();
+    }
+
+    /*
+    Returns the level, logger and node filters on the log_rollup table r, for the summary, starting
+    with " and ", or "" without filters. The trace and search filters aren't kept in the rollup.
+    */
+    public String rollupWhere() {
+        StringBuilder sql = new StringBuilder();
+        if(level != null) {
+            sql.append(" and r.level = ?");
+        }
+        if(logger != null) {
+            if(loggerPrefix) {
+                sql.append(" and r.logger_id in (select id from logger where name like ? escape '\\')");
+            } else {
+                sql.append(" and r.logger_id = (select id from logger where name = ?)");
+            }
+        }
+        if(node != null) {
+            sql.append(" and r.node_id = (select id from node where name = ?)");
+        }
+        return sql.toString();
+    }
+
+    /*
+    Bind the parameters of rollupWhere(), starting at index p. Returns the next parameter index.
+    */
+    public int bindRollup(PreparedStatement s, int p) throws SQLException {
+        if(level != null) {
+            s.setInt(p++, level.severity);
+        }
+        if(logger != null) {
+            s.setString(p++, loggerPrefix ? Like(logger) + "%" : logger);
+        }
+        if(node != null) {
+            s.setString(p++, node);
+        }
+        return p;
+    }
+
+    /*
+    Escape the LIKE wildcards in a text, so it only matches itself. Used with escape '\'.
+    */
+    static String Like(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /*
+    Returns the order by clause.
+    */
+    public String orderBy() {
+        String dir = scanAsc() ? "asc" : "desc";
+        return "log.ts " + dir + ", log.id " + dir;
+    }
+
+    /*
+    Bind the parameters of where(), starting at index p. Returns the next parameter index.
+    */
+    public int bind(PreparedStatement s, int p) throws SQLException {
+        s.setLong(p++, lower());
+        s.setLong(p++, upper());
+        if(level != null) {
+            s.setInt(p++, level.severity);
+        }
+        if(logger != null) {
+            s.setString(p++, loggerPrefix ? Like(logger) + "%" : logger);
+        }
+        if(node != null) {
+            s.setString(p++, node);
+        }
+        if(trace != null) {
+            s.setString(p++, trace);
+        }
+        if(search != null) {
+            s.setString(p++, SearchIndex.Enabled() ? search : "%" + Like(search) + "%");
+        }
+        if(hasCursor) {
+            s.setLong(p++, cursorTs);
+            s.setLong(p++, cursorId);
+        }
+
+        return p;
+    }
+
+    private static String Param(Map<String, String> query, String name, String defaultValue) {
+        String value = query.get(name);
+        if(value == null) {
+            if(defaultValue == null) {
+                throw new IllegalArgumentException("Missing parameter: " + name);
+            }
+            return defaultValue;
+        }
+
+        try {
+            return URLDecoder.decode(value, "UTF-8").trim();
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
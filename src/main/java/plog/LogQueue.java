@@ -0,0 +1,350 @@
+package plog;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Bounded, lock free queue that hands log messages from the logging threads to the queue pump.
+
+The slots are preallocated in a ring. Each slot has a sequence number that tells producers and
+consumers whether it is free or holds a message (Dmitry Vyukov's bounded MPMC queue). Adding a
+message is one compare-and-set on the enqueue position, with no lock and no allocation.
+
+When the queue is full the overflow policy decides what happens:
+BLOCK - Wait for the pump to make room. No messages are lost.
+DROP_NEWEST - Discard the new message.
+DROP_OLDEST - Discard the oldest queued message to make room for the new one.
+DROP_BELOW - Discard the new message if it is below the drop level, otherwise wait.
+
+Messages added with offerAll, which are collected from other nodes, are never dropped. DROP_OLDEST
+moves them out of the ring to a list of kept messages instead, which is taken before the ring.
+*/
+class LogQueue {
+    enum Overflow {
+        BLOCK,
+        DROP_NEWEST,
+        DROP_OLDEST,
+        DROP_BELOW
+    }
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100); // Wait between attempts while full.
+
+    private final Message[] buffer;
+    private final boolean[] keep; // Slots holding messages added with offerAll. Published with the sequence.
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong enqueuePos = new AtomicLong();
+    private final AtomicLong dequeuePos = new AtomicLong();
+
+    private volatile Thread consumer; // The consumer thread while it is waiting in await(), otherwise null.
+    private volatile int wakeSize; // Number of queued messages that wakes the waiting consumer.
+
+    private final Overflow overflow;
+    private final Message.Level dropLevel; // Used by DROP_BELOW.
+    private final ConcurrentLinkedQueue<Message> kept = new ConcurrentLinkedQueue<Message>(); // Messages added with offerAll that DROP_OLDEST took out of the ring.
+    private final AtomicInteger keptSize = new AtomicInteger();
+
+    private final Counter enqueued = new Counter(); // Messages added. Striped, since every logging thread adds to it.
+    private final AtomicLongArray dropped = new AtomicLongArray(Message.Level.values().length); // Messages dropped, by level ordinal.
+    private final AtomicLong blocked = new AtomicLong(); // Times a producer had to wait for room.
+
+    /*
+    Create a queue. The capacity is rounded up to a power of 2.
+    */
+    public LogQueue(int capacity, Overflow overflow, Message.Level dropLevel) {
+        int size = 1;
+        while(size < capacity) {
+            size <<= 1;
+        }
+
+        this.buffer = new Message[size];
+        this.keep = new boolean[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.overflow = overflow;
+        this.dropLevel = dropLevel;
+
+        for(int a = 0; a < size; a++) {
+            sequences.set(a, a);
+        }
+    }
+
+    /*
+    Add a message, applying the overflow policy if the queue is full.
+    Returns false if the message was dropped.
+    */
+    public boolean put(Message m) {
+        if(offer(m)) {
+            enqueued.increment();
+            signal();
+            return true;
+        }
+
+        // Full. Make sure the consumer is awake.
+        Thread t = consumer;
+        if(t != null) {
+            LockSupport.unpark(t);
+        }
+
+        switch(overflow) {
+            case DROP_NEWEST:
+                return drop(m);
+            case DROP_OLDEST:
+                while(!offer(m)) {
+                    Message oldest = poll(true);
+                    if(oldest != null) {
+                        drop(oldest);
+                    }
+                }
+                enqueued.increment();
+                signal();
+                return true;
+            case DROP_BELOW:
+                if(m.level.severity < dropLevel.severity) {
+                    return drop(m);
+                }
+                break;
+            default:
+                break;
+        }
+
+        // Wait for the pump to make room.
+        blocked.incrementAndGet();
+        while(!offer(m)) {
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            if(Thread.currentThread().isInterrupted()) {
+                return drop(m);
+            }
+        }
+        enqueued.increment();
+        signal();
+        return true;
+    }
+
+    /*
+    Add all the messages, in order, if there is room for all of them. Returns false, adding none,
+    if there isn't. The overflow policy doesn't apply: nothing is dropped or waited for, and the
+    messages are never dropped once added. The kept messages count against the room, so they are
+    bounded too.
+    */
+    public boolean offerAll(List<Message> msgs) {
+        int n = msgs.size();
+        if(n + keptSize.get() > buffer.length) {
+            return false;
+        }
+        if(n == 0) {
+            return true;
+        }
+
+        long pos = enqueuePos.get();
+        claim:
+        while(true) {
+            // Consumers can free slots slightly out of order, so each one is checked. A slot free in
+            // this lap stays free until a producer claims it, which moves the enqueue position first.
+            for(int a = 0; a < n; a++) {
+                long dif = sequences.get((int)(pos + a) & mask) - (pos + a);
+                if(dif < 0) {
+                    return false; // Not enough room.
+                }
+                if(dif > 0) {
+                    // Another producer claimed a slot first.
+                    pos = enqueuePos.get();
+                    continue claim;
+                }
+            }
+            if(enqueuePos.compareAndSet(pos, pos + n)) {
+                break;
+            }
+            pos = enqueuePos.get();
+        }
+
+        for(int a = 0; a < n; a++) {
+            int cell = (int)(pos + a) & mask;
+            buffer[cell] = msgs.get(a);
+            keep[cell] = true;
+            sequences.set(cell, pos + a + 1); // Publish in order, so the consumer takes them in order.
+        }
+        enqueued.add(n);
+        signal();
+        return true;
+    }
+
+    /*
+    Called by the consumer. Waits until at least minSize messages are queued, or the timeout
+    passes, or the thread is unparked. Returns true if the queue is not empty.
+    */
+    public boolean await(int minSize, long timeoutNanos) {
+        if(size() >= minSize) {
+            return true;
+        }
+
+        wakeSize = minSize;
+        consumer = Thread.currentThread();
+
+        // Check again after publishing the consumer, in case a producer added a message and missed it.
+        if(size() < minSize) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+
+        consumer = null;
+        return size() > 0;
+    }
+
+    /*
+    Wake the consumer if it is waiting and enough messages are queued.
+    */
+    private void signal() {
+        Thread t = consumer;
+        if(t != null && size() >= wakeSize) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /*
+    Move up to max messages from the queue into the list. Returns the number of messages moved.
+    The kept messages are older than those in the ring, so they go first.
+    */
+    public int drainTo(List<Message> list, int max) {
+        int count = 0;
+        Message m;
+        while(count < max && (m = kept.poll()) != null) {
+            keptSize.decrementAndGet();
+            list.add(m);
+            count++;
+        }
+        while(count < max && (m = poll(false)) != null) {
+            list.add(m);
+            count++;
+        }
+
+        return count;
+    }
+
+    /*
+    Returns the approximate number of queued messages.
+    */
+    public int size() {
+        long size = enqueuePos.get() - dequeuePos.get();
+        return (int)Math.max(0, Math.min(size, buffer.length)) + keptSize.get();
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public long enqueued() {
+        return enqueued.get();
+    }
+
+    public long blocked() {
+        return blocked.get();
+    }
+
+    public long dropped(Message.Level level) {
+        return dropped.get(level.ordinal());
+    }
+
+    /*
+    Returns the total number of dropped messages.
+    */
+    public long dropped() {
+        long total = 0;
+        for(int a = 0; a < dropped.length(); a++) {
+            total += dropped.get(a);
+        }
+
+        return total;
+    }
+
+    /*
+    Returns queue counters, for display.
+    */
+    public Map<String, Object> describe() {
+        Map<String, Long> byLevel = new TreeMap<String, Long>();
+        for(Message.Level level : Message.Level.values()) {
+            byLevel.put(level.toString(), dropped.get(level.ordinal()));
+        }
+
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("capacity", capacity());
+        map.put("size", size());
+        map.put("overflow", overflow.toString());
+        map.put("enqueued", enqueued.get());
+        map.put("blocked", blocked.get());
+        map.put("kept", keptSize.get());
+        map.put("dropped", dropped());
+        map.put("droppedByLevel", byLevel);
+        return map;
+    }
+
+    private boolean drop(Message m) {
+        dropped.incrementAndGet(m.level.ordinal());
+        return false;
+    }
+
+    /*
+    Add a message if there is room. Returns false if the queue is full.
+    */
+    private boolean offer(Message m) {
+        long pos = enqueuePos.get();
+        while(true) {
+            int cell = (int)pos & mask;
+            long dif = sequences.get(cell) - pos;
+            if(dif == 0) {
+                // Slot is free. Claim it.
+                if(enqueuePos.compareAndSet(pos, pos + 1)) {
+                    buffer[cell] = m;
+                    keep[cell] = false;
+                    sequences.set(cell, pos + 1); // Publish the message to consumers.
+                    return true;
+                }
+                pos = enqueuePos.get();
+            } else if(dif < 0) {
+                // Slot still holds a message from the previous lap. Queue is full.
+                return false;
+            } else {
+                // Another producer claimed the slot first.
+                pos = enqueuePos.get();
+            }
+        }
+    }
+
+    /*
+    Remove and return the oldest message, or null if the queue is empty. Evicting for DROP_OLDEST,
+    a message added with offerAll is moved to the kept messages instead, and null is returned.
+    */
+    private Message poll(boolean evict) {
+        long pos = dequeuePos.get();
+        while(true) {
+            int cell = (int)pos & mask;
+            long dif = sequences.get(cell) - (pos + 1);
+            if(dif == 0) {
+                if(dequeuePos.compareAndSet(pos, pos + 1)) {
+                    Message m = buffer[cell];
+                    boolean added = keep[cell];
+                    buffer[cell] = null;
+                    sequences.set(cell, pos + mask + 1); // Free the slot for the next lap.
+                    if(evict && added) {
+                        kept.add(m);
+                        keptSize.incrementAndGet();
+                        return null;
+                    }
+                    return m;
+                }
+                pos = dequeuePos.get();
+            } else if(dif < 0) {
+                // Slot not published yet. Queue is empty.
+                return null;
+            } else {
+                pos = dequeuePos.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package plog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+/*
+Ships batches of log messages to a PLog collector (see Collector) instead of writing them to a local
+database. Used by the journal replay thread.
+
+Client mode is turned on by setting collector.url. No log database or log server is set up then,
+so any number of processes on a host can log, and their logs are viewed on the collector.
+
+The journal is always on in client mode, and is the local buffer. A batch the collector doesn't take
+stays in the journal and is sent again, and unsent messages are kept across restarts. While the collector is down, or answers
+503 because its queue is full, the client waits and retries: after the time the collector asks for,
+or twice as long as the last time, from half a second up to collector.retry.max.millis. Meanwhile
+the journal grows, and once it is full the queue stops draining and its overflow policy applies.
+
+The sequence number of the last message shipped is kept in the journal directory, so messages
+shipped before a restart aren't sent again. It is kept with a random id of the journal, which the
+collector uses to recognize a batch sent again, e.g. after the process died before the answer came,
+so it isn't inserted twice. A new journal directory gets a new id.
+
+Set in plog.properties:
+
+collector.url=http://collector:50001/plog/ingest
+collector.token=                  (sent with each batch. The collector refuses batches without it)
+collector.timeout.millis=30000    (time to connect and to get an answer)
+collector.retry.max.millis=30000  (longest wait between attempts)
+node=                             (name of this process in the collected logs, defaults to the host name)
+*/
+class LogShipper {
+    private static final int REQUEST_BYTES = 4 * 1024 * 1024; // Messages are sent in requests of about this size, uncompressed.
+    private static final long RETRY_MILLIS = 500;
+
+    private final URL url;
+    private final String token;
+    private final int timeoutMillis;
+    private final long maxRetryMillis;
+    private final File checkpointFile; // Journal id and the sequence number of the last journaled message shipped.
+    private final long journal; // Random id of the journal. See Collector.
+    private long checkpoint;
+    private long requestBytes = REQUEST_BYTES; // Halved when the collector answers that a request is too large.
+    private long retryMillis = 0; // Wait before the next attempt. 0 after a success.
+    private int failures = 0; // Failed attempts in a row.
+    private final Counter shipped = Metrics.Counter("plog_shipped_total", "Messages shipped to the collector.");
+    private final Counter failed = Metrics.Counter("plog_ship_failures_total", "Failed attempts to ship a batch to the collector.");
+    private final Histogram shipMicros = Metrics.Histogram("plog_ship_micros", "", "Time to ship a batch to the collector.");
+
+    public LogShipper(File checkpointFile) throws IOException {
+        this.url = new URL(PLog.GetProperty("collector.url", "").trim());
+        this.token = PLog.GetProperty("collector.token", "").trim();
+        this.timeoutMillis = (int)Math.max(1, Math.min(Integer.MAX_VALUE, PLog.GetLongProperty("collector.timeout.millis", 30000)));
+        this.maxRetryMillis = Math.max(RETRY_MILLIS, PLog.GetLongProperty("collector.retry.max.millis", 30000));
+        this.checkpointFile = checkpointFile;
+
+        long[] saved = ReadCheckpoint(checkpointFile);
+        this.journal = saved != null ? saved[0] : new Random().nextLong();
+        this.checkpoint = saved != null ? saved[1] : 0;
+
+        System.out.println("Shipping logs to " + url + " as node " + PLog.NODE + ".");
+        if(token.length() == 0) {
+            System.out.println("collector.token isn't set. The collector will refuse the batches.");
+        }
+    }
+
+    /*
+    Returns true if client mode is set up in plog.properties.
+    */
+    public static boolean Enabled() {
+        return PLog.GetProperty("collector.url", "").trim().length() > 0;
+    }
+
+    /*
+    Returns the sequence number of the last journaled message shipped.
+    */
+    public long checkpoint() {
+        return checkpoint;
+    }
+
+    /*
+    Ship the messages, formatting them first. Returns false if they weren't all taken. Messages
+    the collector took are then removed from the list, so retrying the list doesn't send them again.
+    Journaled messages shipped before are skipped and removed from the list.
+    */
+    public boolean ship(List<Message> msgs) {
+        // After a restart the journal is replayed from its oldest segment. Skip what was shipped.
+        for(Iterator<Message> it = msgs.iterator(); it.hasNext(); ) {
+            Message m = it.next();
+            if(m.seq != 0 && m.seq <= checkpoint) {
+                it.remove();
+            }
+        }
+        if(msgs.isEmpty()) {
+            return true;
+        }
+
+        long started = System.nanoTime();
+        List<Message> sent = new ArrayList<Message>();
+        try {
+            int from = 0;
+            while(from < msgs.size()) {
+                // Fill a request.
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                int to = from;
+                long bytes = 0;
+                while(to < msgs.size() && (to == from || bytes < requestBytes)) {
+                    Message m = msgs.get(to++);
+                    m.format();
+                    bytes += 64 + m.logger.length() + (m.message != null ? m.message.length() : 0) + (m.trace != null ? m.trace.length() : 0);
+                }
+                List<Message> request = msgs.subList(from, to);
+
+                GZIPOutputStream gz = new GZIPOutputStream(buf);
+                Collector.Write(gz, PLog.NODE, journal, request);
+                gz.close();
+
+                try {
+                    post(buf.toByteArray());
+                } catch(TooLarge e) {
+                    if(to - from == 1) {
+                        throw new IOException("Message too large for the collector.");
+                    }
+                    // More than the collector takes at once. Send the same messages in smaller requests.
+                    requestBytes = Math.max(1, bytes / 2);
+                    continue;
+                }
+                sent.addAll(request);
+                from = to;
+            }
+        } catch(IOException e) {
+            failed.increment();
+            if(failures++ == 0) {
+                System.out.println("Couldn't ship logs to the collector: " + e.getMessage() + ". Retrying in the background.");
+            }
+            if(retryMillis == 0) {
+                retryMillis = RETRY_MILLIS;
+            } else if(!(e instanceof Busy)) {
+                retryMillis = Math.min(maxRetryMillis, retryMillis * 2);
+            }
+
+            shipped.add(sent.size());
+            msgs.removeAll(sent);
+            saveCheckpoint(sent);
+            return false;
+        }
+
+        if(failures > 0) {
+            System.out.println("Shipping logs to the collector again, after " + failures + (failures == 1 ? " failed attempt." : " failed attempts."));
+        }
+        failures = 0;
+        retryMillis = 0;
+        shipped.add(msgs.size());
+        shipMicros.record((System.nanoTime() - started) / 1000);
+        saveCheckpoint(msgs);
+        return true;
+    }
+
+    /*
+    Returns the time to wait before retrying a batch that wasn't taken.
+    */
+    public long retryMillis() {
+        return Math.max(RETRY_MILLIS, retryMillis);
+    }
+
+    /*
+    Returns the client counters, for display.
+    */
+    public Map<String, Object> describe() {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("url", url.toString());
+        map.put("node", PLog.NODE);
+        map.put("shipped", shipped.get());
+        map.put("failures", failed.get());
+        map.put("checkpoint", checkpoint);
+        map.put("shipMicros", shipMicros.describe());
+        return map;
+    }
+
+    /*
+    Send one request. Throws Busy if the collector's queue is full, and TooLarge if the request is
+    larger than the collector takes.
+    */
+    private void post(byte[] body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        conn.setConnectTimeout(timeoutMillis);
+        conn.setReadTimeout(timeoutMillis);
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "application/octet-stream");
+        conn.setRequestProperty("Content-Encoding", "gzip");
+        if(token.length() > 0) {
+            conn.setRequestProperty(Collector.TOKEN_HEADER, token);
+        }
+        conn.setFixedLengthStreamingMode(body.length);
+
+        OutputStream out = conn.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+
+        int code = conn.getResponseCode();
+
+        // Read the rest of the response, so the connection can be used again.
+        InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+        if(in != null) {
+            try {
+                while(in.read() >= 0) {}
+            } finally {
+                in.close();
+            }
+        }
+
+        if(code == 503) {
+            long after = RETRY_MILLIS;
+            try {
+                after = Long.parseLong(conn.getHeaderField("Retry-After").trim()) * 1000;
+            } catch(Exception e) {}
+            retryMillis = Math.max(RETRY_MILLIS, Math.min(maxRetryMillis, after));
+            throw new Busy();
+        }
+        if(code == 413) {
+            throw new TooLarge();
+        }
+        if(code / 100 != 2) {
+            throw new IOException("HTTP " + code + " from " + url);
+        }
+    }
+
+    /*
+    Save the highest sequence number of the shipped messages, with the journal id, if they were journaled.
+    */
+    private void saveCheckpoint(List<Message> msgs) {
+        long seq = checkpoint;
+        for(Message m : msgs) {
+            seq = Math.max(seq, m.seq);
+        }
+        if(seq == checkpoint) {
+            return;
+        }
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(checkpointFile, "rw");
+            try {
+                raf.seek(0);
+                raf.writeLong(journal);
+                raf.writeLong(seq);
+            } finally {
+                raf.close();
+            }
+            checkpoint = seq;
+        } catch(IOException e) {
+            System.out.println("Couldn't save " + checkpointFile + ": " + e);
+        }
+    }
+
+    /*
+    Returns the journal id and checkpoint saved in the file, or null if there are none.
+    */
+    private static long[] ReadCheckpoint(File f) throws IOException {
+        if(!f.exists() || f.length() < 16) {
+            return null;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            return new long[] { raf.readLong(), raf.readLong() };
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static class Busy extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Busy() {
+            super("Collector queue full");
+        }
+    }
+
+    private static class TooLarge extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLarge() {
+            super("Request too large for the collector");
+        }
+    }
+}
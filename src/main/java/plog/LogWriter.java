@@ -0,0 +1,442 @@
+package plog;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/*
+Writes batches of log messages to the database. Used only by the queue pump thread.
+
+The writer keeps one connection and one prepared insert statement open between batches. Each
+batch is inserted with addBatch / executeBatch in a single transaction, together with its counts in
+the summary rollup. If a batch fails, the
+transaction is rolled back and the connection is closed, so the next batch starts with a fresh
+connection.
+
+Stack traces are stored once per file in the trace table, by fingerprint (see Trace), and each
+message refers to its trace by id. The first text stored for a fingerprint is kept.
+
+With partitions (see Partitions), the connection is to the file of the current day or hour and is
+reopened when messages for another file arrive. A batch that spans files is written in one
+transaction per file. New files are created and set up here.
+
+Messages replayed from the Journal carry a sequence number. Each file's journal_checkpoint holds
+the highest one committed to it, updated in the same transaction, and messages up to it are
+skipped, so replaying a message twice doesn't insert it twice.
+
+Messages from other nodes (see Collector) carry the sequence number their node's journal gave
+them. Each file's ingest_checkpoint holds the highest one committed for each node journal, also in
+the same transaction, and messages up to the highest in any file are skipped, so a batch a node
+sends again, e.g. after the collector restarted, isn't inserted twice.
+
+SQLite pragmas for the writer connection can be set in plog.properties with a "sqlite." prefix,
+for example:
+
+sqlite.synchronous=NORMAL
+sqlite.cache_size=-16000
+sqlite.temp_store=MEMORY
+sqlite.wal_autocheckpoint=1000
+
+synchronous defaults to NORMAL (safe in WAL mode), temp_store to MEMORY, and busy_timeout to 5000.
+*/
+class LogWriter {
+    private Partitions.Partition partition = null; // File the connection is open on.
+    private Connection c = null;
+    private PreparedStatement insert = null;
+    private PreparedStatement lastId = null;
+    private PreparedStatement insertLogger = null;
+    private PreparedStatement selectLogger = null;
+    private PreparedStatement insertNode = null;
+    private PreparedStatement selectNode = null;
+    private PreparedStatement insertTrace = null;
+    private PreparedStatement selectTrace = null;
+    private PreparedStatement updateCheckpoint = null;
+    private PreparedStatement updateIngest = null;
+    private long checkpoint = 0; // Journal sequence number of the last message committed to the file.
+    private Rollup rollup = null;
+    private final Map<String, Long> loggerIds = new HashMap<String, Long>(); // Logger dictionary cache. Cleared on rollback and when the connection closes.
+    private final Map<String, Long> nodeIds = new HashMap<String, Long>(); // Node dictionary cache. Same as loggerIds.
+    private final Map<String, Long> traceIds = new HashMap<String, Long>(); // Trace ids by fingerprint, for one transaction. The retention job deletes traces no message refers to anymore.
+    private final Map<String, String> fingerprints = new HashMap<String, String>(); // Fingerprints by trace text, for one transaction.
+    private Map<String, Long> ingested = null; // Highest sequence number committed by node journal, in any file. Loaded on first use.
+    private final Map<String, Long> committed = new HashMap<String, Long>(); // The same, for the files committed by the current write.
+
+    /*
+    Insert the messages in one transaction for each partition they belong to. On failure the
+    transaction is rolled back, the connection is closed, and the exception is thrown. The messages
+    of partitions committed before the failure are removed from the list, so retrying the list
+    doesn't insert them twice. Without partitions there is one transaction, and none of the
+    messages are inserted. Journaled messages that were already committed are skipped and removed
+    from the list.
+    */
+    public void write(List<Message> msgs) throws SQLException {
+        // Messages from other nodes are compared with what was committed before this write, since
+        // a node's messages can be split across files out of order. See ingest().
+        committed.clear();
+
+        // Group by partition, in order of first appearance. Messages near the end of a day or hour
+        // can arrive slightly out of order, so this keeps the files from being switched back and forth.
+        Map<Partitions.Partition, List<Message>> groups = new LinkedHashMap<Partitions.Partition, List<Message>>();
+        for(Message m : msgs) {
+            Partitions.Partition p = partition != null && partition.contains(m.time) ? partition : Partitions.For(m.time);
+            List<Message> group = groups.get(p);
+            if(group == null) {
+                group = new ArrayList<Message>();
+                groups.put(p, group);
+            }
+            group.add(m);
+        }
+
+        if(groups.size() == 1) {
+            write(groups.keySet().iterator().next(), msgs);
+            ingested(committed);
+            return;
+        }
+
+        // Messages are compared by identity.
+        Set<Message> done = new HashSet<Message>(); // Committed or skipped.
+        Set<Message> written = new HashSet<Message>();
+        try {
+            for(Map.Entry<Partitions.Partition, List<Message>> e : groups.entrySet()) {
+                List<Message> group = e.getValue();
+                List<Message> all = new ArrayList<Message>(group);
+                write(e.getKey(), group);
+                done.addAll(all);
+                written.addAll(group);
+            }
+        } catch(SQLException e) {
+            msgs.removeAll(done);
+            throw e;
+        }
+        msgs.retainAll(written);
+        ingested(committed);
+    }
+
+    /*
+    Insert messages of one partition in one transaction. Journaled messages already committed are
+    removed from the list.
+    */
+    private void write(Partitions.Partition p, List<Message> msgs) throws SQLException {
+        try {
+            if(c == null || !p.equals(partition)) {
+                close();
+                open(p);
+            }
+
+            long seq = checkpoint;
+            Map<String, Long> sources = new HashMap<String, Long>(); // Highest sequence number by node journal, in this transaction.
+            for(Iterator<Message> it = msgs.iterator(); it.hasNext(); ) {
+                Message m = it.next();
+                if(m.seq != 0 && m.seq <= checkpoint || m.source != null && m.sourceSeq <= ingested(m.source, sources)) {
+                    it.remove();
+                } else {
+                    seq = Math.max(seq, m.seq);
+                    if(m.source != null) {
+                        sources.put(m.source, m.sourceSeq);
+                    }
+                }
+            }
+            if(msgs.isEmpty()) {
+                return;
+            }
+
+            traceIds.clear();
+            fingerprints.clear();
+            for(Message m : msgs) {
+                m.format();
+
+                long loggerId = Id(loggerIds, insertLogger, selectLogger, m.logger);
+                insert.setLong(1, m.time);
+                insert.setInt(2, m.level.severity);
+                insert.setLong(3, loggerId);
+                insert.setString(4, m.message);
+                long nodeId = 0;
+                if(m.node != null) {
+                    nodeId = Id(nodeIds, insertNode, selectNode, m.node);
+                    insert.setLong(5, nodeId);
+                } else {
+                    insert.setNull(5, Types.INTEGER);
+                }
+                if(m.trace != null) {
+                    insert.setLong(6, traceId(m));
+                } else {
+                    insert.setNull(6, Types.INTEGER);
+                }
+                insert.addBatch();
+
+                rollup.add(m.time, m.level.severity, loggerId, nodeId);
+            }
+
+            insert.executeBatch();
+            setIds(msgs);
+            rollup.flush();
+            if(seq > checkpoint) {
+                updateCheckpoint.setLong(1, seq);
+                updateCheckpoint.executeUpdate();
+            }
+            for(Map.Entry<String, Long> e : sources.entrySet()) {
+                updateIngest.setString(1, e.getKey());
+                updateIngest.setLong(2, e.getValue());
+                updateIngest.addBatch();
+            }
+            if(!sources.isEmpty()) {
+                updateIngest.executeBatch();
+            }
+            c.commit();
+            checkpoint = seq;
+            for(Map.Entry<String, Long> e : sources.entrySet()) {
+                Long last = committed.get(e.getKey());
+                if(last == null || last < e.getValue()) {
+                    committed.put(e.getKey(), e.getValue());
+                }
+            }
+        } catch(SQLException e) {
+            // Rollback transaction and reconnect on the next batch.
+            try { if(insert != null) insert.clearBatch(); } catch(SQLException ex) {}
+            try { if(updateIngest != null) updateIngest.clearBatch(); } catch(SQLException ex) {}
+            if(rollup != null) rollup.clear();
+            try { if(c != null) c.rollback(); } catch(SQLException ex) {}
+            close(); // Ids added in this transaction were rolled back too, so the logger cache is cleared.
+            throw e;
+        }
+    }
+
+    /*
+    Returns the highest sequence number committed from a node journal before this write, or in
+    this transaction.
+    */
+    private long ingested(String source, Map<String, Long> sources) throws SQLException {
+        if(ingested == null) {
+            ingested = IngestCheckpoints();
+        }
+
+        Long last = sources.get(source);
+        if(last == null) {
+            last = ingested.get(source);
+        }
+        return last != null ? last : 0;
+    }
+
+    /*
+    Note the sequence numbers committed by a write, once it is done. If a write fails part way,
+    the messages of the files committed before are removed from the list and aren't retried, so
+    their numbers don't need to be noted.
+    */
+    private void ingested(Map<String, Long> sources) {
+        if(ingested != null) {
+            ingested.putAll(sources);
+        }
+    }
+
+    /*
+    Returns the highest sequence number committed from each node journal, in any database file.
+    */
+    static Map<String, Long> IngestCheckpoints() throws SQLException {
+        Map<String, Long> seqs = new HashMap<String, Long>();
+        for(Partitions.Partition p : Partitions.List(Long.MIN_VALUE, Long.MAX_VALUE)) {
+            Connection c = PLog.GetLogConnection(p.path);
+            try {
+                PreparedStatement s = c.prepareStatement("select journal, seq from ingest_checkpoint");
+                try {
+                    ResultSet rs = s.executeQuery();
+                    while(rs.next()) {
+                        Long last = seqs.get(rs.getString(1));
+                        if(last == null || last < rs.getLong(2)) {
+                            seqs.put(rs.getString(1), rs.getLong(2));
+                        }
+                    }
+                } finally {
+                    s.close();
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return seqs;
+    }
+
+    /*
+    Returns the id of the message's trace, adding it if needed, and sets the message's fingerprint.
+    */
+    private long traceId(Message m) throws SQLException {
+        String fingerprint = fingerprints.get(m.trace);
+        if(fingerprint == null) {
+            fingerprint = Trace.Fingerprint(m.trace);
+            fingerprints.put(m.trace, fingerprint);
+        }
+        m.fingerprint = fingerprint;
+
+        insertTrace.setString(2, m.trace);
+        return Id(traceIds, insertTrace, selectTrace, fingerprint);
+    }
+
+    /*
+    Set the ids the batch's rows were given. This writer is the only one inserting messages while
+    the transaction is open, and new rows get the next id after the largest one, so the ids of the
+    batch are the ones up to the last inserted. Must be called before other inserts.
+    */
+    private void setIds(List<Message> msgs) throws SQLException {
+        ResultSet rs = lastId.executeQuery();
+        try {
+            long id = rs.next() ? rs.getLong(1) : 0;
+            for(int a = msgs.size() - 1; a >= 0; a--) {
+                msgs.get(a).id = id--;
+            }
+        } finally {
+            rs.close();
+        }
+    }
+
+    /*
+    Close the connection. The next write will reopen it.
+    */
+    public void close() {
+        try { if(insert != null) insert.close(); } catch(SQLException e) {}
+        try { if(lastId != null) lastId.close(); } catch(SQLException e) {}
+        try { if(insertLogger != null) insertLogger.close(); } catch(SQLException e) {}
+        try { if(selectLogger != null) selectLogger.close(); } catch(SQLException e) {}
+        try { if(insertNode != null) insertNode.close(); } catch(SQLException e) {}
+        try { if(selectNode != null) selectNode.close(); } catch(SQLException e) {}
+        try { if(insertTrace != null) insertTrace.close(); } catch(SQLException e) {}
+        try { if(selectTrace != null) selectTrace.close(); } catch(SQLException e) {}
+        try { if(updateCheckpoint != null) updateCheckpoint.close(); } catch(SQLException e) {}
+        try { if(updateIngest != null) updateIngest.close(); } catch(SQLException e) {}
+        if(rollup != null) rollup.close();
+        try { if(c != null) c.close(); } catch(SQLException e) {}
+        insert = null;
+        lastId = null;
+        rollup = null;
+        insertLogger = null;
+        selectLogger = null;
+        insertNode = null;
+        selectNode = null;
+        insertTrace = null;
+        selectTrace = null;
+        updateCheckpoint = null;
+        updateIngest = null;
+        c = null;
+        partition = null;
+        loggerIds.clear(); // Logger and node ids are per database file.
+        nodeIds.clear();
+        traceIds.clear();
+        fingerprints.clear();
+    }
+
+    private void open(Partitions.Partition p) throws SQLException {
+        try {
+            File file = new File(p.path);
+            if(!file.exists()) {
+                // New partition. Set it up under another name first, so the log server never sees
+                // a file without tables.
+                File setup = new File(p.path + ".new");
+                PLog.SetupDatabase(setup.getPath());
+                if(!setup.renameTo(file)) {
+                    throw new SQLException("Couldn't create " + file);
+                }
+            }
+
+            c = PLog.GetLogConnection(p.path);
+            partition = p;
+        } catch(RuntimeException e) {
+            throw new SQLException("Couldn't open log database.", e);
+        }
+
+        // Apply pragmas.
+        Statement s = c.createStatement();
+        try {
+            for(Map.Entry<String, String> pragma : Pragmas().entrySet()) {
+                s.execute("PRAGMA " + pragma.getKey() + "=" + pragma.getValue());
+            }
+        } finally {
+            s.close();
+        }
+
+        c.setAutoCommit(false);
+        insert = c.prepareStatement("insert into log(ts, level, logger_id, message, node_id, trace_id) values(?, ?, ?, ?, ?, ?)");
+        lastId = c.prepareStatement("select last_insert_rowid()");
+        insertLogger = c.prepareStatement("insert or ignore into logger(name) values(?)");
+        selectLogger = c.prepareStatement("select id from logger where name = ?");
+        insertNode = c.prepareStatement("insert or ignore into node(name) values(?)");
+        selectNode = c.prepareStatement("select id from node where name = ?");
+        insertTrace = c.prepareStatement("insert or ignore into trace(fingerprint, text) values(?, ?)");
+        selectTrace = c.prepareStatement("select id from trace where fingerprint = ?");
+        updateCheckpoint = c.prepareStatement("update journal_checkpoint set seq = ?");
+        updateIngest = c.prepareStatement("insert or replace into ingest_checkpoint(journal, seq) values(?, ?)");
+        rollup = new Rollup(c);
+        checkpoint = Checkpoint(c);
+    }
+
+    /*
+    Returns the journal sequence number of the last message committed to the database file.
+    */
+    static long Checkpoint(Connection c) throws SQLException {
+        PreparedStatement s = c.prepareStatement("select max(seq) from journal_checkpoint");
+        try {
+            ResultSet rs = s.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        } finally {
+            s.close();
+        }
+    }
+
+    /*
+    Returns the id of a name in the logger, node or trace dictionary, adding it if needed. For traces
+    the text must be bound to the insert first.
+    */
+    private static long Id(Map<String, Long> ids, PreparedStatement insert, PreparedStatement select, String name) throws SQLException {
+        Long id = ids.get(name);
+        if(id == null) {
+            insert.setString(1, name);
+            insert.executeUpdate();
+
+            select.setString(1, name);
+            ResultSet rs = select.executeQuery();
+            try {
+                rs.next();
+                id = rs.getLong(1);
+            } finally {
+                rs.close();
+            }
+
+            ids.put(name, id);
+        }
+
+        return id;
+    }
+
+    /*
+    Returns the writer pragmas from plog.properties. Names and values are restricted to simple
+    words and numbers since they can't be bound as statement parameters.
+    */
+    private static Map<String, String> Pragmas() {
+        Map<String, String> pragmas = new TreeMap<String, String>();
+        pragmas.put("synchronous", "NORMAL");
+        pragmas.put("temp_store", "MEMORY");
+        pragmas.put("busy_timeout", "5000"); // Wait for the retention job or migration instead of failing the batch.
+
+        for(String key : PLog.GetPropertyNames("sqlite.")) {
+            String name = key.substring("sqlite.".length()).trim();
+            String value = PLog.GetProperty(key, "").trim();
+            if(name.matches("[A-Za-z_]+") && value.matches("-?[A-Za-z0-9_]+")) {
+                pragmas.put(name, value);
+            } else {
+                System.out.println("Invalid " + key + " in plog.properties: " + value);
+            }
+        }
+
+        return pragmas;
+    }
+}
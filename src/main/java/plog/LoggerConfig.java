@@ -0,0 +1,245 @@
+package plog;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+Settings shared by every PLog instance with the same logger name.
+
+The minimum level is configured in plog.properties. Messages below it are discarded before
+any work is done. The default is DEBUG (everything is logged).
+
+level=INFO              (all loggers)
+level.main=DEBUG        (logger "main" only)
+
+Call site capture is configured in plog.properties. The value is "all", "none", or a comma
+separated list of levels. Capturing walks the whole stack on the caller thread, which costs more
+than the rest of the log call, so by default only warnings and errors are captured:
+
+callsite=WARN,ERROR     (all loggers)
+callsite.main=none      (logger "main" only)
+
+Messages can be rate limited, per call site (see RateLimit). The value is messages per second, and
+0 is no limit:
+
+ratelimit=0             (all loggers)
+ratelimit.main=100      (logger "main" only)
+ratelimit.burst=100     (messages a call site can log at once, defaults to one second's worth)
+
+All can be changed at runtime, see SetLevel, setCapture and setRateLimit. SetLevel, SetCaptureAll
+and SetRateLimitAll also change the setting of loggers created later without one of their own in
+plog.properties.
+*/
+class LoggerConfig {
+    private static final ConcurrentMap<String, LoggerConfig> configs = new ConcurrentHashMap<String, LoggerConfig>();
+    private static Message.Level globalLevel = ParseLevel(PLog.GetProperty("level", "DEBUG"), Message.Level.DEBUG); // Guarded by configs.
+    private static String globalCapture = PLog.GetProperty("callsite", "WARN,ERROR"); // Guarded by configs.
+    private static double globalRateLimit = RateLimit.GlobalPerSecond(); // Guarded by configs.
+
+    private final String name; // Logger name.
+    private Message.Level level; // Minimum level set for this logger, or null to use the global level. Guarded by configs.
+    private volatile int threshold; // Minimum severity of the effective level. Read on every log call.
+    private volatile int captureMask; // Bit set of Message.Level ordinals for which the call site is captured.
+    private volatile RateLimit rateLimit; // Null if the logger isn't rate limited. Read on every log call.
+
+    /*
+    Caller holds the configs lock.
+    */
+    private LoggerConfig(String name) {
+        this.name = name;
+
+        String level = PLog.GetProperty("level." + name, null);
+        if(level != null) {
+            this.level = ParseLevel(level, null);
+        }
+
+        this.captureMask = ParseLevels(PLog.GetProperty("callsite." + name, globalCapture));
+        this.rateLimit = RateLimit.ForLogger(name, globalRateLimit);
+    }
+
+    /*
+    Returns the shared config for the given logger name.
+    */
+    public static LoggerConfig get(String name) {
+        LoggerConfig config = configs.get(name);
+        if(config == null) {
+            synchronized(configs) {
+                config = configs.get(name);
+                if(config == null) {
+                    config = new LoggerConfig(name);
+                    config.update();
+                    configs.put(name, config);
+                }
+            }
+        }
+
+        return config;
+    }
+
+    /*
+    Returns true if messages at the given level are logged. Costs one volatile read.
+    */
+    public boolean enabled(Message.Level level) {
+        return level.severity >= threshold;
+    }
+
+    /*
+    Returns true if the call site should be captured for messages at the given level.
+    */
+    public boolean captures(Message.Level level) {
+        return (captureMask & (1 << level.ordinal())) != 0;
+    }
+
+    /*
+    Set the levels at which the call site is captured. See ParseLevels for the format.
+    */
+    public void setCapture(String levels) {
+        this.captureMask = ParseLevels(levels);
+    }
+
+    /*
+    Set call site capture for every logger, including those created later.
+    */
+    public static void SetCaptureAll(String levels) {
+        synchronized(configs) {
+            globalCapture = levels;
+            for(LoggerConfig config : configs.values()) {
+                config.setCapture(levels);
+            }
+        }
+    }
+
+    /*
+    Returns the rate limit, or null if there is none.
+    */
+    public RateLimit rateLimit() {
+        return rateLimit;
+    }
+
+    /*
+    Set the rate limit, in messages per second from each call site. 0 removes the limit. The
+    counts start over.
+    */
+    public void setRateLimit(double perSecond) {
+        this.rateLimit = RateLimit.Create(perSecond);
+    }
+
+    /*
+    Set the rate limit of every logger, including those created later.
+    */
+    public static void SetRateLimitAll(double perSecond) {
+        synchronized(configs) {
+            globalRateLimit = perSecond;
+            for(LoggerConfig config : configs.values()) {
+                config.setRateLimit(perSecond);
+            }
+        }
+    }
+
+    /*
+    Set the minimum level of a logger. A null logger name sets the global level, which is used
+    by every logger without a level of its own. A null level removes the logger's own level.
+    */
+    public static void SetLevel(String logger, Message.Level level) {
+        synchronized(configs) {
+            if(logger == null) {
+                if(level != null) {
+                    globalLevel = level;
+                }
+
+                for(LoggerConfig config : configs.values()) {
+                    config.update();
+                }
+            } else {
+                LoggerConfig config = get(logger);
+                config.level = level;
+                config.update();
+            }
+        }
+    }
+
+    /*
+    Returns the current settings of every logger, for display.
+    */
+    public static Map<String, Object> Describe() {
+        synchronized(configs) {
+            Map<String, Object> loggers = new TreeMap<String, Object>();
+            for(LoggerConfig config : configs.values()) {
+                Map<String, Object> m = new TreeMap<String, Object>();
+                m.put("level", config.level != null ? config.level.toString() : "default");
+                m.put("callsite", DescribeCapture(config.captureMask));
+                RateLimit limit = config.rateLimit;
+                m.put("ratelimit", limit != null ? (Object)limit.perSecond : "none");
+                loggers.put(config.name, m);
+            }
+
+            Map<String, Object> map = new TreeMap<String, Object>();
+            map.put("level", globalLevel.toString());
+            map.put("callsite", DescribeCapture(ParseLevels(globalCapture)));
+            map.put("ratelimit", globalRateLimit > 0 ? (Object)globalRateLimit : "none");
+            map.put("loggers", loggers);
+            return map;
+        }
+    }
+
+    /*
+    Recompute the effective threshold. Caller holds the configs lock.
+    */
+    private void update() {
+        this.threshold = (level != null ? level : globalLevel).severity;
+    }
+
+    /*
+    Returns the levels in a bit set as a comma separated list.
+    */
+    private static String DescribeCapture(int mask) {
+        StringBuilder sb = new StringBuilder();
+        for(Message.Level level : Message.Level.values()) {
+            if((mask & (1 << level.ordinal())) != 0) {
+                if(sb.length() > 0) {
+                    sb.append(",");
+                }
+                sb.append(level);
+            }
+        }
+
+        return sb.length() > 0 ? sb.toString() : "none";
+    }
+
+    /*
+    Parse a level name. Returns the default if the name isn't a level.
+    */
+    public static Message.Level ParseLevel(String level, Message.Level defaultLevel) {
+        try {
+            return Message.Level.valueOf(level.trim().toUpperCase());
+        } catch(IllegalArgumentException e) {
+            System.out.println("Unknown log level: " + level);
+            return defaultLevel;
+        }
+    }
+
+    /*
+    Parse "all", "none" (also "on" / "off"), or a comma separated list of level names into a bit set.
+    */
+    private static int ParseLevels(String levels) {
+        String s = levels.trim();
+        if(s.equalsIgnoreCase("all") || s.equalsIgnoreCase("on")) {
+            return (1 << Message.Level.values().length) - 1;
+        }
+        if(s.equalsIgnoreCase("none") || s.equalsIgnoreCase("off") || s.length() == 0) {
+            return 0;
+        }
+
+        int mask = 0;
+        for(String level : s.split(",")) {
+            Message.Level l = ParseLevel(level, null);
+            if(l != null) {
+                mask |= 1 << l.ordinal();
+            }
+        }
+
+        return mask;
+    }
+}
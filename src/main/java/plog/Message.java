@@ -1,43 +1,128 @@
-package plog;
-
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
-import java.sql.Timestamp;
-
-public class Message {
-    protected enum Level {
-        INFO,
-        WARN,
-        ERROR,
-        DEBUG
-    }
-    
-    private static DateFormat df;
-    
-    public String ts;
-    public Level level;
-    public String logger;
-    public String message;
-    
-    static {
-        // Set the format of the timestamp string, and timezone to UTC.
-        df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-        df.setTimeZone(TimeZone.getTimeZone("UTC"));
-    }
-    
-    public Message() {
-        
-    }
-    
-    public Message(Level level, String logger, String message) {
-        // Get the calling method / line number.
-        StackTraceElement ste = Thread.currentThread().getStackTrace()[3];
-        
-        this.ts = df.format(new Timestamp(System.currentTimeMillis()));
-        this.level = level;
-        this.logger = logger;
-        this.message = ste.toString() + " - " + message;
-    }
+package plog;
+
+import java.util.Arrays;
+
+public class Message {
+    protected enum Level {
+        INFO(1),
+        WARN(2),
+        ERROR(3),
+        DEBUG(0);
+
+        final int severity; // Used for level thresholds: DEBUG < INFO < WARN < ERROR. Also the level code stored in the database.
+
+        Level(int severity) {
+            this.severity = severity;
+        }
+
+        /*
+        Returns the level with the given severity.
+        */
+        static Level FromSeverity(int severity) {
+            for(Level level : values()) {
+                if(level.severity == severity) {
+                    return level;
+                }
+            }
+
+            throw new IllegalArgumentException("Unknown level code: " + severity);
+        }
+    }
+
+    public String ts; // Display timestamp. Set when messages are read back from the database.
+    public Level level;
+    public String logger;
+    public String message;
+    public String node; // Process that logged the message. See PLog.NODE and Collector.
+    public String trace; // Stack trace of the exception logged with the message, if any. See Trace.
+
+    /*
+    Raw values recorded on the caller thread. The message string is built from these by format(),
+    on the queue pump thread.
+    */
+    transient long time; // Epoch millis. Stored as is in the database.
+    transient long id; // Database id. Set when messages are inserted, or read back from the database.
+    transient long seq; // Journal sequence number. 0 if the message wasn't journaled. See Journal.
+    transient Object[] args; // Arguments for the {} placeholders in message. Null once formatted.
+    transient CallSite site; // Call site of the log call. Null if not captured, or once formatted.
+    transient Throwable thrown; // Exception logged with the message. Null if none, or once formatted.
+    transient long limited; // Messages from the call site dropped by its rate limit before this one. See RateLimit.
+    transient String fingerprint; // Fingerprint of the trace. Set when messages are inserted. See Trace.
+    transient String source; // Node journal a collected message came from, or null. See Collector.
+    transient long sourceSeq; // Sequence number the message has in its source journal.
+
+    public Message() {
+
+    }
+
+    public Message(Level level, String logger, String message, Object[] args, CallSite site) {
+        this.time = System.currentTimeMillis();
+        this.node = PLog.NODE;
+        this.level = level;
+        this.logger = logger;
+        this.message = message;
+        this.args = args;
+        this.site = site;
+    }
+
+    /*
+    Build the message string: fill in the {} placeholders, note the messages dropped by the rate
+    limit, add the exception and cause messages and render the trace if an exception was logged,
+    and prefix the calling method / line number if it was captured.
+    Called on the queue pump thread so this work is kept off the caller thread. Calling it
+    again has no effect.
+    */
+    public void format() {
+        if(args != null) {
+            message = Format(message, args);
+            args = null;
+        }
+
+        if(limited > 0) {
+            message = message + " (" + limited + (limited == 1 ? " message" : " messages") + " from this call site dropped by the rate limit before this one)";
+            limited = 0;
+        }
+
+        if(thrown != null) {
+            String[] rendered = Trace.Render(thrown);
+            message = message != null ? message + "\n" + rendered[0] : rendered[0];
+            trace = rendered[1];
+            thrown = null;
+        }
+
+        if(site != null) {
+            message = site.describe() + " - " + message;
+            site = null;
+        }
+    }
+
+    /*
+    Replace each {} in the pattern with the next argument. Placeholders without a matching
+    argument are left as is, and extra arguments are ignored.
+    */
+    private static String Format(String pattern, Object[] args) {
+        if(pattern == null) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder(pattern.length() + 16 * args.length);
+        int start = 0;
+        for(Object arg : args) {
+            int i = pattern.indexOf("{}", start);
+            if(i < 0) {
+                break;
+            }
+
+            sb.append(pattern, start, i);
+            if(arg instanceof Object[]) {
+                sb.append(Arrays.deepToString((Object[])arg));
+            } else {
+                sb.append(arg);
+            }
+            start = i + 2;
+        }
+        sb.append(pattern, start, pattern.length());
+
+        return sb.toString();
+    }
 }
\ No newline at end of file
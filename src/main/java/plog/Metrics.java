@@ -0,0 +1,178 @@
+package plog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+Registry of PLog's own metrics, for watching the log pipeline in production. The log server shows
+them at /plog/metrics as JSON and at /plog/metrics/prometheus in the Prometheus text format, and
+the web page has a panel with the main ones.
+
+Metrics are registered at startup, and the code recording them keeps the counter or histogram, so
+recording never looks anything up. Counters are striped (see Counter) and histograms are lock free
+(see Histogram), so recording doesn't allocate or lock. Values kept elsewhere, like the queue depth
+or the size of the database files, are registered as a Value and read when the metrics are shown.
+
+Metric names follow the Prometheus conventions: counters end in _total and units are part of the
+name. A metric can have several series with different labels, e.g. endpoint="logs".
+*/
+class Metrics {
+    /*
+    A value read when the metrics are shown.
+    */
+    interface Value {
+        long get();
+    }
+
+    private static final Map<String, Family> FAMILIES = new LinkedHashMap<String, Family>(); // By name, in registration order.
+
+    /*
+    Register a counter. Returns the counter already registered under the name, if any.
+    */
+    public static Counter Counter(String name, String help) {
+        return (Counter)Register(name, "counter", help, "", new Counter());
+    }
+
+    /*
+    Register a counter kept elsewhere.
+    */
+    public static void Counter(String name, String labels, String help, Value value) {
+        Register(name, "counter", help, labels, value);
+    }
+
+    public static void Gauge(String name, String labels, String help, Value value) {
+        Register(name, "gauge", help, labels, value);
+    }
+
+    /*
+    Register a histogram. Returns the histogram already registered under the name and labels, if any.
+    */
+    public static Histogram Histogram(String name, String labels, String help) {
+        return Histogram(name, labels, help, new Histogram());
+    }
+
+    public static Histogram Histogram(String name, String labels, String help, Histogram h) {
+        return (Histogram)Register(name, "histogram", help, labels, h);
+    }
+
+    /*
+    Returns the metrics by name, with a series of labeled metrics by its labels, for display.
+    */
+    public static synchronized Map<String, Object> Describe() {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        for(Family f : FAMILIES.values()) {
+            Map<String, Object> series = new TreeMap<String, Object>();
+            for(Map.Entry<String, Object> e : f.series.entrySet()) {
+                Object value = Read(e.getValue());
+                if(value != null) {
+                    series.put(e.getKey(), value);
+                }
+            }
+
+            if(series.size() == 1 && series.containsKey("")) {
+                map.put(f.name, series.get(""));
+            } else {
+                map.put(f.name, series);
+            }
+        }
+        return map;
+    }
+
+    /*
+    Returns the metrics in the Prometheus text exposition format. Histogram buckets are cumulative
+    and go up to the highest non-empty bucket, so the set of buckets only grows.
+    */
+    public static synchronized String Prometheus() {
+        StringBuilder sb = new StringBuilder();
+        for(Family f : FAMILIES.values()) {
+            sb.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            sb.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+
+            for(Map.Entry<String, Object> e : f.series.entrySet()) {
+                String labels = e.getKey();
+                Object source = e.getValue();
+
+                if(source instanceof Histogram) {
+                    Histogram h = (Histogram)source;
+                    String prefix = labels.length() > 0 ? labels + "," : "";
+
+                    int highest = -1;
+                    long[] counts = new long[Histogram.BUCKETS];
+                    for(int a = 0; a < Histogram.BUCKETS; a++) {
+                        counts[a] = h.bucket(a);
+                        if(counts[a] > 0) {
+                            highest = a;
+                        }
+                    }
+
+                    // The count is the sum of the buckets read, so it matches the +Inf bucket.
+                    long count = 0;
+                    for(int a = 0; a <= highest; a++) {
+                        count += counts[a];
+                        sb.append(f.name).append("_bucket{").append(prefix).append("le=\"").append(Histogram.UpperBound(a)).append("\"} ").append(count).append('\n');
+                    }
+                    sb.append(f.name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(count).append('\n');
+                    sb.append(f.name).append("_sum").append(Braces(labels)).append(' ').append(h.sum()).append('\n');
+                    sb.append(f.name).append("_count").append(Braces(labels)).append(' ').append(count).append('\n');
+                } else {
+                    Object value = Read(source);
+                    if(value != null) {
+                        sb.append(f.name).append(Braces(labels)).append(' ').append(value).append('\n');
+                    }
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static synchronized Object Register(String name, String type, String help, String labels, Object source) {
+        Family f = FAMILIES.get(name);
+        if(f == null) {
+            f = new Family(name, type, help);
+            FAMILIES.put(name, f);
+        }
+
+        Object existing = f.series.get(labels);
+        if(existing != null) {
+            return existing;
+        }
+
+        f.series.put(labels, source);
+        return source;
+    }
+
+    /*
+    Returns the current value of a metric, or null if it can't be read.
+    */
+    private static Object Read(Object source) {
+        try {
+            if(source instanceof Counter) {
+                return ((Counter)source).get();
+            } else if(source instanceof Histogram) {
+                return ((Histogram)source).describe();
+            } else {
+                return ((Value)source).get();
+            }
+        } catch(RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String Braces(String labels) {
+        return labels.length() > 0 ? "{" + labels + "}" : "";
+    }
+
+    private static class Family {
+        final String name;
+        final String type;
+        final String help;
+        final Map<String, Object> series = new LinkedHashMap<String, Object>(); // Counter, Histogram or Value, by labels.
+
+        Family(String name, String type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+        }
+    }
+}
@@ -1,352 +1,1152 @@
-package plog;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.TimeZone;
-import java.sql.Timestamp;
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.util.Properties;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-
-/*
-PLog is used for simple logging and provides a web interface at:
-http://localhost:50001/plog/
-
-The logs are stored in a SQLite database.
-*/
-public class PLog {
-    private static final Properties properties = new Properties();
-    private static String LOG_DIR = "./plog"; // Log directory for database file.
-    protected static String LOG_NAME = "plog"; // Log name. Will be used as the database name and context root for requests.
-    
-    private static BlockingQueue Q = new LinkedBlockingQueue(); // Holds log messages prior to database insertion.
-    private static boolean Q_PUMP = true; // Process log queue while true.
-    private static Thread QPump = null; // The log queue processing thread.
-    private static PServer Server = null; // HttpServer that serves log messages on request.
-    
-    private String name; // The name of this logger.
-    
-    /*
-    Static initializer.
-    */
-    static {
-        try {
-            // Load application properties, if exists.
-            InputStream is = new FileInputStream("./plog.properties");
-            PLog.properties.load(is);
-            is.close();
-            
-            // Set log directory from property file.
-            String dir = PLog.properties.getProperty("log.path");
-            if(dir != null) {
-                PLog.LOG_DIR = dir;
-                System.out.println("Using PLog.LOG_DIR=" + dir);
-            }
-        } catch(Exception e) {
-            System.out.println("Couldn't load plog.properties.");
-        }
-        
-        try {
-            // Create log directory (recursively) in case it doesn't exist.
-            new File(PLog.LOG_DIR).mkdirs();
-            
-            // Setup the database if it hasn't been created.
-            SetupDatabase();
-            
-            // Start the log queue processor.
-            StartQPump();
-            
-            // Start log server.
-            Server = new PServer();
-            
-            // Load sqlite driver.
-            Class.forName("org.sqlite.JDBC").newInstance();
-        } catch(Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-    
-    public static void main(String[] args) throws Exception {
-        final java.util.Random ran = new java.util.Random();
-        
-        final PLog log = new PLog("main");
-        final PLog trace = new PLog("trace");
-        
-        for(int a = 0; a < 1000000; a++) {
-            double i = Math.random();
-            if(i < .05) {
-                log.debug("Message " + a + ". This is a debug log message.");
-            } else if(i < .2) {
-                try {
-                    Integer.parseInt("a", 10); // Generate an error.
-                } catch(Exception e) {
-                    log.error("Message " + a + ". Error!");
-                    trace.error("Oops (message " + a + ")", e);
-                }
-            } else if(i < .3) {
-                log.warn("Warning, this is message " + a);
-            } else {
-                log.info("Message " + a);
-            }
-            
-            Thread.sleep(1000);
-        }
-        
-        PLog.Shutdown();
-    }
-    
-    /*
-    Create a logger with the given name.
-    */
-    public PLog(String name) {
-        this.name = name;
-    }
-    
-    public void info(String message) {
-        Message m = new Message(Message.Level.INFO, name, message);
-        log(m);
-    }
-    
-    public void warn(String message) {
-        Message m = new Message(Message.Level.WARN, name, message);
-        log(m);
-    }
-    
-    public void warn(String message, Throwable t) {
-        String spaces = "";
-        StackTraceElement[] stack = t.getStackTrace();
-        for(int a = 0; a < stack.length; a++) {
-            StackTraceElement ste = stack[a];
-            spaces += "  ";
-            message += "\n" + spaces + ste.toString();
-        }
-        
-        Message m = new Message(Message.Level.WARN, name, message);
-        log(m);
-    }
-    
-        public void debug(String message) {
-        Message m = new Message(Message.Level.DEBUG, name, message);
-        log(m);
-    }
-    
-    public void debug(String message, Throwable t) {
-        String spaces = "";
-        StackTraceElement[] stack = t.getStackTrace();
-        for(int a = 0; a < stack.length; a++) {
-            StackTraceElement ste = stack[a];
-            spaces += "  ";
-            message += "\n" + spaces + ste.toString();
-        }
-        
-        Message m = new Message(Message.Level.DEBUG, name, message);
-        log(m);
-    }
-    
-    public void error(String message) {
-        Message m = new Message(Message.Level.ERROR, name, message);
-        log(m);
-    }
-    
-    public void error(String message, Throwable t) {
-        String spaces = "";
-        StackTraceElement[] stack = t.getStackTrace();
-        for(int a = 0; a < stack.length; a++) {
-            StackTraceElement ste = stack[a];
-            spaces += "  ";
-            message += "\n" + spaces + ste.toString();
-        }
-        
-        Message m = new Message(Message.Level.ERROR, name, message);
-        log(m);
-    }
-    
-    private void log(Message m) {
-        try {
-            // Put message on queue. Blocking operation if queue is full (which is unlikely).
-            Q.put(m);
-        } catch(InterruptedException e) {
-            
-        }
-    }
-    
-    /*
-    Call shutdown to properly stop the queue pump and HTTP log server.
-    */
-    public static void Shutdown() {
-        // Stop log queue pump processing.
-        try {
-            Q_PUMP = false;
-            QPump.join(); // Wait for QPump to finish.
-        } catch(InterruptedException e) {}
-        
-        // Stop HTTP log server if it is running.
-        Server.stop();
-    }
-    
-    /*
-    Start processing messages on queue. Inserts messages to database in a transaction.
-    */
-    private static void StartQPump() {
-        // Create and start the log queue pump thread.
-        QPump = new Thread() {
-            public void run() {
-                boolean safetyPass = true;
-                long totalMessages = 0; // Count total messages processed.
-                
-                try {
-                    while(Q_PUMP || safetyPass) {
-                        /*
-                        Sleep for a bit. Under high concurrency, this will let us insert a larger number of
-                        messages into the database in a single transaction for more efficiency.
-                        */
-                        Thread.sleep(500);
-                        
-                        // Take all messages from queue.
-                        List<Message> msgs = new ArrayList<Message>();
-                        int count = Q.drainTo(msgs);
-                        totalMessages += count;
-                        
-                        if(count > 0) {
-                            // Insert messages into database.
-                            Connection c = null;
-                            PreparedStatement s = null;
-                            
-                            try {
-                                c = GetLogConnection();
-                                
-                                // Start transaction.
-                                c.setAutoCommit(false);
-                                
-                                s = c.prepareStatement("insert into log(ts, level, logger, message) values(?, ?, ?, ?)");
-                                
-                                for(Message m : msgs) {
-                                    s.setString(1, m.ts);
-                                    s.setString(2, m.level.toString());
-                                    s.setString(3, m.logger);
-                                    s.setString(4, m.message);
-                                    
-                                    s.executeUpdate();
-                                }
-                                
-                                // Commit transaction.
-                                c.commit();
-                                c.setAutoCommit(true);
-                            } catch(SQLException e) {
-                                // Rollback transaction.
-                                try {
-                                    if(c != null) {
-                                        c.rollback();
-                                        c.setAutoCommit(true);
-                                    }
-                                    
-                                    System.out.println(e.getMessage());
-                                    System.out.println("Error. Transaction rolled back.");
-                                } catch(SQLException ex) {}
-                                
-                                /*
-                                This batch of messages failed to go in the database. Add them back to the queue so they aren't lost.
-                                This can be tested by opening the database using sqlite3 and running:
-                                sqlite> pragma locking_mode = EXCLUSIVE;
-                                Then doing a select. The database will be locked. Inserts here will fail and the transaction will rollback.
-                                */
-                                for(Message m : msgs) {
-                                    Q.put(m);
-                                }
-                                totalMessages -= count;
-                                System.out.println(count + " messages added back to queue.");
-                            } finally {
-                                // Cleanup.
-                                try { if(s != null) s.close(); } catch(SQLException e) {}
-                                try { if(c != null) c.close(); } catch(SQLException e) {}
-                            }
-                            
-                            if(!Q_PUMP) {
-                                // Log queue pump has been requested to stop, but more messages may be on the queue.
-                                System.out.println("Log queue pump - Safety pass prior to shutdown.");
-                            }
-                        } else {
-                            // No messages to process.
-                            if(!Q_PUMP) {
-                                // Log queue pump requested to stop. We'll assume no more incoming messages.
-                                safetyPass = false;
-                            }
-                        }
-                    }
-                    
-                    System.out.println("Log queue pump shutdown. Processed " + totalMessages + " messages in total.");
-                } catch(InterruptedException e) {
-                    // Thread interuppted.
-                }
-            }
-        };
-        
-        QPump.setDaemon(true);
-        QPump.start();
-    }
-    
-    /*
-    Create and setup the database if it doesn't exist yet.
-    */
-    private static void SetupDatabase() {
-        Connection c = null;
-        PreparedStatement s = null;
-        
-        try {
-            // If the database doesn't exist, it will be created on the first connection.
-            c = GetLogConnection();
-            
-            // Create table.
-            s = c.prepareStatement("create table if not exists log( ts text, level text, logger text, message text )");
-            s.executeUpdate();
-            
-            // Create index.
-            s = c.prepareStatement("create index if not exists idx_ts_level_logger on log ( ts, level, logger )");
-            s.executeUpdate();
-            s = c.prepareStatement("create index if not exists idx_logger on log ( logger )");
-            s.executeUpdate();
-            
-            // Create purge trigger on inserts.
-            s = c.prepareStatement("create trigger if not exists log_insert after insert on log begin delete from log where ts < datetime('now', '-30 days'); end");
-            s.executeUpdate();
-            
-            /*
-            Set WAL mode (https://www.sqlite.org/wal.html). With the normal "delete" journal mode,
-            I get "Error: database is locked" randomly when selecting while inserts are in progress
-            from old laptop. No locking issues in WAL mode so far.
-            */
-            s = c.prepareStatement("PRAGMA journal_mode=WAL");
-            s.executeQuery();
-        } catch(Exception e) {
-            System.out.println(e);
-            throw new RuntimeException(e);
-        } finally {
-            // Cleanup.
-            try { if(s != null) s.close(); } catch(SQLException e) {}
-            try { if(c != null) c.close(); } catch(SQLException e) {}
-        }
-    }
-    
-    /*
-    Returns connection to log database.
-    */
-    public static Connection GetLogConnection() {
-        try {
-            Connection c = DriverManager.getConnection("jdbc:sqlite:" + LOG_DIR + "/" + LOG_NAME + ".db"); // Database file will be created if it doesn't exist.
-            return c;
-        } catch(Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-}
+package plog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.InetAddress;
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Properties;
+import java.util.List;
+import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+PLog is used for simple logging and provides a web interface at:
+http://localhost:50001/plog/
+
+The logs are stored in a SQLite database.
+
+Startup and shutdown are set in plog.properties:
+
+init.async=false                (true sets up the database and the log server on a background thread)
+server=true                     (false doesn't start the log server, see StartServer)
+shutdown.timeout.millis=10000   (longest time Shutdown waits for queued messages to be written, 0 for no limit)
+
+With init.async, loggers can be used as soon as PLog is loaded. Their messages wait in the queue
+until the database is set up, and the queue's overflow policy applies if it fills up first.
+*/
+public class PLog {
+    private static final Properties properties = new Properties();
+    private static String LOG_DIR = "./plog"; // Log directory for database file.
+    protected static String LOG_NAME = "plog"; // Log name. Will be used as the database name and context root for requests.
+    static final String NODE; // Name of this process in collected logs: node in plog.properties, or the host name. See Collector.
+
+    private static LogQueue Q = null; // Holds log messages prior to database insertion.
+    private static volatile boolean Q_PUMP = true; // Process log queue while true.
+    private static Thread Init = null; // Sets up the database and starts the threads. Null unless init.async.
+    private static Thread QPump = null; // The log queue processing thread.
+    private static Journal J = null; // Messages on their way to the database. Null if the journal is off.
+    private static LogShipper Shipper = null; // Ships batches to a collector instead of the database. Null unless in client mode.
+    private static Thread Replay = null; // Inserts messages from the journal into the database.
+    private static volatile boolean REPLAY = true; // Keep replaying while true. Then the journal is replayed until it is empty or an insert fails.
+    private static int BATCH_SIZE = 10000; // Maximum messages inserted per transaction.
+    private static long BATCH_MILLIS = 100; // Maximum time to wait for more messages once a batch has started.
+    private static final Histogram BatchSizes = new Histogram(); // Messages per committed batch.
+    private static final Histogram FlushLatency = new Histogram(); // Millis from the oldest message in a batch to its commit.
+    private static final Histogram CommitMicros = Metrics.Histogram("plog_commit_micros", "", "Time to write and commit a batch.");
+    private static final Counter Written = Metrics.Counter("plog_committed_total", "Messages committed to the database.");
+    private static final Counter Rollbacks = Metrics.Counter("plog_rollbacks_total", "Batches rolled back.");
+    private static final Counter Retried = Metrics.Counter("plog_retried_total", "Messages of rolled back batches, written again on the next attempt.");
+    private static TailCache Recent = null; // Newest committed messages, for the log server.
+    private static final AtomicLong Commits = new AtomicLong(); // Batches committed. See ResultCache.
+    private static final AtomicLong Rewrites = new AtomicLong(); // Changes to older messages. See ResultCache.
+    private static volatile PServer Server = null; // HttpServer that serves log messages on request. Set after the pump starts.
+    private static final Object StartLock = new Object(); // Guards starting the threads and the server.
+    private static boolean ServerWanted = false; // Start the server once set up. Guarded by StartLock.
+    private static boolean Ready = false; // Set up. Guarded by StartLock.
+    private static boolean Stopped = false; // Shut down before setup finished, so nothing more is started. Guarded by StartLock.
+    private static RetentionJob Retention = null; // Deletes expired messages.
+    private static SchemaMigration Migration = null; // Moves messages from an old schema database, if needed.
+
+    private String name; // The name of this logger.
+    private LoggerConfig config; // Settings shared by loggers with this name.
+
+    /*
+    Static initializer.
+    */
+    static {
+        try {
+            // Load application properties, if exists.
+            InputStream is = new FileInputStream("./plog.properties");
+            PLog.properties.load(is);
+            is.close();
+
+            // Set log directory from property file.
+            String dir = PLog.properties.getProperty("log.path");
+            if(dir != null) {
+                PLog.LOG_DIR = dir;
+                System.out.println("Using PLog.LOG_DIR=" + dir);
+            }
+        } catch(Exception e) {
+            System.out.println("Couldn't load plog.properties.");
+        }
+        NODE = Node();
+
+        // Create the log queue. The ring of recent messages is filled from the first batch.
+        Q = CreateQueue();
+        Recent = new TailCache();
+        RegisterMetrics();
+        ServerWanted = Boolean.parseBoolean(GetProperty("server", "true").trim());
+
+        if(Boolean.parseBoolean(GetProperty("init.async", "false").trim())) {
+            // Messages are queued until the pump starts.
+            Init = new Thread("plog-init") {
+                public void run() {
+                    try {
+                        Setup();
+                    } catch(Exception e) {
+                        System.out.println("Couldn't set up PLog: " + e);
+
+                        // The writer sets up the database file if it is missing, and retries failed batches.
+                        // With the journal open, the pump journals the batches, and the replay thread inserts them.
+                        synchronized(StartLock) {
+                            if(QPump == null && !Stopped) {
+                                if(J != null) {
+                                    StartReplay();
+                                }
+                                StartQPump();
+                            }
+                        }
+                    }
+                }
+            };
+            Init.setDaemon(true);
+            Init.start();
+        } else {
+            try {
+                Setup();
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /*
+    Set up the database, open the journal, and start the pump, the background jobs and the log
+    server. Run by the static initializer, or with init.async on its own thread.
+    */
+    private static void Setup() throws Exception {
+        // Create log directory (recursively) in case it doesn't exist.
+        new File(PLog.LOG_DIR).mkdirs();
+
+        if(LogShipper.Enabled()) {
+            // Client mode: batches are shipped to a collector. There is no database or log server here.
+            Shipper = new LogShipper(new File(new File(LogDir(), "journal"), "shipped"));
+        } else {
+            // Setup the database if it hasn't been created. With partitions, the existing files are
+            // brought up to date here, and new ones are set up by the writer.
+            for(Partitions.Partition p : Partitions.List(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                SetupDatabase(p.path);
+            }
+        }
+
+        // Start the log queue processor.
+        // With the journal, the replay thread inserts the messages, starting with any left from the last run.
+        if(Journal.Enabled()) {
+            J = new Journal(new File(LogDir(), "journal"));
+            long lowest = Long.MAX_VALUE; // Messages up to here are in every database file.
+            long highest = 0; // And up to here in at least one.
+            if(Shipper != null) {
+                lowest = highest = Shipper.checkpoint();
+            } else {
+                for(Partitions.Partition p : Partitions.List(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                    Connection c = GetLogConnection(p.path);
+                    try {
+                        long checkpoint = LogWriter.Checkpoint(c);
+                        lowest = Math.min(lowest, checkpoint);
+                        highest = Math.max(highest, checkpoint);
+                    } finally {
+                        c.close();
+                    }
+                }
+            }
+            lowest = Math.min(lowest, highest);
+
+            // A batch may have reached a newer partition file but not an older one, so the messages
+            // after the lowest checkpoint are replayed, and each file skips those it has (see LogWriter).
+            // New messages are numbered after the highest, so no file has their numbers already.
+            J.skipTo(highest);
+            if(J.last() > lowest) {
+                System.out.println((Shipper != null ? "Shipping " : "Inserting ") + (J.last() - lowest) + " messages from the log journal.");
+            }
+        }
+
+        // Each thread is started only if Shutdown hasn't given up waiting for setup.
+        synchronized(StartLock) {
+            if(Stopped) {
+                return;
+            }
+            if(J != null) {
+                StartReplay();
+            }
+            StartQPump();
+        }
+
+        if(Shipper == null) {
+            // Start deleting expired messages.
+            synchronized(StartLock) {
+                if(Stopped) {
+                    return;
+                }
+                Retention = new RetentionJob();
+            }
+
+            // Move messages over from an old schema database.
+            if(Partitions.LAYOUT == Partitions.Layout.NONE) {
+                Connection c = GetLogConnection();
+                try {
+                    if(SchemaMigration.Needed(c)) {
+                        synchronized(StartLock) {
+                            if(Stopped) {
+                                return;
+                            }
+                            Migration = new SchemaMigration();
+                            Migration.start();
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+        }
+
+        // Load sqlite driver.
+        Class.forName("org.sqlite.JDBC").newInstance();
+
+        // Start log server, unless it is turned off.
+        synchronized(StartLock) {
+            Ready = true;
+            if(ServerWanted) {
+                StartServer();
+            }
+        }
+    }
+
+    /*
+    Start the log server if it isn't running, e.g. when it is turned off with server=false in
+    plog.properties and is needed later. With init.async it starts once the database is set up.
+    If the port is taken, the application keeps logging without the server, and this can be
+    called again.
+    */
+    public static void StartServer() {
+        synchronized(StartLock) {
+            ServerWanted = true;
+            if(!Ready || Stopped || Server != null) {
+                return;
+            }
+            if(Shipper != null) {
+                System.out.println("No log server in client mode. The logs are viewed on the collector.");
+                return;
+            }
+
+            try {
+                Server = new PServer();
+            } catch(RuntimeException e) {
+                System.out.println("Couldn't start log server. " + e.getMessage());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final java.util.Random ran = new java.util.Random();
+
+        final PLog log = new PLog("main");
+        final PLog trace = new PLog("trace");
+
+        for(int a = 0; a < 1000000; a++) {
+            double i = Math.random();
+            if(i < .05) {
+                log.debug("Message " + a + ". This is a debug log message.");
+            } else if(i < .2) {
+                try {
+                    Integer.parseInt("a", 10); // Generate an error.
+                } catch(Exception e) {
+                    log.error("Message " + a + ". Error!");
+                    trace.error("Oops (message " + a + ")", e);
+                }
+            } else if(i < .3) {
+                log.warn("Warning, this is message " + a);
+            } else {
+                log.info("Message " + a);
+            }
+
+            Thread.sleep(1000);
+        }
+
+        PLog.Shutdown();
+    }
+
+    /*
+    Create a logger with the given name.
+    */
+    public PLog(String name) {
+        this.name = name;
+        this.config = LoggerConfig.get(name);
+    }
+
+    /*
+    Level guards. Use these to skip building an expensive message that would be discarded.
+    */
+    public boolean isInfoEnabled() {
+        return config.enabled(Message.Level.INFO);
+    }
+
+    public boolean isWarnEnabled() {
+        return config.enabled(Message.Level.WARN);
+    }
+
+    public boolean isDebugEnabled() {
+        return config.enabled(Message.Level.DEBUG);
+    }
+
+    public boolean isErrorEnabled() {
+        return config.enabled(Message.Level.ERROR);
+    }
+
+    public void info(String message) {
+        log(Message.Level.INFO, message, null, null);
+    }
+
+    /*
+    Log a message with {} placeholders, e.g. info("Loaded {} rows in {} ms.", rows, millis).
+    The arguments are converted to strings on the queue pump thread, so they shouldn't be
+    modified after the call. The warn, debug and error overloads work the same way.
+    */
+    public void info(String pattern, Object... args) {
+        log(Message.Level.INFO, pattern, args, null);
+    }
+
+    public void warn(String message) {
+        log(Message.Level.WARN, message, null, null);
+    }
+
+    public void warn(String pattern, Object... args) {
+        log(Message.Level.WARN, pattern, args, null);
+    }
+
+    public void warn(String message, Throwable t) {
+        log(Message.Level.WARN, message, null, t);
+    }
+
+    public void debug(String message) {
+        log(Message.Level.DEBUG, message, null, null);
+    }
+
+    public void debug(String pattern, Object... args) {
+        log(Message.Level.DEBUG, pattern, args, null);
+    }
+
+    public void debug(String message, Throwable t) {
+        log(Message.Level.DEBUG, message, null, t);
+    }
+
+    public void error(String message) {
+        log(Message.Level.ERROR, message, null, null);
+    }
+
+    public void error(String pattern, Object... args) {
+        log(Message.Level.ERROR, pattern, args, null);
+    }
+
+    public void error(String message, Throwable t) {
+        log(Message.Level.ERROR, message, null, t);
+    }
+
+    /*
+    Queue a message, with the exception if there is one. Must be called directly from the public
+    level methods, so the caller is at a fixed depth for call site capture.
+    */
+    private void log(Message.Level level, String message, Object[] args, Throwable thrown) {
+        if(!config.enabled(level)) {
+            return;
+        }
+
+        // Drop the message if its call site is over its rate limit. If the limit needs the calling
+        // frame and the call site is captured anyway, the stack is walked once for both.
+        long limited = 0;
+        CallSite site = null;
+        RateLimit limit = config.rateLimit();
+        if(limit != null) {
+            if(config.captures(level) && limit.needsFrame(message, args != null)) {
+                site = new CallSite();
+            }
+            limited = limit.acquire(message, args != null, site);
+            if(limited < 0) {
+                return;
+            }
+        }
+
+        if(site == null && config.captures(level)) {
+            site = new CallSite();
+        }
+        Message m = new Message(level, name, message, args, site);
+        m.thrown = thrown;
+        m.limited = limited;
+
+        // Put message on queue. If the queue is full, the overflow policy decides whether to wait or drop a message.
+        Q.put(m);
+    }
+
+    /*
+    Returns the ring of recently committed messages.
+    */
+    static TailCache GetTailCache() {
+        return Recent;
+    }
+
+    /*
+    Returns the number of batches committed so far. Results of queries that include the newest
+    messages change with it.
+    */
+    static long CommitSequence() {
+        return Commits.get();
+    }
+
+    /*
+    Returns the number of changes to older messages so far. Results of all queries can change with it.
+    */
+    static long RewriteSequence() {
+        return Rewrites.get();
+    }
+
+    /*
+    Note a change to older messages: a batch with late messages, messages purged by the retention
+    job, or messages moved by the schema migration.
+    */
+    static void Rewritten() {
+        Rewrites.incrementAndGet();
+    }
+
+    /*
+    Note a committed batch. If it has messages from before the settle time, results that were final
+    have changed.
+    */
+    private static void Committed(List<Message> msgs) {
+        Commits.incrementAndGet();
+
+        long oldest = Long.MAX_VALUE;
+        for(Message m : msgs) {
+            oldest = Math.min(oldest, m.time);
+        }
+        if(oldest < System.currentTimeMillis() - ResultCache.SETTLE_MILLIS) {
+            Rewritten();
+        }
+    }
+
+    /*
+    Queue messages from another node, if there is room for all of them. Returns false, without
+    queueing any, if the queue or the journal is full. The overflow policy doesn't apply, so the
+    messages are never dropped once queued. See Collector.
+    */
+    static boolean Enqueue(List<Message> msgs) {
+        if(J != null && J.full()) {
+            return false;
+        }
+        return Q.offerAll(msgs);
+    }
+
+    /*
+    Returns the number of messages the queue can hold.
+    */
+    static int QueueCapacity() {
+        return Q.capacity();
+    }
+
+    /*
+    Returns the number of messages dropped because the log queue was full.
+    */
+    public static long GetDroppedCount() {
+        return Q.dropped();
+    }
+
+    /*
+    Returns log pipeline counters, for display.
+    */
+    static Map<String, Object> Stats() {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("queue", Q.describe());
+        map.put("batchSize", BatchSizes.describe());
+        map.put("flushLatencyMillis", FlushLatency.describe());
+        map.put("commitMicros", CommitMicros.describe());
+        if(Retention != null) {
+            map.put("retention", Retention.describe());
+        }
+        map.put("partitions", Partitions.Describe());
+        map.put("tailCache", Recent.describe());
+        if(J != null) {
+            map.put("journal", J.describe());
+        }
+        if(Shipper != null) {
+            map.put("shipper", Shipper.describe());
+        }
+        if(Server != null) {
+            map.put("server", Server.describe());
+        }
+        if(Migration != null) {
+            map.put("migration", Migration.describe());
+        }
+        return map;
+    }
+
+    /*
+    Register the queue and pump metrics, and the database size. See Metrics.
+    */
+    private static void RegisterMetrics() {
+        Metrics.Counter("plog_enqueued_total", "", "Messages added to the queue.", new Metrics.Value() {
+            public long get() { return Q.enqueued(); }
+        });
+        Metrics.Gauge("plog_queue_depth", "", "Messages waiting in the queue.", new Metrics.Value() {
+            public long get() { return Q.size(); }
+        });
+        Metrics.Gauge("plog_queue_capacity", "", "Size of the queue.", new Metrics.Value() {
+            public long get() { return Q.capacity(); }
+        });
+        for(final Message.Level level : Message.Level.values()) {
+            Metrics.Counter("plog_dropped_total", "level=\"" + level + "\"", "Messages dropped by the queue overflow policy.", new Metrics.Value() {
+                public long get() { return Q.dropped(level); }
+            });
+        }
+        Metrics.Counter("plog_blocked_total", "", "Times a logging thread waited for room in the queue.", new Metrics.Value() {
+            public long get() { return Q.blocked(); }
+        });
+        Metrics.Gauge("plog_journal_backlog", "", "Journaled messages waiting to be inserted.", new Metrics.Value() {
+            public long get() { return J != null ? J.backlog() : 0; }
+        });
+        Metrics.Histogram("plog_batch_size", "", "Messages per committed batch.", BatchSizes);
+        Metrics.Histogram("plog_flush_latency_millis", "", "Time from the oldest message in a batch to its commit.", FlushLatency);
+        Metrics.Gauge("plog_db_files", "", "Database files.", new Metrics.Value() {
+            public long get() { return Partitions.List(Long.MIN_VALUE, Long.MAX_VALUE).size(); }
+        });
+        Metrics.Gauge("plog_db_bytes", "", "Size of the database files, with their write ahead logs.", new Metrics.Value() {
+            public long get() {
+                long bytes = 0;
+                for(Partitions.Partition p : Partitions.List(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                    bytes += new File(p.path).length() + new File(p.path + "-wal").length() + new File(p.path + "-shm").length();
+                }
+                return bytes;
+            }
+        });
+    }
+
+    /*
+    Call shutdown to properly stop the queue pump and HTTP log server. Waits up to
+    shutdown.timeout.millis for the queued messages to be written.
+    */
+    public static void Shutdown() {
+        Shutdown(GetLongProperty("shutdown.timeout.millis", 10000));
+    }
+
+    /*
+    Stop the queue pump and HTTP log server, waiting up to the given millis (0 for no limit) for the
+    queued messages to be written. Messages still queued then are lost, except with the journal,
+    which inserts them on the next start.
+    */
+    public static void Shutdown(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        try {
+            // Finish setting up, so the queued messages can be written.
+            if(Init != null) {
+                Init.join(Remaining(deadline, timeoutMillis));
+                if(Init.isAlive()) {
+                    // Setup starts nothing more, and what it has started is stopped. A pump or replay
+                    // already running finishes in the background.
+                    Q_PUMP = false;
+                    REPLAY = false;
+                    synchronized(StartLock) {
+                        Stopped = true;
+                        LockSupport.unpark(QPump);
+                        LockSupport.unpark(Replay);
+                        StopJobs();
+                    }
+                    System.out.println("PLog setup didn't finish within " + timeoutMillis + " ms. " + Q.size() + " queued messages weren't written.");
+                    return;
+                }
+            }
+
+            // Stop log queue pump processing.
+            Q_PUMP = false;
+            LockSupport.unpark(QPump); // Wake QPump if it is waiting for messages.
+            QPump.join(Remaining(deadline, timeoutMillis)); // Wait for QPump to finish.
+
+            // Finish replaying the journal. What can't be inserted now is replayed on the next start.
+            if(Replay != null) {
+                REPLAY = false;
+                LockSupport.unpark(Replay);
+                Replay.join(Remaining(deadline, timeoutMillis));
+            }
+        } catch(InterruptedException e) {}
+
+        if(QPump.isAlive() || Replay != null && Replay.isAlive()) {
+            if(J != null) {
+                System.out.println("PLog didn't finish writing within " + timeoutMillis + " ms. The rest of the journal is written on the next start.");
+            } else {
+                System.out.println("PLog didn't finish writing within " + timeoutMillis + " ms. " + Q.size() + " queued messages weren't written.");
+            }
+        }
+
+        StopJobs();
+    }
+
+    /*
+    Stop the retention job, the schema migration and the HTTP log server, if they are running. The
+    migration resumes on the next start.
+    */
+    private static void StopJobs() {
+        if(Retention != null) {
+            Retention.stop();
+        }
+        if(Migration != null) {
+            Migration.interrupt();
+        }
+        if(Server != null) {
+            Server.stop();
+        }
+    }
+
+    /*
+    Returns the millis to wait until the deadline for Thread.join: at least 1, since 0 waits
+    without a limit, unless there is no timeout.
+    */
+    private static long Remaining(long deadline, long timeoutMillis) {
+        if(timeoutMillis <= 0) {
+            return 0;
+        }
+        return Math.max(1, deadline - System.currentTimeMillis());
+    }
+
+    /*
+    Start processing messages on queue. Inserts messages to database in a transaction.
+    Batching is set by batch.size and batch.millis in plog.properties.
+
+    The pump sleeps until a message arrives, then keeps collecting messages until the batch has
+    BATCH_SIZE messages or BATCH_MILLIS have passed since the first one, whichever comes first.
+    Under light load a message is written within BATCH_MILLIS. Under heavy load batches are capped
+    at BATCH_SIZE so a single transaction can't grow without bound.
+
+    With the journal on, the pump appends each batch to the journal and the replay thread inserts
+    it, so the pump never waits on the database. The queue stops draining while the journal is full.
+
+    Repeated messages are collapsed here, before they are journaled or written. See Repeats.
+    */
+    private static void StartQPump() {
+        BATCH_SIZE = (int)Math.max(1, GetLongProperty("batch.size", BATCH_SIZE));
+        BATCH_MILLIS = Math.max(0, GetLongProperty("batch.millis", BATCH_MILLIS));
+
+        // Create and start the log queue pump thread.
+        QPump = new Thread() {
+            public void run() {
+                long totalMessages = 0; // Count total messages processed.
+                LogWriter writer = J == null && Shipper == null ? new LogWriter() : null; // Holds the database connection between batches.
+                List<Message> msgs = new ArrayList<Message>(); // Current batch. Kept until it has been inserted or journaled.
+                Repeats repeats = Repeats.Enabled() ? new Repeats() : null;
+
+                try {
+                    while(Q_PUMP || !msgs.isEmpty() || Q.size() > 0 || repeats != null && repeats.pending()) {
+                        // Collect a batch, unless a failed batch is waiting to be retried.
+                        if(msgs.isEmpty()) {
+                            // Leave messages in the queue while the journal is full, except during shutdown.
+                            if(J != null && J.full() && Q_PUMP) {
+                                Thread.sleep(100);
+                                continue;
+                            }
+
+                            // Counts of repeated messages whose window has passed. All of them once the queue is empty during shutdown.
+                            if(repeats != null) {
+                                boolean last = !Q_PUMP && Q.size() == 0;
+                                repeats.expire(msgs, last ? Long.MAX_VALUE : System.currentTimeMillis());
+                                if(!msgs.isEmpty() || last) {
+                                    continue;
+                                }
+                            }
+
+                            // Sleep until a message arrives, or shutdown is requested.
+                            if(!Q.await(1, TimeUnit.SECONDS.toNanos(1))) {
+                                continue;
+                            }
+
+                            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_MILLIS);
+                            Q.drainTo(msgs, BATCH_SIZE);
+
+                            // Fill the batch until it is full or the time limit is reached. Don't wait during shutdown.
+                            long remaining = deadline - System.nanoTime();
+                            while(msgs.size() < BATCH_SIZE && remaining > 0 && Q_PUMP) {
+                                Q.await(BATCH_SIZE - msgs.size(), remaining);
+                                Q.drainTo(msgs, BATCH_SIZE - msgs.size());
+                                remaining = deadline - System.nanoTime();
+                            }
+
+                            if(repeats != null) {
+                                repeats.collapse(msgs);
+                            }
+                        }
+
+                        int count = msgs.size();
+                        if(count == 0) {
+                            continue;
+                        }
+
+                        if(J != null) {
+                            // Journal the batch. The replay thread inserts it.
+                            try {
+                                J.append(msgs);
+                                totalMessages += count;
+                                msgs = new ArrayList<Message>();
+                            } catch(IOException e) {
+                                // Retry the messages that weren't appended.
+                                System.out.println("Error appending to log journal: " + e);
+                                for(Iterator<Message> it = msgs.iterator(); it.hasNext(); ) {
+                                    if(it.next().seq != 0) {
+                                        it.remove();
+                                        totalMessages++;
+                                    }
+                                }
+                                Thread.sleep(500);
+                            }
+                        } else if(Deliver(writer, msgs)) {
+                            totalMessages += count;
+                            msgs = new ArrayList<Message>();
+                        } else {
+                            // Wait a bit before retrying.
+                            Thread.sleep(RetryMillis());
+                        }
+                    }
+
+                    System.out.println("Log queue pump shutdown. Processed " + totalMessages + " messages in total.");
+                } catch(InterruptedException e) {
+                    // Thread interuppted.
+                } finally {
+                    if(writer != null) {
+                        writer.close();
+                    }
+                }
+            }
+        };
+
+        QPump.setDaemon(true);
+        QPump.start();
+    }
+
+    /*
+    Start the journal replay thread. It inserts journaled messages into the database in batches of
+    up to BATCH_SIZE, and after a failed insert reads the same messages from the journal again.
+    */
+    private static void StartReplay() {
+        Replay = new Thread("plog-replay") {
+            public void run() {
+                LogWriter writer = Shipper == null ? new LogWriter() : null; // Holds the database connection between batches.
+
+                try {
+                    while(true) {
+                        List<Message> msgs = J.read(BATCH_SIZE);
+                        if(msgs.isEmpty()) {
+                            if(!REPLAY) {
+                                break;
+                            }
+                            J.await(TimeUnit.SECONDS.toNanos(1));
+                        } else if(Deliver(writer, msgs)) {
+                            J.replayed();
+                        } else if(!REPLAY) {
+                            // Shutting down. The rest is replayed on the next start.
+                            break;
+                        } else {
+                            // Wait a bit before retrying.
+                            Thread.sleep(RetryMillis());
+                        }
+                    }
+
+                    if(!J.caughtUp()) {
+                        System.out.println(J.backlog() + " journaled messages will be " + (Shipper != null ? "shipped" : "inserted") + " on the next start.");
+                    }
+                } catch(InterruptedException e) {
+                    // Thread interuppted.
+                } catch(IOException e) {
+                    System.out.println("Error reading log journal: " + e);
+                } finally {
+                    if(writer != null) {
+                        writer.close();
+                    }
+                }
+            }
+        };
+
+        Replay.setDaemon(true);
+        Replay.start();
+    }
+
+    /*
+    Insert a batch into the database, or in client mode ship it to the collector. Returns false if
+    it should be retried.
+    */
+    private static boolean Deliver(LogWriter writer, List<Message> msgs) {
+        return Shipper != null ? Shipper.ship(msgs) : Insert(writer, msgs);
+    }
+
+    /*
+    Returns the time to wait before retrying a batch that failed.
+    */
+    private static long RetryMillis() {
+        return Shipper != null ? Shipper.retryMillis() : 500;
+    }
+
+    /*
+    Insert a batch into the database. Returns false if the transaction was rolled back.
+    Committed messages are added to the recent messages and sent to live tail viewers.
+    */
+    private static boolean Insert(LogWriter writer, List<Message> msgs) {
+        long started = System.nanoTime();
+
+        try {
+            writer.write(msgs);
+        } catch(SQLException e) {
+            // The transaction was rolled back. With partitions, batches for other files
+            // may have been committed, and they won't be added to the recent messages.
+            Recent.clear();
+            Rewritten();
+            System.out.println(e.getMessage());
+            System.out.println("Error. Transaction rolled back.");
+            Rollbacks.increment();
+            Retried.add(msgs.size());
+
+            /*
+            This batch of messages failed to go in the database. It is retried on the next pass so the messages aren't lost:
+            kept in memory by the pump, or read again from the journal by the replay thread.
+            The batch is not put back on the queue: the queue is bounded and the pump must never wait on itself.
+            Meanwhile new messages wait in the queue, subject to its overflow policy, or in the journal.
+            This can be tested by opening the database using sqlite3 and running:
+            sqlite> pragma locking_mode = EXCLUSIVE;
+            Then doing a select. The database will be locked. Inserts here will fail and the transaction will rollback.
+            */
+            System.out.println(msgs.size() + " messages will be retried.");
+            return false;
+        }
+
+        // Journaled messages already in the database were skipped.
+        if(msgs.isEmpty()) {
+            return true;
+        }
+
+        // Flush latency is the time the oldest message in the batch waited to be committed.
+        BatchSizes.record(msgs.size());
+        FlushLatency.record(System.currentTimeMillis() - msgs.get(0).time);
+        CommitMicros.record((System.nanoTime() - started) / 1000);
+        Written.add(msgs.size());
+
+        Recent.add(msgs);
+        Committed(msgs);
+
+        // Stream the batch to live tail viewers.
+        PServer server = Server;
+        if(server != null) {
+            server.publish(msgs);
+        }
+
+        return true;
+    }
+
+    /*
+    Create the log queue from plog.properties settings:
+    queue.capacity - Maximum queued messages (default 65536).
+    queue.overflow - What to do when the queue is full: block (default), drop_newest, drop_oldest, or drop_below.
+    queue.overflow.level - With drop_below, messages below this level are dropped and others wait (default WARN).
+    */
+    private static LogQueue CreateQueue() {
+        int capacity = (int)GetLongProperty("queue.capacity", 65536);
+        LogQueue.Overflow overflow = LogQueue.Overflow.BLOCK;
+        Message.Level dropLevel = Message.Level.WARN;
+
+        try {
+            overflow = LogQueue.Overflow.valueOf(GetProperty("queue.overflow", overflow.toString()).trim().toUpperCase());
+        } catch(IllegalArgumentException e) {
+            System.out.println("Invalid queue.overflow in plog.properties: " + e.getMessage());
+        }
+        dropLevel = LoggerConfig.ParseLevel(GetProperty("queue.overflow.level", dropLevel.toString()), dropLevel);
+
+        return new LogQueue(capacity, overflow, dropLevel);
+    }
+
+    /*
+    Create and setup a database file if it doesn't exist yet, or bring it up to the current schema.
+    */
+    static void SetupDatabase(String path) {
+        Connection c = null;
+        PreparedStatement s = null;
+
+        try {
+            // If the database doesn't exist, it will be created on the first connection.
+            c = GetLogConnection(path);
+
+            if(RetentionJob.Vacuum()) {
+                // Incremental vacuum needs auto_vacuum. An existing database needs a full vacuum to switch it on.
+                s = c.prepareStatement("PRAGMA auto_vacuum");
+                ResultSet rs = s.executeQuery();
+                int mode = rs.next() ? rs.getInt(1) : 0;
+                rs.close();
+                s.close();
+
+                if(mode != 2) {
+                    System.out.println("Enabling incremental vacuum on log database.");
+                    s = c.prepareStatement("PRAGMA auto_vacuum=INCREMENTAL");
+                    s.executeUpdate();
+                    s.close();
+                    s = c.prepareStatement("VACUUM");
+                    s.executeUpdate();
+                    s.close();
+                }
+            }
+
+            /*
+            Schema version 1 stores ts as epoch millis, level as its severity code, and the logger as
+            an id in the logger dictionary. A version 0 database (text columns) is renamed to log_v1
+            and migrated in the background by SchemaMigration.
+            Version 2 adds the log_rollup summary counts.
+            Version 3 adds the node of each message, as an id in the node dictionary. Messages from
+            before have no node.
+            Version 4 adds stack traces, stored once in the trace table and referred to by trace_id.
+            Version 5 adds the node to the log_rollup key. The counts are built again.
+            */
+            c.setAutoCommit(false);
+
+            s = c.prepareStatement("PRAGMA user_version");
+            ResultSet rs = s.executeQuery();
+            int version = rs.next() ? rs.getInt(1) : 0;
+            rs.close();
+            s.close();
+
+            s = c.prepareStatement("select count(*) from sqlite_master where type = 'table' and name = 'log'");
+            rs = s.executeQuery();
+            boolean exists = rs.next() && rs.getInt(1) > 0;
+            rs.close();
+            s.close();
+
+            if(version == 0 && exists) {
+                System.out.println("Upgrading log database schema.");
+                s = c.prepareStatement("alter table log rename to log_v1");
+                s.executeUpdate();
+                s.close();
+
+                // Old indexes and purge trigger. The migration only reads log_v1 in rowid order.
+                s = c.prepareStatement("drop index if exists idx_ts_level_logger");
+                s.executeUpdate();
+                s.close();
+                s = c.prepareStatement("drop index if exists idx_logger");
+                s.executeUpdate();
+                s.close();
+                s = c.prepareStatement("drop trigger if exists log_insert");
+                s.executeUpdate();
+                s.close();
+            }
+
+            if(version >= 1 && version < 3 && exists) {
+                s = c.prepareStatement("alter table log add column node_id integer");
+                s.executeUpdate();
+                s.close();
+            }
+            if(version >= 1 && version < 4 && exists) {
+                s = c.prepareStatement("alter table log add column trace_id integer");
+                s.executeUpdate();
+                s.close();
+                s = c.prepareStatement("drop view if exists log_view");
+                s.executeUpdate();
+                s.close();
+            }
+
+            // Create tables.
+            s = c.prepareStatement("create table if not exists logger( id integer primary key, name text not null unique )");
+            s.executeUpdate();
+            s.close();
+            s = c.prepareStatement("create table if not exists node( id integer primary key, name text not null unique )");
+            s.executeUpdate();
+            s.close();
+            s = c.prepareStatement("create table if not exists trace( id integer primary key, fingerprint text not null unique, text text not null )");
+            s.executeUpdate();
+            s.close();
+            s = c.prepareStatement("create table if not exists log( id integer primary key, ts integer not null, level integer not null, logger_id integer not null, message text, node_id integer, trace_id integer )");
+            s.executeUpdate();
+            s.close();
+
+            // Create indexes for the log queries: by time, by level and time, by logger and time, and by node and time.
+            s = c.prepareStatement("create index if not exists idx_log_ts on log ( ts )");
+            s.executeUpdate();
+            s.close();
+            s = c.prepareStatement("create index if not exists idx_log_level_ts on log ( level, ts )");
+            s.executeUpdate();
+            s.close();
+            s = c.prepareStatement("create index if not exists idx_log_logger_ts on log ( logger_id, ts )");
+            s.executeUpdate();
+            s.close();
+            s = c.prepareStatement("create index if not exists idx_log_node_ts on log ( node_id, ts )");
+            s.executeUpdate();
+            s.close();
+
+            // Messages with a stack trace, by time, for the exception counts. Other messages aren't in it.
+            s = c.prepareStatement("create index if not exists idx_log_trace on log ( ts, trace_id ) where trace_id is not null");
+            s.executeUpdate();
+            s.close();
+
+            // Readable view for querying with sqlite3.
+            s = c.prepareStatement(
+                "create view if not exists log_view as select log.id, strftime('%Y-%m-%d %H:%M:%f', log.ts / 1000.0, 'unixepoch') ts, " +
+                "case log.level when " + Message.Level.DEBUG.severity + " then 'DEBUG' when " + Message.Level.INFO.severity + " then 'INFO' " +
+                "when " + Message.Level.WARN.severity + " then 'WARN' else 'ERROR' end level, logger.name logger, log.message, node.name node, trace.text trace " +
+                "from log join logger on logger.id = log.logger_id left join node on node.id = log.node_id left join trace on trace.id = log.trace_id");
+            s.executeUpdate();
+            s.close();
+
+            // Sequence number of the last journaled message committed, so the journal isn't replayed twice.
+            s = c.prepareStatement("create table if not exists journal_checkpoint( seq integer not null )");
+            s.executeUpdate();
+            s.close();
+            s = c.prepareStatement("insert into journal_checkpoint(seq) select 0 where not exists (select 1 from journal_checkpoint)");
+            s.executeUpdate();
+            s.close();
+
+            // Sequence number of the last message committed from each node journal, so a batch a node sends again isn't inserted twice. See Collector.
+            s = c.prepareStatement("create table if not exists ingest_checkpoint( journal text primary key, seq integer not null )");
+            s.executeUpdate();
+            s.close();
+
+            // Message counts for the summary. Counted from the existing messages once.
+            if(version >= 2 && version < 5) {
+                Rollup.Drop(c);
+            }
+            Rollup.Create(c);
+            if(version >= 1 && version < 5 && exists) {
+                System.out.println("Building log summary counts.");
+                Rollup.Backfill(c);
+            }
+
+            // Full text search index.
+            if(SearchIndex.Enabled()) {
+                SearchIndex.Create(c);
+            } else {
+                SearchIndex.Drop(c);
+            }
+
+            s = c.prepareStatement("PRAGMA user_version = 5");
+            s.executeUpdate();
+            s.close();
+
+            c.commit();
+            c.setAutoCommit(true);
+
+            /*
+            Set WAL mode (https://www.sqlite.org/wal.html). With the normal "delete" journal mode,
+            I get "Error: database is locked" randomly when selecting while inserts are in progress
+            from old laptop. No locking issues in WAL mode so far.
+            */
+            s = c.prepareStatement("PRAGMA journal_mode=WAL");
+            s.executeQuery();
+        } catch(Exception e) {
+            System.out.println(e);
+            throw new RuntimeException(e);
+        } finally {
+            // Cleanup.
+            try { if(s != null) s.close(); } catch(SQLException e) {}
+            try { if(c != null) c.close(); } catch(SQLException e) {}
+        }
+    }
+
+    /*
+    Returns the node name from plog.properties, or the host name if it isn't set.
+    */
+    private static String Node() {
+        String node = GetProperty("node", "").trim();
+        if(node.length() > 0) {
+            return node;
+        }
+
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch(Exception e) {
+            return "localhost";
+        }
+    }
+
+    /*
+    Returns the value of a plog.properties setting, or the default if it isn't set.
+    */
+    static String GetProperty(String key, String defaultValue) {
+        return PLog.properties.getProperty(key, defaultValue);
+    }
+
+    /*
+    Returns the names of the plog.properties settings that start with the given prefix.
+    */
+    static List<String> GetPropertyNames(String prefix) {
+        List<String> names = new ArrayList<String>();
+        for(String name : PLog.properties.stringPropertyNames()) {
+            if(name.startsWith(prefix)) {
+                names.add(name);
+            }
+        }
+
+        return names;
+    }
+
+    /*
+    Returns the value of a numeric plog.properties setting, or the default if it isn't set or isn't a number.
+    */
+    static long GetLongProperty(String key, long defaultValue) {
+        String value = PLog.properties.getProperty(key);
+        if(value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch(NumberFormatException e) {
+            System.out.println("Invalid " + key + " in plog.properties: " + value);
+            return defaultValue;
+        }
+    }
+
+    /*
+    Returns the log directory.
+    */
+    static File LogDir() {
+        return new File(LOG_DIR);
+    }
+
+    /*
+    Returns connection to log database.
+    */
+    public static Connection GetLogConnection() {
+        return GetLogConnection(LOG_DIR + "/" + LOG_NAME + ".db");
+    }
+
+    /*
+    Returns connection to a log database file. See Partitions.
+    */
+    static Connection GetLogConnection(String path) {
+        try {
+            Connection c = DriverManager.getConnection("jdbc:sqlite:" + path); // Database file will be created if it doesn't exist.
+            return c;
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+    Returns a read only connection to a log database file. Used by the log server.
+    */
+    static Connection GetReadConnection(String path) {
+        try {
+            Properties props = new Properties();
+            props.setProperty("open_mode", "1"); // SQLITE_OPEN_READONLY
+            return DriverManager.getConnection("jdbc:sqlite:" + path, props);
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
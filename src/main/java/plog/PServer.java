@@ -1,293 +1,1381 @@
-package plog;
-
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.URI;
-import java.net.URLDecoder;
-import com.sun.net.httpserver.HttpServer;
-import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.Headers;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.TimeZone;
-import java.util.Calendar;
-import org.apache.commons.io.IOUtils;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Collections;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Map;
-import java.util.HashMap;
-import java.sql.Timestamp;
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import com.google.gson.Gson;
-
-/*
-HTTP server used to provide a web interface for logs.
-*/
-public class PServer {
-    private int port = 50001;
-    private HttpServer server = null;
-    
-    public PServer() {
-        this.start();
-    }
-    
-    /*
-    Start the server.
-    */
-    private void start() {
-        this.stop();
-        
-        System.out.println("Starting log server.");
-        
-        final String contextRoot = "/" + PLog.LOG_NAME + "/";
-        int maxConnections = 0; // Maximum incoming connections to queue on the socket. Value of 0 will use a system default.
-        
-        try {
-            InetSocketAddress addr = new InetSocketAddress(port); // Create socket address where the IP address is the wildcard address (listen on any interface).
-            HttpServer server = HttpServer.create(addr, maxConnections);
-            
-            server.createContext(contextRoot, new HttpHandler() {
-                public void handle(HttpExchange exchange) {
-                    try {
-                        // Get request.
-                        String requestBody = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
-                        String method = exchange.getRequestMethod();
-                        URI uri = exchange.getRequestURI();
-                        String res = uri.toString();
-                        
-                        // Get the resource requested relative (to the right) of the context root.
-                        String[] parts = res.split(contextRoot);
-                        String rel = parts.length > 0 ? parts[1] : "";
-                        
-                        // Split the query string out of the resource name.
-                        Map<String, String> query = new HashMap<String, String>();
-                        parts = rel.split("\\?");
-                        if(parts.length == 2) {
-                            rel = parts[0];
-                            
-                            // Build query parameter map.
-                            String[] pairs = uri.getQuery().split("&");
-                            for(String pair : pairs) {
-                                parts = pair.split("=");
-                                query.put(parts[0], parts[1]);
-                            }
-                        }
-                        
-                        Headers headers = exchange.getResponseHeaders();
-                        OutputStream out = exchange.getResponseBody();
-                        int responseCode = 200; // HTTP 200 OK
-                        int responseLength = 0; // -1 indicates no response body is being sent. 0 indicates an arbitrary amount of data may be sent.
-                        
-                        if(res.equals(contextRoot)) {
-                            // Root request. Send index.html.
-                            headers.set("content-type", "text/html; charset=utf-8");
-                            exchange.sendResponseHeaders(responseCode, responseLength);
-                            
-                            InputStream is = PLog.class.getResourceAsStream("/web/index.html");
-                            byte[] bytes = IOUtils.toByteArray(is);
-                            IOUtils.write(bytes, out);
-                        } else if(rel.equals("logs")) {
-                            // Request for log messages.
-                            headers.set("content-type", "text/JSON; charset=utf-8");
-                            exchange.sendResponseHeaders(responseCode, responseLength);
-                            
-                            // Get logs.
-                            List<Message> messages = getLogs(query);
-                            String json = new Gson().toJson(messages);
-                            IOUtils.write(json, out, "UTF-8");
-                        } else if(rel.equals("logs/summary")) {
-                            // Request for log summary.
-                            headers.set("content-type", "text/JSON; charset=utf-8");
-                            exchange.sendResponseHeaders(responseCode, responseLength);
-                            
-                            // Get logs.
-                            Map<String, Integer> summary = getLogSummary();
-                            String json = new Gson().toJson(summary);
-                            IOUtils.write(json, out, "UTF-8");
-                        } else {
-                            // Some other resource requested. Look for it in the web directory and send it, if it exists.
-                            InputStream is = PLog.class.getResourceAsStream("/web/" + rel);
-                            if(is != null) {
-                                // Found resource. Send it.
-                                exchange.sendResponseHeaders(responseCode, responseLength);
-                                byte[] bytes = IOUtils.toByteArray(is);
-                                IOUtils.write(bytes, out);
-                            } else {
-                                // Resource not found.
-                                responseCode = 404;
-                                exchange.sendResponseHeaders(responseCode, responseLength);
-                                System.out.println("Not found: /web/" + rel);
-                            }
-                        }
-                    } catch(Exception e) {
-                        try {
-                            // Something has gone wrong. Try to send back a 500 server error response.
-                            int responseCode = 500;
-                            int responseLength = 0;
-                            exchange.getResponseHeaders().set("content-type", "text/html; charset=utf-8");
-                            exchange.sendResponseHeaders(responseCode, responseLength);
-                            IOUtils.write("Error: " + e.toString(), exchange.getResponseBody(), "UTF-8");
-                        } catch(IOException ex) {}
-                    } finally {
-                        IOUtils.closeQuietly(exchange.getRequestBody());
-                        IOUtils.closeQuietly(exchange.getResponseBody());
-                    }
-                }
-            });
-            
-            this.server = server;
-            
-            // Start listening for connections.
-            server.start();
-        } catch(Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-    
-    /*
-    Stop the server.
-    */
-    public void stop() {
-        if(this.server != null) {
-            System.out.println("Shutting down log server.");
-            
-            this.server.stop(1); // Blocks for specified number of seconds or until all current handlers have completed, whichever is first.
-            this.server = null;
-        }
-    }
-    
-    /*
-    Query log database based on user parameters.
-    If the result set is too large, the application will crash with java.lang.OutOfMemoryError: Java heap space.
-    To prevent this, the user can only retrieve a fixed amount of rows per request.
-    */
-    private List<Message> getLogs(Map<String, String> query) {
-        // Specify the format and timezone (utc) of the timestamp string as it is stored in the database.
-        DateFormat dfIn = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-        dfIn.setTimeZone(TimeZone.getTimeZone("UTC"));
-        
-        // Specify the format and timezone that we want to display the timestamp as.
-        DateFormat dfOut = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-        dfOut.setTimeZone(TimeZone.getDefault());
-        
-        Connection c = null;
-        PreparedStatement s = null;
-        ResultSet rs = null;
-        
-        try {
-            // Get query parameters.
-            String log_level = query.get("level");
-            String logger_name = query.get("logger");
-            String from = URLDecoder.decode(query.get("from"), "UTF-8");
-            String to = URLDecoder.decode(query.get("to"), "UTF-8");
-            String order = query.get("order");
-            int page = Integer.parseInt(query.get("page"), 10);
-            
-            if(log_level.equalsIgnoreCase("all")) { log_level = "%"; }
-            if(logger_name.equalsIgnoreCase("all")) { logger_name = "%"; }
-            
-            int limit = 50; // Maximum rows to fetch. Without this limit, a large result set will cause an OOM error and crash.
-            int offset = (page - 1) * limit;
-            
-            c = PLog.GetLogConnection();
-            
-            // Query statement.
-            String sql = "select rowid, ts, level, logger, message from log where ts >= strftime('%Y-%m-%d %H:%M:%f', ?, 'utc') and ts <= strftime('%Y-%m-%d %H:%M:%f', ?, 'utc') and level like ? and logger like ? order by ts " + order + " limit " + limit + " offset " + offset;
-            s = c.prepareStatement(sql);
-            
-            s.setString(1, from);
-            s.setString(2, to);
-            s.setString(3, log_level + "%");
-            s.setString(4, logger_name + "%");
-            
-            // Submit query.
-            rs = s.executeQuery();
-            
-            List<Message> messages = new ArrayList<Message>();
-            
-            while(rs.next()) {
-                Timestamp ts = new Timestamp(dfIn.parse(rs.getString("ts")).getTime());
-                String level = rs.getString("level");
-                String logger = rs.getString("logger");
-                String message = rs.getString("message");
-                
-                Message m = new Message();
-                m.ts = dfOut.format(ts);
-                m.level = Message.Level.valueOf(level);
-                m.logger = logger;
-                m.message = message;
-                
-                messages.add(m);
-            }
-            
-            return messages;
-        } catch(Exception e) {
-            System.out.println(e);
-            throw new RuntimeException(e);
-        } finally {
-            // Cleanup.
-            try { if(rs != null) rs.close(); } catch (SQLException e) {}
-            try { if(s != null) s.close(); } catch(SQLException e) {}
-            try { if(c != null) c.close(); } catch(SQLException e) {}
-        }
-    }
-    
-    /*
-    Returns a summary of the log table: the count of messages for each day.
-    */
-    private Map<String, Integer> getLogSummary() {
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-        df.setTimeZone(TimeZone.getDefault());
-        
-        Map<String, Integer> map = new HashMap<String, Integer>();
-        
-        /*
-        // Create a list of the past n days.
-        Calendar day = Calendar.getInstance(); // now
-        for(int a = 0; a < 30; a++) {
-            map.put(df.format(day.getTime()), 0);
-            day.add(Calendar.DATE, -1); // Subtract 1 day.
-        }*/
-        
-        Connection c = null;
-        PreparedStatement s = null;
-        ResultSet rs = null;
-        
-        try {
-            c = PLog.GetLogConnection();
-            
-            // Query statement.
-            String sql = "select strftime('%Y-%m-%d', ts, 'localtime') dt, count(*) c from log group by dt order by dt desc limit 30";
-            s = c.prepareStatement(sql);
-            
-            // Submit query.
-            rs = s.executeQuery();
-            
-            while(rs.next()) {
-                String dt = rs.getString("dt");
-                int count = rs.getInt("c");
-                
-                map.put(dt, count);
-            }
-            
-            return map;
-        } catch(Exception e) {
-            System.out.println(e);
-            throw new RuntimeException(e);
-        } finally {
-            // Cleanup.
-            try { if(rs != null) rs.close(); } catch (SQLException e) {}
-            try { if(s != null) s.close(); } catch(SQLException e) {}
-            try { if(c != null) c.close(); } catch(SQLException e) {}
-        }
-    }
-}
+package plog;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.Headers;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+import java.util.Calendar;
+import java.util.Date;
+import org.apache.commons.io.IOUtils;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+/*
+HTTP server used to provide a web interface for logs.
+
+Requests are handled by a fixed pool of threads with a bounded queue, and queries use a small pool
+of read only connections. When the queue is full, requests are answered with 503 instead of piling
+up, and queries running longer than the request timeout are cancelled. Set in plog.properties:
+
+server.threads=4              (request threads)
+server.queue=32               (requests waiting for a thread before new ones get 503)
+server.connections=4          (read connections, defaults to server.threads plus query.threads)
+server.timeout.millis=10000   (time a request's queries and connection waits can take)
+server.port=50001             (port to listen on)
+levels.token=                 (changes to logger settings on the levels page, and clearing the
+                               result cache, must be POSTed with this token in X-PLog-Token; empty
+                               turns changes off)
+
+Log queries over a long time range are split into slices that can be read in parallel. See scan().
+
+query.threads=4               (threads reading slices ahead, shared by all requests; defaults to
+                               the number of cores, up to 4; 1 reads the slices in order)
+query.slices=8                (slices of a range in one file, defaults to twice query.threads)
+query.parallel.rows=1000      (larger pages are read one slice at a time)
+*/
+public class PServer {
+    private static final Gson GSON = new Gson(); // Thread safe. Shared by all requests.
+    private static final ThreadLocal<Boolean> REJECT = new ThreadLocal<Boolean>(); // Set on the thread that answers rejected requests.
+    private static final String JSON_TYPE = "application/json; charset=utf-8";
+    private static final String[] ENDPOINTS = { "index", "logs", "logs/summary", "logs/exceptions", "loggers", "nodes", "ingest", "cache", "stats", "levels", "metrics", "metrics/prometheus", "static" }; // Request latency is kept for each. The live tail isn't timed.
+    private static final String SELECT_KEYS = "select log.id, log.ts from log";
+    private static final String SELECT_ROWS = "select log.id, log.ts, log.level, logger.name logger, log.message, node.name node, trace.text trace from log join logger on logger.id = log.logger_id left join node on node.id = log.node_id left join trace on trace.id = log.trace_id";
+
+    private int port = 50001;
+    private HttpServer server = null;
+    private ThreadPoolExecutor executor = null; // Request threads.
+    private ExecutorService rejecter = null; // Answers requests that don't fit in the request queue.
+    private ScheduledExecutorService timer = null; // Cancels queries that run too long.
+    private ThreadPoolExecutor queries = null; // Reads slices of queries ahead. Null with one query thread.
+    private int queryThreads = 1;
+    private int querySlices = 1;
+    private int parallelRows = 1000;
+    private ReadPool pool = null;
+    private final LiveTail tail = new LiveTail();
+    private final ResultCache cache = new ResultCache();
+    private final WebAssets assets = new WebAssets();
+    private final Collector collector = Collector.Enabled() ? new Collector() : null; // Null unless other nodes can log here.
+    private long timeoutMillis = 10000;
+    private final String levelsToken = PLog.GetProperty("levels.token", "").trim(); // Empty if logger settings can't be changed here.
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final Map<String, Histogram> latency = new HashMap<String, Histogram>(); // Request micros by endpoint. Filled before the server starts.
+
+    public PServer() {
+        this.start();
+    }
+
+    /*
+    Start the server.
+    */
+    private void start() {
+        this.stop();
+
+        System.out.println("Starting log server.");
+
+        final String contextRoot = "/" + PLog.LOG_NAME + "/";
+        int maxConnections = 0; // Maximum incoming connections to queue on the socket. Value of 0 will use a system default.
+
+        // Bind the port first, so nothing is left running if it is taken.
+        port = (int)PLog.GetLongProperty("server.port", port);
+        final HttpServer server;
+        try {
+            InetSocketAddress addr = new InetSocketAddress(port); // Create socket address where the IP address is the wildcard address (listen on any interface).
+            server = HttpServer.create(addr, maxConnections);
+        } catch(IOException e) {
+            throw new RuntimeException("Couldn't listen on port " + port + ": " + e.getMessage(), e);
+        }
+
+        int threads = (int)Math.max(1, PLog.GetLongProperty("server.threads", 4));
+        int queue = (int)Math.max(1, PLog.GetLongProperty("server.queue", 32));
+        timeoutMillis = Math.max(1, PLog.GetLongProperty("server.timeout.millis", timeoutMillis));
+        queryThreads = (int)Math.max(1, PLog.GetLongProperty("query.threads", Math.min(4, Runtime.getRuntime().availableProcessors())));
+        querySlices = (int)Math.max(1, PLog.GetLongProperty("query.slices", queryThreads * 2));
+        parallelRows = (int)Math.max(0, PLog.GetLongProperty("query.parallel.rows", parallelRows));
+        if(queryThreads > 1) {
+            queries = new ThreadPoolExecutor(queryThreads, queryThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), Threads("plog-query", false));
+        }
+        pool = new ReadPool((int)PLog.GetLongProperty("server.connections", queries != null ? threads + queryThreads : threads));
+        timer = Executors.newSingleThreadScheduledExecutor(Threads("plog-http-timer", false));
+
+        // A request that doesn't fit in the queue still has to be read and answered. That is done on
+        // a separate thread, where the handler sends 503 right away.
+        registerMetrics();
+
+        rejecter = Executors.newSingleThreadExecutor(Threads("plog-http-reject", true));
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue), Threads("plog-http", false), new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                if(!rejecter.isShutdown()) {
+                    rejecter.execute(r);
+                }
+            }
+        });
+
+        try {
+            server.createContext(contextRoot, new HttpHandler() {
+                public void handle(HttpExchange exchange) {
+                    boolean streaming = false; // The exchange has been handed to the live tail, which closes it.
+                    OutputStream out = null; // Response body, gzipped if the client accepts it.
+                    long started = System.nanoTime();
+                    String endpoint = null; // For the request latency metric.
+
+                    try {
+                        if(REJECT.get() != null) {
+                            // Too many requests waiting. Ask the client to retry later.
+                            rejected.incrementAndGet();
+                            exchange.getResponseHeaders().set("Retry-After", "1");
+                            exchange.sendResponseHeaders(503, -1);
+                            return;
+                        }
+
+                        // Get request. The body is only read by the ingest endpoint.
+                        URI uri = exchange.getRequestURI();
+                        String res = uri.toString();
+
+                        // Get the resource requested relative (to the right) of the context root.
+                        String[] parts = res.split(contextRoot);
+                        String rel = parts.length > 0 ? parts[1] : "";
+
+                        // Split the query string out of the resource name.
+                        Map<String, String> query = new HashMap<String, String>();
+                        parts = rel.split("\\?");
+                        if(parts.length == 2) {
+                            rel = parts[0];
+
+                            // Build query parameter map.
+                            String[] pairs = uri.getQuery().split("&");
+                            for(String pair : pairs) {
+                                parts = pair.split("=", 2);
+                                query.put(parts[0], parts.length > 1 ? parts[1] : "");
+                            }
+                        }
+
+                        Headers headers = exchange.getResponseHeaders();
+                        boolean gzip = AcceptsGzip(exchange);
+                        endpoint = res.equals(contextRoot) ? "index" : latency.containsKey(rel) ? rel : "static";
+                        int responseCode = 200; // HTTP 200 OK
+                        int responseLength = 0; // -1 indicates no response body is being sent. 0 indicates an arbitrary amount of data may be sent.
+
+                        if(res.equals(contextRoot)) {
+                            // Root request. Send index.html.
+                            assets.send("index.html", exchange);
+                        } else if(rel.equals("logs")) {
+                            // Request for log messages. The rows are streamed into the response.
+                            headers.set("content-type", JSON_TYPE);
+                            writeLogs(query, exchange, gzip);
+                        } else if(rel.equals("logs/stream")) {
+                            // Live tail of new messages (Server-Sent Events). Streamed from its own thread, and not timed.
+                            endpoint = null;
+                            streaming = tail.subscribe(LogQuery.ParseFilter(query), exchange);
+                            if(!streaming) {
+                                responseCode = 503;
+                                exchange.sendResponseHeaders(responseCode, -1);
+                            }
+                        } else if(rel.equals("logs/summary")) {
+                            // Request for log summary.
+                            headers.set("content-type", JSON_TYPE);
+
+                            // Get message counts.
+                            byte[] json = getLogSummary(query);
+                            out = Send(exchange, responseCode, json.length, gzip);
+                            IOUtils.write(json, out);
+                        } else if(rel.equals("logs/exceptions")) {
+                            // Request for the most frequent exceptions.
+                            headers.set("content-type", JSON_TYPE);
+
+                            byte[] json = getExceptions(query);
+                            out = Send(exchange, responseCode, json.length, gzip);
+                            IOUtils.write(json, out);
+                        } else if(rel.equals("loggers")) {
+                            // Request for logger names.
+                            headers.set("content-type", JSON_TYPE);
+                            out = Send(exchange, responseCode, responseLength, gzip);
+
+                            String json = GSON.toJson(getNames("logger"));
+                            IOUtils.write(json, out, "UTF-8");
+                        } else if(rel.equals("nodes")) {
+                            // Request for node names.
+                            headers.set("content-type", JSON_TYPE);
+                            out = Send(exchange, responseCode, responseLength, gzip);
+
+                            String json = GSON.toJson(getNames("node"));
+                            IOUtils.write(json, out, "UTF-8");
+                        } else if(rel.equals("ingest") && collector != null) {
+                            // A batch of messages from another node. See Collector.
+                            collector.receive(exchange);
+                        } else if(rel.equals("cache")) {
+                            // Request to view or clear the query result cache. Clearing must be POSTed with the token.
+                            responseCode = changeCache(query, exchange);
+                            if(responseCode != 200) {
+                                exchange.sendResponseHeaders(responseCode, -1);
+                            } else {
+                                headers.set("content-type", JSON_TYPE);
+                                out = Send(exchange, responseCode, responseLength, gzip);
+
+                                String json = GSON.toJson(cache.describe());
+                                IOUtils.write(json, out, "UTF-8");
+                            }
+                        } else if(rel.equals("metrics")) {
+                            // Request for metrics, as JSON.
+                            headers.set("content-type", JSON_TYPE);
+                            out = Send(exchange, responseCode, responseLength, gzip);
+
+                            String json = GSON.toJson(Metrics.Describe());
+                            IOUtils.write(json, out, "UTF-8");
+                        } else if(rel.equals("metrics/prometheus")) {
+                            // Request for metrics, in the Prometheus text format.
+                            headers.set("content-type", "text/plain; version=0.0.4; charset=utf-8");
+                            out = Send(exchange, responseCode, responseLength, gzip);
+
+                            IOUtils.write(Metrics.Prometheus(), out, "UTF-8");
+                        } else if(rel.equals("stats")) {
+                            // Request for log pipeline counters.
+                            headers.set("content-type", JSON_TYPE);
+                            out = Send(exchange, responseCode, responseLength, gzip);
+
+                            String json = GSON.toJson(PLog.Stats());
+                            IOUtils.write(json, out, "UTF-8");
+                        } else if(rel.equals("levels")) {
+                            // Request to view or change logger settings. Changes must be POSTed with the token.
+                            responseCode = changeLevels(query, exchange);
+                            if(responseCode != 200) {
+                                exchange.sendResponseHeaders(responseCode, -1);
+                            } else {
+                                headers.set("content-type", JSON_TYPE);
+                                out = Send(exchange, responseCode, responseLength, gzip);
+
+                                String json = GSON.toJson(LoggerConfig.Describe());
+                                IOUtils.write(json, out, "UTF-8");
+                            }
+                        } else {
+                            // Some other resource requested. Look for it in the web directory and send it, if it exists.
+                            if(!assets.send(rel, exchange)) {
+                                // Resource not found.
+                                responseCode = 404;
+                                exchange.sendResponseHeaders(responseCode, responseLength);
+                                System.out.println("Not found: /web/" + rel);
+                            }
+                        }
+                    } catch(Exception e) {
+                        try {
+                            // Something has gone wrong. Try to send back a 500 server error response.
+                            int responseCode = 500;
+                            int responseLength = 0;
+                            exchange.getResponseHeaders().set("content-type", "text/html; charset=utf-8");
+                            exchange.sendResponseHeaders(responseCode, responseLength);
+                            IOUtils.write("Error: " + e.toString(), exchange.getResponseBody(), "UTF-8");
+                        } catch(IOException ex) {}
+                    } finally {
+                        if(!streaming) {
+                            IOUtils.closeQuietly(exchange.getRequestBody());
+                            IOUtils.closeQuietly(out); // Finishes the gzip stream.
+                            IOUtils.closeQuietly(exchange.getResponseBody());
+
+                            if(endpoint != null) {
+                                latency.get(endpoint).record((System.nanoTime() - started) / 1000);
+                            }
+                        }
+                    }
+                }
+            });
+
+            this.server = server;
+
+            // Start listening for connections.
+            server.setExecutor(executor);
+            server.start();
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+    Register the request metrics. See Metrics.
+    */
+    private void registerMetrics() {
+        for(String endpoint : ENDPOINTS) {
+            latency.put(endpoint, Metrics.Histogram("plog_http_request_micros", "endpoint=\"" + endpoint + "\"", "Time to answer a request, by endpoint."));
+        }
+        Metrics.Counter("plog_http_rejected_total", "", "Requests answered with 503 because the request queue was full.", new Metrics.Value() {
+            public long get() { return rejected.get(); }
+        });
+        Metrics.Counter("plog_http_timed_out_total", "", "Queries cancelled at the request timeout.", new Metrics.Value() {
+            public long get() { return timedOut.get(); }
+        });
+    }
+
+    /*
+    Stop the server.
+    */
+    public void stop() {
+        if(this.server != null) {
+            System.out.println("Shutting down log server.");
+
+            tail.stop();
+            // Blocks for specified number of seconds or until all current handlers have completed, whichever is first.
+            // The wait takes the whole second even without any, so it is skipped when no request is being answered.
+            this.server.stop(executor.getActiveCount() > 0 ? 1 : 0);
+            this.server = null;
+
+            executor.shutdownNow();
+            rejecter.shutdownNow();
+            timer.shutdownNow();
+            if(queries != null) {
+                queries.shutdownNow();
+            }
+            pool.close();
+        }
+    }
+
+    /*
+    Returns request and connection pool counters, for display.
+    */
+    public Map<String, Object> describe() {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        if(executor != null) {
+            map.put("threads", executor.getPoolSize());
+            map.put("active", executor.getActiveCount());
+            map.put("queued", executor.getQueue().size());
+        }
+        map.put("rejected", rejected.get());
+        map.put("timedOut", timedOut.get());
+        if(pool != null) {
+            map.put("connections", pool.describe());
+        }
+        map.put("tail", tail.describe());
+        map.put("cache", cache.describe());
+        map.put("assets", assets.describe());
+        if(collector != null) {
+            map.put("collector", collector.describe());
+        }
+        return map;
+    }
+
+    /*
+    Returns true if the client accepts gzipped responses.
+    */
+    static boolean AcceptsGzip(HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if(accept == null) {
+            return false;
+        }
+
+        for(String coding : accept.split(",")) {
+            String[] parts = coding.trim().split("\\s*;\\s*");
+            if(parts[0].equals("gzip") && !(parts.length > 1 && parts[1].matches("q=0(\\.0*)?"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+    Send the response headers and return the stream to write the body to. The body is gzipped if the
+    client accepts it, and then sent chunked. length is as for sendResponseHeaders.
+    */
+    private static OutputStream Send(HttpExchange exchange, int code, long length, boolean gzip) throws IOException {
+        if(gzip && length >= 0) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            exchange.sendResponseHeaders(code, 0);
+            return new GZIPOutputStream(exchange.getResponseBody());
+        }
+
+        exchange.sendResponseHeaders(code, length);
+        return exchange.getResponseBody();
+    }
+
+    /*
+    Pass newly committed messages to the live tail subscribers.
+    */
+    public void publish(List<Message> msgs) {
+        tail.publish(msgs);
+    }
+
+    /*
+    Cancel the statement if it is still running at the deadline (epoch millis), the request
+    timeout after the request started.
+    */
+    private Future<?> cancelAt(final Statement s, long deadline) {
+        return timer.schedule(new Runnable() {
+            public void run() {
+                timedOut.incrementAndGet();
+                try { s.cancel(); } catch(SQLException e) {}
+            }
+        }, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /*
+    Stop the timeout of a finished statement. If the cancel has already started, wait for it, so it
+    can't interrupt the next query on the connection.
+    */
+    private static void Finish(Future<?> timeout) {
+        if(timeout != null && !timeout.cancel(false)) {
+            try { timeout.get(); } catch(Exception e) {}
+        }
+    }
+
+    /*
+    Returns a factory for daemon threads with the given name. Threads of a reject factory answer
+    every request with 503.
+    */
+    private static ThreadFactory Threads(final String name, final boolean reject) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        if(reject) {
+                            REJECT.set(Boolean.TRUE);
+                        }
+                        r.run();
+                    }
+                }, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /*
+    Handle a request to the levels page. Returns the response code: 200 to answer with the current
+    settings, after making the changes of a POST with the token.
+    */
+    private int changeLevels(Map<String, String> query, HttpExchange exchange) throws IOException {
+        int code = checkChange(exchange, query.containsKey("level") || query.containsKey("callsite") || query.containsKey("ratelimit"));
+        if(code != 0) {
+            return code;
+        }
+
+        // Parameters can also be sent as a form.
+        String body = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+        for(String pair : body.split("&")) {
+            String[] parts = pair.split("=", 2);
+            if(parts[0].length() > 0) {
+                query.put(parts[0], parts.length > 1 ? parts[1] : "");
+            }
+        }
+
+        setLevels(query);
+        return 200;
+    }
+
+    /*
+    Handle a request to the cache page. Returns the response code: 200 to answer with the cache
+    contents, after clearing it for a POST with the token.
+    */
+    private int changeCache(Map<String, String> query, HttpExchange exchange) throws IOException {
+        int code = checkChange(exchange, query.containsKey("clear"));
+        if(code != 0) {
+            return code;
+        }
+        cache.clear();
+        return 200;
+    }
+
+    /*
+    Check a request to a page that can make changes. Returns 0 for a POST with the token, which may
+    make them. Otherwise returns the response code: 200 for a GET that only lists the current state,
+    405 for a GET asking for changes, so a crawler or a link on another page can't make them, and 403
+    for a POST without the token.
+    */
+    private int checkChange(HttpExchange exchange, boolean changes) {
+        if(!exchange.getRequestMethod().equals("POST")) {
+            if(changes) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                return 405;
+            }
+            return 200;
+        }
+        if(levelsToken.length() == 0 || !levelsToken.equals(exchange.getRequestHeaders().getFirst(Collector.TOKEN_HEADER))) {
+            return 403;
+        }
+        return 0;
+    }
+
+    /*
+    Change logger settings at runtime. All parameters are optional:
+    logger - Logger name. If missing, the change applies to all loggers.
+    level - Minimum level. "default" removes a logger's own level so it uses the global level.
+    callsite - Levels at which the call site is captured: all, none, or a comma separated list.
+    ratelimit - Messages per second from each call site. 0 removes the limit.
+    */
+    private void setLevels(Map<String, String> query) throws IOException {
+        String logger = query.get("logger");
+        String level = query.get("level");
+        String callsite = query.get("callsite");
+        String ratelimit = query.get("ratelimit");
+
+        if(logger != null) {
+            logger = URLDecoder.decode(logger, "UTF-8");
+        }
+
+        if(level != null) {
+            if(level.equalsIgnoreCase("default")) {
+                LoggerConfig.SetLevel(logger, null);
+            } else {
+                Message.Level l = LoggerConfig.ParseLevel(level, null);
+                if(l != null) {
+                    LoggerConfig.SetLevel(logger, l);
+                }
+            }
+        }
+
+        if(callsite != null) {
+            callsite = URLDecoder.decode(callsite, "UTF-8");
+            if(logger != null) {
+                LoggerConfig.get(logger).setCapture(callsite);
+            } else {
+                LoggerConfig.SetCaptureAll(callsite);
+            }
+        }
+
+        if(ratelimit != null) {
+            double perSecond = Double.parseDouble(ratelimit);
+            if(logger != null) {
+                LoggerConfig.get(logger).setRateLimit(perSecond);
+            } else {
+                LoggerConfig.SetRateLimitAll(perSecond);
+            }
+        }
+    }
+
+    /*
+    Query log database based on user parameters, and stream the result as JSON. See LogQuery for
+    the parameters.
+    Rows are written to the response as they are read from the result set, so memory use doesn't
+    depend on the page size. Headers are sent once the first query has run, so invalid parameters
+    and query errors still get an error response.
+
+    The query runs on the partitions that overlap its time range until the page is full. See scan().
+
+    The response has the page of messages, and the cursors of the next and previous pages (missing
+    if there are none).
+    */
+    private void writeLogs(Map<String, String> query, HttpExchange exchange, boolean gzip) throws IOException {
+        LogQuery q = LogQuery.Parse(query);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        // The same query may have been answered already.
+        String key = "logs\0" + q.key();
+        byte[] cached = cache.get(key);
+        if(cached != null) {
+            OutputStream out = Send(exchange, 200, cached.length, gzip);
+            out.write(cached);
+            out.close();
+            return;
+        }
+        ResultCache.Version version = new ResultCache.Version(q.upper());
+
+        try {
+            // Paging forward, one extra row is read to find out if there is another page.
+            LogQuery page = q;
+            int rows = q.limit + 1;
+            boolean before = false; // Paging backwards: there are rows before the page.
+
+            if(q.prev) {
+                // Paging backwards. Read the keys of the rows back from the cursor, plus one. The page
+                // is then read in display order, starting after the extra row, or from the start of the
+                // time range if there is no extra row.
+                Keys keys = new Keys();
+                scan(q, SELECT_KEYS, q.limit + 1, deadline, keys);
+
+                before = keys.count > q.limit;
+                rows = Math.min(keys.count, q.limit);
+                page = q.copy();
+                page.prev = false;
+                page.hasCursor = before;
+                page.cursorTs = keys.ts;
+                page.cursorId = keys.id;
+            }
+
+            Page writer = new Page(exchange, gzip, cache, q.limit);
+            if(rows > 0) {
+                scan(page, SELECT_ROWS, rows, deadline, writer);
+            }
+            writer.start();
+
+            // Cursors. Paging backwards, there is another page if there are rows before the first one.
+            // Paging forward there is a previous page if we came from one, and vice versa.
+            String first = writer.empty() ? null : LogQuery.Cursor(writer.firstTs, writer.firstId);
+            String last = writer.empty() ? null : LogQuery.Cursor(writer.last.time, writer.last.id);
+            String cursor = q.hasCursor ? LogQuery.Cursor(q.cursorTs, q.cursorId) : null;
+            String next;
+            String prev;
+            if(q.prev) {
+                prev = before ? first : null;
+                next = last != null ? last : cursor;
+            } else {
+                next = writer.more ? last : null;
+                prev = q.hasCursor ? (first != null ? first : cursor) : null;
+            }
+
+            writer.finish(next, prev);
+
+            byte[] body = writer.out.bytes();
+            if(body != null) {
+                cache.put(key, body, version);
+            }
+        } catch(SQLException e) {
+            System.out.println(e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+    Run a query over its time range, in reading order, passing up to limit rows to the handler.
+    select is SELECT_KEYS or SELECT_ROWS. Statements still running at the deadline are cancelled.
+    Queries of the newest messages are answered from the TailCache instead.
+
+    The range is split into slices that don't overlap in time: the partitions it overlaps, or
+    query.slices equal parts of the range if it is in one file. Reading the slices one after another
+    gives the rows in (ts, id) order, so merging them needs no sorting.
+    With more than one query thread, slices are read ahead, up to query.threads at a time, each on
+    its own connection, and their rows are kept until the slices before them are done. Once the
+    page is full, the slices still running are cancelled and the rest aren't started. Pages over
+    query.parallel.rows are read one slice at a time and streamed instead, to bound memory use.
+    */
+    private void scan(LogQuery q, String select, int limit, long deadline, Rows handler) throws SQLException, IOException {
+        // Recent messages are in memory.
+        List<Message> recent = PLog.GetTailCache().find(q, limit);
+        if(recent != null) {
+            for(Message m : recent) {
+                handler.row(m);
+            }
+            return;
+        }
+
+        boolean parallel = queries != null && limit <= parallelRows;
+        List<Slice> slices = Slices(q, parallel ? querySlices : 1);
+
+        int count = 0;
+        if(!parallel) {
+            for(Slice slice : slices) {
+                if(count >= limit) {
+                    break;
+                }
+                count += new SliceQuery(slice, select, limit - count, deadline).run(handler);
+            }
+            return;
+        }
+
+        Iterator<Slice> next = slices.iterator();
+        LinkedList<SliceQuery> running = new LinkedList<SliceQuery>();
+        try {
+            while(count < limit) {
+                // Keep up to query.threads slices running ahead.
+                while(running.size() < queryThreads && next.hasNext()) {
+                    SliceQuery sq = new SliceQuery(next.next(), select, limit - count, deadline);
+                    sq.future = queries.submit(sq);
+                    running.add(sq);
+                }
+                if(running.isEmpty()) {
+                    break;
+                }
+
+                // Pass on the rows of the first slice.
+                for(Message m : running.removeFirst().get(deadline)) {
+                    if(count == limit) {
+                        break;
+                    }
+                    count++;
+                    handler.row(m);
+                }
+            }
+        } finally {
+            // The page is full, or the request failed.
+            for(SliceQuery sq : running) {
+                sq.cancel();
+            }
+        }
+    }
+
+    /*
+    Returns the slices of the query's time range, in reading order. A range in one partition is
+    split into the given number of equal parts.
+    */
+    private static List<Slice> Slices(LogQuery q, int parts) {
+        List<Partitions.Partition> partitions = Partitions.List(q.lower(), q.upper());
+        if(partitions.size() > 1) {
+            parts = 1;
+        }
+
+        List<Slice> slices = new ArrayList<Slice>();
+        for(Partitions.Partition p : partitions) {
+            long from = Math.max(q.lower(), p.start);
+            long to = Math.min(q.upper(), p.end - 1);
+            long step = (to - from) / parts + 1;
+
+            for(long start = from; start <= to && start >= from; start += step) {
+                LogQuery sq = q.copy();
+                sq.from = start;
+                sq.to = Math.min(to, start + step - 1);
+                slices.add(new Slice(p.path, sq));
+            }
+        }
+
+        if(!q.scanAsc()) {
+            Collections.reverse(slices);
+        }
+        return slices;
+    }
+
+    /*
+    The part of a query in one database file and time range.
+    */
+    private static class Slice {
+        final String path;
+        final LogQuery q;
+
+        Slice(String path, LogQuery q) {
+            this.path = path;
+            this.q = q;
+        }
+    }
+
+    /*
+    Runs the query of one slice, streaming its rows to a handler, or as a task on a query thread
+    that collects them.
+    */
+    private class SliceQuery implements Callable<List<Message>> {
+        private final Slice slice;
+        private final String select;
+        private final int limit;
+        private final long deadline;
+        Future<List<Message>> future = null; // Set when run as a task.
+        private Statement statement = null; // While running. Guarded by this.
+        private boolean cancelled = false; // Guarded by this.
+
+        SliceQuery(Slice slice, String select, int limit, long deadline) {
+            this.slice = slice;
+            this.select = select;
+            this.limit = limit;
+            this.deadline = deadline;
+        }
+
+        public List<Message> call() throws SQLException, IOException {
+            final List<Message> rows = new ArrayList<Message>();
+            run(new Rows() {
+                public void row(Message m) {
+                    rows.add(m);
+                }
+            });
+            return rows;
+        }
+
+        /*
+        Run the query, passing the rows to the handler. Returns the number of rows.
+        */
+        int run(Rows handler) throws SQLException, IOException {
+            int count = 0;
+            Connection c = pool.take(slice.path, Math.max(0, deadline - System.currentTimeMillis()));
+            PreparedStatement s = null;
+            ResultSet rs = null;
+            Future<?> timeout = null;
+
+            try {
+                LogQuery q = slice.q;
+                SearchIndex.Plan(c, q); // Per file: the word counts differ.
+
+                s = c.prepareStatement(select + " where " + q.where() + " order by " + q.orderBy() + " limit " + limit);
+                q.bind(s, 1);
+                synchronized(this) {
+                    if(cancelled) {
+                        return 0;
+                    }
+                    statement = s;
+                }
+                timeout = cancelAt(s, deadline);
+
+                // Submit query.
+                rs = s.executeQuery();
+                boolean full = select.equals(SELECT_ROWS);
+                while(rs.next()) {
+                    Message m = new Message();
+                    m.id = rs.getLong("id");
+                    m.time = rs.getLong("ts");
+                    if(full) {
+                        m.level = Message.Level.FromSeverity(rs.getInt("level"));
+                        m.logger = rs.getString("logger");
+                        m.message = rs.getString("message");
+                        m.node = rs.getString("node");
+                        m.trace = rs.getString("trace");
+                    }
+
+                    count++;
+                    handler.row(m);
+                }
+            } catch(SQLException e) {
+                synchronized(this) {
+                    if(!cancelled) {
+                        throw e;
+                    }
+                }
+            } finally {
+                // Cleanup. The statement can't be cancelled once the connection is back in the pool.
+                synchronized(this) {
+                    statement = null;
+                }
+                Finish(timeout);
+                try { if(rs != null) rs.close(); } catch (SQLException e) {}
+                try { if(s != null) s.close(); } catch(SQLException e) {}
+                pool.release(c);
+            }
+
+            return count;
+        }
+
+        /*
+        Returns the rows of the task, waiting until the deadline.
+        */
+        List<Message> get(long deadline) throws SQLException, IOException {
+            try {
+                return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch(TimeoutException e) {
+                cancel();
+                throw new SQLException("Query timed out.");
+            } catch(InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new SQLException("Query interrupted.");
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof SQLException) {
+                    throw (SQLException)e.getCause();
+                }
+                if(e.getCause() instanceof IOException) {
+                    throw (IOException)e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        /*
+        Stop the task: it isn't started if it is still queued, and its statement is cancelled if it
+        is running.
+        */
+        void cancel() {
+            synchronized(this) {
+                cancelled = true;
+                try { if(statement != null) statement.cancel(); } catch(SQLException e) {}
+            }
+            if(future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /*
+    Receives the rows of a scan, in order.
+    */
+    private interface Rows {
+        void row(Message m) throws IOException;
+    }
+
+    /*
+    Counts the rows of a key scan (ts, id), and keeps the last key.
+    */
+    private static class Keys implements Rows {
+        int count = 0;
+        long ts;
+        long id;
+
+        public void row(Message m) {
+            count++;
+            ts = m.time;
+            id = m.id;
+        }
+    }
+
+    /*
+    Writes the rows of a page to the response. A row past the page size isn't written, but is noted
+    in more.
+    */
+    private static class Page implements Rows {
+        private final HttpExchange exchange;
+        private final boolean gzip;
+        private final ResultCache cache;
+        private final int limit;
+        private final DateFormat df;
+        private JsonWriter writer = null;
+        ResultCache.Capture out = null; // Copy of the response, for the cache.
+        private int rows = 0;
+        Message last = null; // Last row written.
+        long firstTs;
+        long firstId;
+        boolean more = false;
+
+        Page(HttpExchange exchange, boolean gzip, ResultCache cache, int limit) {
+            this.exchange = exchange;
+            this.gzip = gzip;
+            this.cache = cache;
+            this.limit = limit;
+
+            // Specify the format and timezone that we want to display the timestamp as.
+            this.df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            this.df.setTimeZone(TimeZone.getDefault());
+        }
+
+        public void row(Message m) throws IOException {
+            if(rows++ == limit) {
+                // The extra row. Not part of the page.
+                more = true;
+                return;
+            }
+
+            m.ts = df.format(new Date(m.time));
+            last = m;
+
+            start();
+            GSON.toJson(m, Message.class, writer);
+
+            if(rows == 1) {
+                firstTs = m.time;
+                firstId = m.id;
+            }
+        }
+
+        boolean empty() {
+            return rows == 0;
+        }
+
+        /*
+        Send the headers and open the messages array, if not done yet.
+        */
+        void start() throws IOException {
+            if(writer == null) {
+                out = cache.capture(Send(exchange, 200, 0, gzip));
+                writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")));
+                writer.beginObject();
+                writer.name("messages");
+                writer.beginArray();
+            }
+        }
+
+        /*
+        Close the messages array and write the cursors.
+        */
+        void finish(String next, String prev) throws IOException {
+            writer.endArray();
+
+            if(next != null) {
+                writer.name("next").value(next);
+            }
+            if(prev != null) {
+                writer.name("prev").value(prev);
+            }
+
+            writer.endObject();
+            writer.close();
+        }
+    }
+
+    /*
+    Returns the names in the logger or node dictionary of all partitions, for the search boxes.
+    */
+    private List<String> getNames(String table) {
+        Set<String> names = new TreeSet<String>();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        for(Partitions.Partition p : Partitions.List(Long.MIN_VALUE, Long.MAX_VALUE)) {
+            Connection c = null;
+            PreparedStatement s = null;
+            ResultSet rs = null;
+            Future<?> timeout = null;
+
+            try {
+                c = pool.take(p.path, Math.max(0, deadline - System.currentTimeMillis()));
+                s = c.prepareStatement("select name from " + table);
+                timeout = cancelAt(s, deadline);
+                rs = s.executeQuery();
+
+                while(rs.next()) {
+                    names.add(rs.getString("name"));
+                }
+            } catch(Exception e) {
+                System.out.println(e);
+                throw new RuntimeException(e);
+            } finally {
+                // Cleanup.
+                Finish(timeout);
+                try { if(rs != null) rs.close(); } catch (SQLException e) {}
+                try { if(s != null) s.close(); } catch(SQLException e) {}
+                if(c != null) pool.release(c);
+            }
+        }
+
+        return new ArrayList<String>(names);
+    }
+
+    /*
+    Returns a summary of the message counts, from the log_rollup table. Parameters:
+    by - "day" (default): count for each day of the last 30 days.
+         "level" or "logger": counts for each level or logger, for each day of the last 30 days.
+         "hour": count for each hour of one day.
+    day - The day for "hour", yyyy-MM-dd. Defaults to today.
+    level, logger, node - Count only the matching messages, as for the log query. See LogQuery.
+    Days and hours are in the server's local timezone. With partitions, the counts of each
+    partition in the range are added up.
+    Returns the summary as JSON. Responses are cached, see ResultCache.
+    */
+    private byte[] getLogSummary(Map<String, String> query) throws ParseException, IOException {
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+        df.setTimeZone(TimeZone.getDefault());
+
+        final String by = query.containsKey("by") ? query.get("by") : "day";
+        final LogQuery filter = LogQuery.ParseFilter(query);
+        String where = "r.hour >= ? and r.hour < ?" + filter.rollupWhere();
+        String dt = "strftime('%Y-%m-%d', r.hour * 3600, 'unixepoch', 'localtime')";
+        long fromHour = (System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30)) / Rollup.HOUR_MILLIS;
+        long toHour = Long.MAX_VALUE / Rollup.HOUR_MILLIS;
+
+        // Query statement.
+        final String sql;
+        if(by.equals("level")) {
+            sql = "select " + dt + " dt, r.level k, sum(r.count) c from log_rollup r where " + where + " group by dt, k";
+        } else if(by.equals("logger")) {
+            sql = "select " + dt + " dt, logger.name k, sum(r.count) c from log_rollup r join logger on logger.id = r.logger_id where " + where + " group by dt, k";
+        } else if(by.equals("hour")) {
+            Calendar day = Calendar.getInstance();
+            if(query.containsKey("day")) {
+                day.setTime(df.parse(query.get("day")));
+            }
+            day.setTime(df.parse(df.format(day.getTime()))); // Midnight.
+            fromHour = day.getTimeInMillis() / Rollup.HOUR_MILLIS;
+            day.add(Calendar.DATE, 1);
+            toHour = day.getTimeInMillis() / Rollup.HOUR_MILLIS;
+
+            sql = "select strftime('%Y-%m-%d %H', r.hour * 3600, 'unixepoch', 'localtime') dt, sum(r.count) c from log_rollup r where " + where + " group by dt";
+        } else {
+            sql = "select " + dt + " dt, sum(r.count) c from log_rollup r where " + where + " group by dt";
+        }
+        final long from = fromHour;
+        final long to = toHour;
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        String key = "summary\0" + by + "\0" + fromHour + "\0" + toHour + "\0" + filter.level + "\0" + filter.logger + (filter.loggerPrefix ? "*" : "") + "\0" + filter.node;
+        byte[] cached = cache.get(key);
+        if(cached != null) {
+            return cached;
+        }
+        ResultCache.Version version = new ResultCache.Version(toHour * Rollup.HOUR_MILLIS - 1);
+
+        // One query per partition, run on the query threads.
+        List<Callable<Map<String, Object>>> tasks = new ArrayList<Callable<Map<String, Object>>>();
+        for(final Partitions.Partition p : Partitions.List(fromHour * Rollup.HOUR_MILLIS, toHour * Rollup.HOUR_MILLIS - 1)) {
+            tasks.add(new Callable<Map<String, Object>>() {
+                public Map<String, Object> call() throws SQLException {
+                    return summarize(p.path, sql, from, to, filter, by, deadline);
+                }
+            });
+        }
+
+        Map<String, Object> map = new TreeMap<String, Object>();
+        try {
+            for(Map<String, Object> counts : All(tasks, deadline)) {
+                Merge(map, counts);
+            }
+        } catch(SQLException e) {
+            System.out.println(e);
+            throw new RuntimeException(e);
+        }
+
+        byte[] json = GSON.toJson(map).getBytes("UTF-8");
+        cache.put(key, json, version);
+        return json;
+    }
+
+    /*
+    Returns the summary counts of one partition.
+    */
+    private Map<String, Object> summarize(String path, String sql, long fromHour, long toHour, LogQuery filter, String by, long deadline) throws SQLException {
+        boolean nested = by.equals("level") || by.equals("logger");
+        Map<String, Object> map = new TreeMap<String, Object>();
+
+        Connection c = null;
+        PreparedStatement s = null;
+        ResultSet rs = null;
+        Future<?> timeout = null;
+
+        try {
+            c = pool.take(path, Math.max(0, deadline - System.currentTimeMillis()));
+
+            s = c.prepareStatement(sql);
+            s.setLong(1, fromHour);
+            s.setLong(2, toHour);
+            filter.bindRollup(s, 3);
+            timeout = cancelAt(s, deadline);
+
+            // Submit query.
+            rs = s.executeQuery();
+
+            while(rs.next()) {
+                long count = rs.getLong("c");
+                if(count <= 0) {
+                    continue;
+                }
+
+                if(nested) {
+                    // Counts by level or logger, within the day.
+                    String key = by.equals("level") ? Message.Level.FromSeverity(rs.getInt("k")).toString() : rs.getString("k");
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> counts = (Map<String, Object>)map.get(rs.getString("dt"));
+                    if(counts == null) {
+                        counts = new TreeMap<String, Object>();
+                        map.put(rs.getString("dt"), counts);
+                    }
+                    counts.put(key, count);
+                } else {
+                    map.put(rs.getString("dt"), count);
+                }
+            }
+
+            return map;
+        } finally {
+            // Cleanup.
+            Finish(timeout);
+            try { if(rs != null) rs.close(); } catch (SQLException e) {}
+            try { if(s != null) s.close(); } catch(SQLException e) {}
+            if(c != null) pool.release(c);
+        }
+    }
+
+    /*
+    Returns the exceptions logged in the query's time range, by trace fingerprint, most frequent
+    first. The level, logger, node and search filters apply, and up to the query's limit are
+    returned. With partitions, the counts of each partition in the range are added up.
+    Returns the exceptions as JSON. Responses are cached, see ResultCache.
+    */
+    private byte[] getExceptions(Map<String, String> query) throws IOException {
+        final LogQuery q = LogQuery.Parse(query);
+        q.hasCursor = false;
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        String key = "exceptions\0" + q.key();
+        byte[] cached = cache.get(key);
+        if(cached != null) {
+            return cached;
+        }
+        ResultCache.Version version = new ResultCache.Version(q.to);
+
+        // One query per partition, run on the query threads.
+        List<Callable<List<ExceptionCount>>> tasks = new ArrayList<Callable<List<ExceptionCount>>>();
+        for(final Partitions.Partition p : Partitions.List(q.from, q.to)) {
+            tasks.add(new Callable<List<ExceptionCount>>() {
+                public List<ExceptionCount> call() throws SQLException {
+                    return countExceptions(p.path, q.copy(), deadline);
+                }
+            });
+        }
+
+        Map<String, ExceptionCount> merged = new HashMap<String, ExceptionCount>();
+        try {
+            for(List<ExceptionCount> counts : All(tasks, deadline)) {
+                for(ExceptionCount e : counts) {
+                    ExceptionCount into = merged.get(e.fingerprint);
+                    if(into == null) {
+                        merged.put(e.fingerprint, e);
+                    } else {
+                        into.count += e.count;
+                        into.firstTime = Math.min(into.firstTime, e.firstTime);
+                        into.lastTime = Math.max(into.lastTime, e.lastTime);
+                    }
+                }
+            }
+        } catch(SQLException e) {
+            System.out.println(e);
+            throw new RuntimeException(e);
+        }
+
+        List<ExceptionCount> top = new ArrayList<ExceptionCount>(merged.values());
+        Collections.sort(top, new Comparator<ExceptionCount>() {
+            public int compare(ExceptionCount a, ExceptionCount b) {
+                return a.count != b.count ? (a.count > b.count ? -1 : 1) : (a.lastTime > b.lastTime ? -1 : a.lastTime < b.lastTime ? 1 : 0);
+            }
+        });
+        if(top.size() > q.limit) {
+            top = new ArrayList<ExceptionCount>(top.subList(0, q.limit));
+        }
+
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        df.setTimeZone(TimeZone.getDefault());
+        for(ExceptionCount e : top) {
+            e.first = df.format(new Date(e.firstTime));
+            e.last = df.format(new Date(e.lastTime));
+        }
+
+        byte[] json = GSON.toJson(top).getBytes("UTF-8");
+        cache.put(key, json, version);
+        return json;
+    }
+
+    /*
+    Returns the exception counts of one partition.
+    */
+    private List<ExceptionCount> countExceptions(String path, LogQuery q, long deadline) throws SQLException {
+        List<ExceptionCount> counts = new ArrayList<ExceptionCount>();
+
+        Connection c = null;
+        PreparedStatement s = null;
+        ResultSet rs = null;
+        Future<?> timeout = null;
+
+        try {
+            c = pool.take(path, Math.max(0, deadline - System.currentTimeMillis()));
+            SearchIndex.Plan(c, q);
+
+            // The trace_id condition lets SQLite use the index of messages with a trace.
+            s = c.prepareStatement(
+                "select trace.fingerprint, trace.text, count(*) c, min(log.ts) first, max(log.ts) last " +
+                "from log join trace on trace.id = log.trace_id where " + q.where() + " and log.trace_id is not null group by log.trace_id");
+            q.bind(s, 1);
+            timeout = cancelAt(s, deadline);
+
+            // Submit query.
+            rs = s.executeQuery();
+
+            while(rs.next()) {
+                ExceptionCount e = new ExceptionCount();
+                e.fingerprint = rs.getString("fingerprint");
+                e.trace = rs.getString("text");
+                e.exception = e.trace.split("\n", 2)[0];
+                e.count = rs.getLong("c");
+                e.firstTime = rs.getLong("first");
+                e.lastTime = rs.getLong("last");
+                counts.add(e);
+            }
+
+            return counts;
+        } finally {
+            // Cleanup.
+            Finish(timeout);
+            try { if(rs != null) rs.close(); } catch (SQLException e) {}
+            try { if(s != null) s.close(); } catch(SQLException e) {}
+            if(c != null) pool.release(c);
+        }
+    }
+
+    /*
+    Occurrences of one stack trace, for the exceptions query.
+    */
+    private static class ExceptionCount {
+        String fingerprint;
+        String exception; // Class name of the outermost exception.
+        long count;
+        String first; // Display timestamps of the first and last occurrence.
+        String last;
+        String trace;
+        transient long firstTime; // Epoch millis.
+        transient long lastTime;
+    }
+
+    /*
+    Run the tasks on the query threads, and return their results in order. With one task or one
+    query thread, they are run on the calling thread.
+    */
+    private <T> List<T> All(List<Callable<T>> tasks, long deadline) throws SQLException {
+        List<T> results = new ArrayList<T>();
+
+        if(queries == null || tasks.size() < 2) {
+            for(Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch(SQLException e) {
+                    throw e;
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        try {
+            for(Callable<T> task : tasks) {
+                futures.add(queries.submit(task));
+            }
+            for(Future<T> f : futures) {
+                results.add(f.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            }
+        } catch(TimeoutException e) {
+            throw new SQLException("Query timed out.");
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Query interrupted.");
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof SQLException) {
+                throw (SQLException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for(Future<T> f : futures) {
+                f.cancel(false);
+            }
+        }
+
+        return results;
+    }
+
+    /*
+    Add counts to a summary. A day can span two partitions, so its counts come in parts.
+    */
+    @SuppressWarnings("unchecked")
+    private static void Merge(Map<String, Object> map, Map<String, Object> counts) {
+        for(Map.Entry<String, Object> e : counts.entrySet()) {
+            if(e.getValue() instanceof Map) {
+                Map<String, Object> into = (Map<String, Object>)map.get(e.getKey());
+                if(into == null) {
+                    into = new TreeMap<String, Object>();
+                    map.put(e.getKey(), into);
+                }
+                Merge(into, (Map<String, Object>)e.getValue());
+            } else {
+                Long total = (Long)map.get(e.getKey());
+                map.put(e.getKey(), total == null ? (Long)e.getValue() : total + (Long)e.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package plog;
+
+import java.io.File;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+Layout of the log database files in the log directory.
+
+By default all messages are in one file, plog.db. With partitions set in plog.properties, each day
+or hour has a file of its own, named by its start time in UTC, e.g. plog-2026-10-18.db or
+plog-2026-10-18-13.db:
+
+partitions=none   (none, day or hour)
+
+A message goes to the file of its timestamp, so files never overlap in time. Reading them in time
+order gives the messages in (ts, id) order, and ids only need to be unique within a file. The
+writer creates files as they are needed, queries only open the files that overlap their time range,
+and the retention job deletes whole files once they are past the retention period.
+
+Changing the layout doesn't move existing messages. Files of the other layout are left in place,
+but aren't read.
+*/
+class Partitions {
+    enum Layout { NONE, DAY, HOUR }
+
+    static final Layout LAYOUT = ParseLayout();
+
+    /*
+    One database file and the time range it holds.
+    */
+    static class Partition implements Comparable<Partition> {
+        final String path;
+        final long start; // Epoch millis, inclusive.
+        final long end; // Epoch millis, exclusive.
+
+        Partition(String path, long start, long end) {
+            this.path = path;
+            this.start = start;
+            this.end = end;
+        }
+
+        public boolean contains(long ts) {
+            return ts >= start && ts < end;
+        }
+
+        public int compareTo(Partition p) {
+            return start < p.start ? -1 : (start > p.start ? 1 : 0);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Partition && path.equals(((Partition)o).path);
+        }
+
+        public int hashCode() {
+            return path.hashCode();
+        }
+
+        public String toString() {
+            return path;
+        }
+    }
+
+    /*
+    Returns the partition a message with the given timestamp is written to.
+    */
+    public static Partition For(long ts) {
+        if(LAYOUT == Layout.NONE) {
+            return Main();
+        }
+
+        long length = Length();
+        long start = ts - ((ts % length) + length) % length;
+        return new Partition(Path(Format().format(new Date(start))), start, start + length);
+    }
+
+    /*
+    Returns the existing partitions that overlap the time range [from, to], oldest first. Without
+    partitions this is the one database file, whether or not it exists yet.
+    */
+    public static List<Partition> List(long from, long to) {
+        List<Partition> list = new ArrayList<Partition>();
+        if(LAYOUT == Layout.NONE) {
+            list.add(Main());
+            return list;
+        }
+
+        String prefix = PLog.LOG_NAME + "-";
+        String[] names = PLog.LogDir().list();
+        if(names == null) {
+            return list;
+        }
+
+        DateFormat df = Format();
+        long length = Length();
+        for(String name : names) {
+            if(!name.startsWith(prefix) || !name.endsWith(".db")) {
+                continue;
+            }
+
+            String date = name.substring(prefix.length(), name.length() - ".db".length());
+            if(date.length() != (LAYOUT == Layout.DAY ? 10 : 13)) {
+                continue; // The other layout.
+            }
+
+            long start;
+            try {
+                start = df.parse(date).getTime();
+            } catch(ParseException e) {
+                continue;
+            }
+
+            if(start + length > from && start <= to) {
+                list.add(new Partition(Path(date), start, start + length));
+            }
+        }
+
+        Collections.sort(list);
+        return list;
+    }
+
+    /*
+    Returns the layout and number of files, for display.
+    */
+    public static Map<String, Object> Describe() {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("layout", LAYOUT.toString().toLowerCase());
+        map.put("files", List(Long.MIN_VALUE, Long.MAX_VALUE).size());
+        return map;
+    }
+
+    private static Partition Main() {
+        return new Partition(new File(PLog.LogDir(), PLog.LOG_NAME + ".db").getPath(), Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private static String Path(String date) {
+        return new File(PLog.LogDir(), PLog.LOG_NAME + "-" + date + ".db").getPath();
+    }
+
+    private static long Length() {
+        return LAYOUT == Layout.DAY ? TimeUnit.DAYS.toMillis(1) : TimeUnit.HOURS.toMillis(1);
+    }
+
+    /*
+    Returns the file name date format. Not thread safe, so a new one is made for each use.
+    */
+    private static DateFormat Format() {
+        DateFormat df = new SimpleDateFormat(LAYOUT == Layout.DAY ? "yyyy-MM-dd" : "yyyy-MM-dd-HH");
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        df.setLenient(false);
+        return df;
+    }
+
+    private static Layout ParseLayout() {
+        String value = PLog.GetProperty("partitions", "none").trim();
+        try {
+            return Layout.valueOf(value.toUpperCase());
+        } catch(IllegalArgumentException e) {
+            System.out.println("Invalid partitions in plog.properties: " + value);
+            return Layout.NONE;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package plog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Rate limit of a logger's call sites. See LoggerConfig for the settings.
+
+Each call site of a logger has a token bucket: it can log ratelimit.burst messages at once, and
+then as many per second as the limit allows. Messages over the limit are dropped on the caller
+thread, before anything is queued.
+
+A message with {} placeholders is told apart by its pattern, which is the same on every call from
+a site. Other messages are told apart by the calling frame, since a message built with + is
+different on every call. Finding the frame walks the stack, so the bucket is also kept under the
+site's first message: a constant message finds it by its text from then on, and only messages
+built with + pay for the walk. The same constant message from two sites of a logger shares a
+bucket.
+
+A logger keeps at most MAX_SITES keys. Past that, the buckets that have filled up again are
+removed, since a new bucket would let the same messages through. If the sites are all busy, the
+least busy are removed, so a new site starts with a full bucket rather than sharing one.
+
+The check is a map lookup and, for a message let through, one compare and set. A message over the
+limit only reads its bucket, so threads stuck in the same loop don't contend on it. Dropped
+messages are counted in plog_rate_limited_total, and the next message let through from the call
+site says how many were dropped before it.
+*/
+class RateLimit {
+    private static final int MAX_SITES = 1000;
+    private static final Counter Limited = Metrics.Counter("plog_rate_limited_total", "Messages dropped by the rate limit of their call site.");
+
+    final double perSecond;
+    private final long intervalNanos; // Time to earn one message.
+    private final long toleranceNanos; // How far ahead of the rate a bucket can be: the burst, less one message.
+    private final ConcurrentMap<Object, Bucket> sites = new ConcurrentHashMap<Object, Bucket>(); // By pattern, message text or calling frame.
+
+    public RateLimit(double perSecond, long burst) {
+        this.perSecond = perSecond;
+        this.intervalNanos = Math.max(1, (long)(1e9 / perSecond));
+        this.toleranceNanos = (Math.max(1, burst) - 1) * intervalNanos;
+    }
+
+    /*
+    Returns the rate limit for all loggers set in plog.properties, in messages per second.
+    */
+    public static double GlobalPerSecond() {
+        return ParsePerSecond("ratelimit", 0);
+    }
+
+    /*
+    Returns the rate limit set in plog.properties for a logger, or otherwise the given messages per
+    second. Null if there is no limit.
+    */
+    public static RateLimit ForLogger(String name, double globalPerSecond) {
+        return Create(ParsePerSecond("ratelimit." + name, globalPerSecond));
+    }
+
+    private static double ParsePerSecond(String property, double defaultValue) {
+        String value = PLog.GetProperty(property, null);
+        if(value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Double.parseDouble(value.trim());
+        } catch(NumberFormatException e) {
+            System.out.println("Invalid rate limit " + property + " in plog.properties: " + e.getMessage());
+            return defaultValue;
+        }
+    }
+
+    /*
+    Returns a rate limit of the given messages per second from each call site, or null for 0 (no
+    limit). The burst is ratelimit.burst in plog.properties, by default one second's worth.
+    */
+    public static RateLimit Create(double perSecond) {
+        if(!(perSecond > 0)) {
+            return null;
+        }
+
+        long burst = PLog.GetLongProperty("ratelimit.burst", (long)Math.ceil(perSecond));
+        return new RateLimit(perSecond, burst);
+    }
+
+    /*
+    Returns true if acquire() would need the calling frame to find the message's bucket.
+    */
+    public boolean needsFrame(String message, boolean pattern) {
+        return !pattern && !sites.containsKey(message != null ? message : "");
+    }
+
+    /*
+    Take a token from the call site's bucket. The pattern flag is set for messages with {}
+    placeholders. The frame is taken from the captured call site if there is one, and otherwise
+    found by walking the stack. Returns -1 if the message is over the limit, and otherwise the
+    number of messages from the call site dropped since the last one let through. Called directly
+    by PLog.log, see CallSite.Caller.
+    */
+    public long acquire(String message, boolean pattern, CallSite site) {
+        String text = message != null ? message : "";
+        Bucket b = sites.get(text);
+        if(b == null) {
+            Object frame = pattern ? null : site != null ? site.frame() : CallSite.Caller();
+            if(frame == null) {
+                b = bucket(text);
+            } else {
+                b = sites.get(frame);
+                if(b == null) {
+                    b = bucket(frame);
+                    // The text finds the bucket without the walk next time, if the message is constant.
+                    sites.putIfAbsent(text, b);
+                }
+            }
+        }
+
+        return b.acquire(System.nanoTime());
+    }
+
+    /*
+    Returns the bucket for a key, adding a full one if there is none.
+    */
+    private Bucket bucket(Object key) {
+        if(sites.size() >= MAX_SITES) {
+            evict(System.nanoTime());
+        }
+
+        Bucket b = new Bucket();
+        Bucket existing = sites.putIfAbsent(key, b);
+        return existing != null ? existing : b;
+    }
+
+    /*
+    Make room for new call sites: remove the buckets that are full again, and if that isn't
+    enough, the least busy ones, down to three quarters of MAX_SITES.
+    */
+    private synchronized void evict(long now) {
+        if(sites.size() < MAX_SITES) {
+            return; // Another thread made room.
+        }
+
+        List<Long> busy = new ArrayList<Long>();
+        for(Iterator<Bucket> it = sites.values().iterator(); it.hasNext(); ) {
+            long f = it.next().full.get();
+            if(f - now <= 0) {
+                it.remove();
+            } else {
+                busy.add(f);
+            }
+        }
+
+        int excess = sites.size() - MAX_SITES * 3 / 4;
+        if(excess > 0) {
+            // Buckets full again soonest have been limiting the least.
+            Collections.sort(busy);
+            long cutoff = busy.get(excess - 1);
+            for(Iterator<Map.Entry<Object, Bucket>> it = sites.entrySet().iterator(); it.hasNext() && excess > 0; ) {
+                if(it.next().getValue().full.get() - cutoff <= 0) {
+                    it.remove();
+                    excess--;
+                }
+            }
+        }
+    }
+
+    /*
+    Token bucket kept as the time it will be full again, ahead of now by the messages let through
+    early (the generic cell rate algorithm).
+    */
+    private class Bucket {
+        private final AtomicLong full = new AtomicLong(System.nanoTime()); // nanoTime at which the bucket is full again.
+        private volatile Counter dropped = null; // Created on the first dropped message.
+        private long reported = 0; // Dropped messages already noted on a message let through. Guarded by this.
+
+        long acquire(long now) {
+            while(true) {
+                long f = full.get();
+                if(f - now > toleranceNanos) {
+                    drop();
+                    return -1;
+                }
+                if(full.compareAndSet(f, (f - now < 0 ? now : f) + intervalNanos)) {
+                    break;
+                }
+            }
+
+            Counter d = dropped;
+            if(d == null) {
+                return 0;
+            }
+            synchronized(this) {
+                long total = d.get();
+                long count = total - reported;
+                reported = total;
+                return Math.max(0, count);
+            }
+        }
+
+        private void drop() {
+            Counter d = dropped;
+            if(d == null) {
+                synchronized(this) {
+                    if(dropped == null) {
+                        dropped = new Counter();
+                    }
+                    d = dropped;
+                }
+            }
+            d.increment();
+            Limited.increment();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package plog;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+Small pool of read only connections to the log database files, shared by the log server's request
+threads. In WAL mode readers don't block the queue pump or each other, so connections are opened
+on demand up to the pool size and reused across requests instead of being opened per request.
+
+With partitions (see Partitions) a connection is for one file. When the pool is full and no idle
+connection is for the requested file, the least recently used idle connection is closed to make
+room. Idle connections to files the retention job has deleted are closed, so the disk space is
+freed.
+*/
+class ReadPool {
+    private final int size;
+    private final LinkedList<Idle> idle = new LinkedList<Idle>(); // Most recently released first.
+    private final Map<Connection, String> taken = new HashMap<Connection, String>(); // Path of each connection in use.
+    private int open = 0; // Connections opened and not yet closed.
+    private boolean closed = false;
+
+    public ReadPool(int size) {
+        this.size = Math.max(1, size);
+    }
+
+    /*
+    Returns a connection to the database file, waiting up to the given time for one to be
+    released. Throws SQLException if none is available in time.
+    */
+    public Connection take(String path, long timeoutMillis) throws SQLException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Idle evicted = null;
+
+        synchronized(this) {
+            while(true) {
+                closeDeleted();
+
+                // Reuse an idle connection to the file.
+                for(Iterator<Idle> it = idle.iterator(); it.hasNext(); ) {
+                    Idle i = it.next();
+                    if(i.path.equals(path)) {
+                        it.remove();
+                        taken.put(i.c, path);
+                        return i.c;
+                    }
+                }
+
+                // Open another connection if the pool isn't full yet, or replace the least recently used idle one.
+                if(open < size) {
+                    open++;
+                    break;
+                }
+                if(!idle.isEmpty()) {
+                    evicted = idle.removeLast();
+                    break;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) {
+                    throw new SQLException("No database connection available.");
+                }
+                try {
+                    wait(remaining);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("No database connection available.");
+                }
+            }
+        }
+
+        if(evicted != null) {
+            try { evicted.c.close(); } catch(SQLException e) {}
+        }
+
+        try {
+            Connection c = PLog.GetReadConnection(path);
+            synchronized(this) {
+                taken.put(c, path);
+            }
+            return c;
+        } catch(RuntimeException e) {
+            synchronized(this) {
+                open--;
+                notifyAll();
+            }
+            throw new SQLException("Couldn't open log database.", e);
+        }
+    }
+
+    /*
+    Return a connection to the pool. It is closed instead if the pool has been closed.
+    */
+    public void release(Connection c) {
+        synchronized(this) {
+            String path = taken.remove(c);
+            if(!closed && path != null) {
+                idle.addFirst(new Idle(path, c));
+                notifyAll();
+                return;
+            }
+        }
+
+        discard(c);
+    }
+
+    /*
+    Close a connection that shouldn't be reused, making room for a new one.
+    */
+    public void discard(Connection c) {
+        try { c.close(); } catch(SQLException e) {}
+
+        synchronized(this) {
+            taken.remove(c);
+            open--;
+            notifyAll();
+        }
+    }
+
+    /*
+    Close the idle connections. Connections in use are closed when they are released.
+    */
+    public synchronized void close() {
+        closed = true;
+
+        for(Idle i : idle) {
+            try { i.c.close(); } catch(SQLException e) {}
+            open--;
+        }
+        idle.clear();
+        notifyAll();
+    }
+
+    /*
+    Returns pool counters, for display.
+    */
+    public synchronized Map<String, Object> describe() {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("size", size);
+        map.put("open", open);
+        map.put("idle", idle.size());
+        return map;
+    }
+
+    /*
+    Close idle connections to deleted files. Called holding the lock.
+    */
+    private void closeDeleted() {
+        for(Iterator<Idle> it = idle.iterator(); it.hasNext(); ) {
+            Idle i = it.next();
+            if(!new File(i.path).exists()) {
+                it.remove();
+                try { i.c.close(); } catch(SQLException e) {}
+                open--;
+            }
+        }
+    }
+
+    private static class Idle {
+        final String path;
+        final Connection c;
+
+        Idle(String path, Connection c) {
+            this.path = path;
+            this.c = c;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package plog;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Collapses repeated messages. Used only by the queue pump thread.
+
+When a message is logged again within the window of its first occurrence, with the same logger,
+level, node, text and stack trace, the repeat isn't written. The first occurrence is written as
+usual, and once the window has passed, one more message is written at the time of the last
+repeat, with "(repeated N times)" after the text. The next occurrence starts a new window.
+Messages are compared once formatted, so messages with {} placeholders and different arguments
+aren't repeats. Set in plog.properties:
+
+repeats.window.millis=0   (length of the window, 0 is off)
+*/
+class Repeats {
+    private static final int MAX_RUNS = 10000; // Messages watched for repeats. Past that the oldest windows are closed early.
+
+    private final long windowMillis;
+    private final Map<String, Run> runs = new LinkedHashMap<String, Run>(); // By logger, level, node, text and trace, in order of first occurrence.
+    private final Counter collapsed = Metrics.Counter("plog_repeats_collapsed_total", "Repeated messages written as a count instead.");
+
+    public Repeats() {
+        this(PLog.GetLongProperty("repeats.window.millis", 0));
+    }
+
+    Repeats(long windowMillis) {
+        this.windowMillis = Math.max(0, windowMillis);
+    }
+
+    /*
+    Returns true if repeated messages are collapsed.
+    */
+    public static boolean Enabled() {
+        return PLog.GetLongProperty("repeats.window.millis", 0) > 0;
+    }
+
+    /*
+    Returns true if there are open windows, which expire() would close during shutdown.
+    */
+    public boolean pending() {
+        return !runs.isEmpty();
+    }
+
+    /*
+    Format the messages and remove the repeats from the list. The counts of windows that have
+    passed are added to the end.
+    */
+    public void collapse(List<Message> msgs) {
+        List<Message> kept = new ArrayList<Message>(msgs.size());
+        for(Message m : msgs) {
+            m.format();
+
+            String key = m.logger + "\0" + m.level + "\0" + m.node + "\0" + m.message + "\0" + m.trace;
+            Run r = runs.get(key);
+            if(r != null && m.time - r.first.time <= windowMillis) {
+                r.last = m;
+                r.count++;
+                collapsed.increment();
+                continue;
+            }
+
+            if(r != null) {
+                runs.remove(key);
+                r.close(kept);
+            }
+            runs.put(key, new Run(m));
+            kept.add(m);
+
+            if(runs.size() > MAX_RUNS) {
+                Iterator<Run> it = runs.values().iterator();
+                it.next().close(kept);
+                it.remove();
+            }
+        }
+
+        expire(kept, System.currentTimeMillis());
+
+        msgs.clear();
+        msgs.addAll(kept);
+    }
+
+    /*
+    Close the windows that started before now less the window length, adding their counts to the
+    list. Long.MAX_VALUE closes them all.
+    */
+    public void expire(List<Message> msgs, long now) {
+        // Windows start in about time order, so the first one still open ends the search.
+        for(Iterator<Run> it = runs.values().iterator(); it.hasNext(); ) {
+            Run r = it.next();
+            if(now != Long.MAX_VALUE && r.first.time + windowMillis >= now) {
+                break;
+            }
+            r.close(msgs);
+            it.remove();
+        }
+    }
+
+    /*
+    A message and its repeats in one window.
+    */
+    private static class Run {
+        final Message first;
+        Message last;
+        long count = 0; // Repeats after the first.
+
+        Run(Message first) {
+            this.first = first;
+        }
+
+        /*
+        Add the count of repeats to the list, if there were any.
+        */
+        void close(List<Message> msgs) {
+            if(count == 0) {
+                return;
+            }
+
+            Message m = new Message();
+            m.time = last.time;
+            m.level = first.level;
+            m.logger = first.logger;
+            m.node = first.node;
+            m.trace = first.trace;
+            m.message = (first.message != null ? first.message + " " : "") + "(repeated " + count + (count == 1 ? " time)" : " times)");
+            msgs.add(m);
+        }
+    }
+}
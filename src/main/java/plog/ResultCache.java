@@ -0,0 +1,202 @@
+package plog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+LRU cache of log query and summary responses, keyed by the normalized query, so viewers asking the
+same thing share one database query.
+
+A response for a time range that ended before the settle time is final: it stays valid until older
+messages change, which is when the queue pump commits a batch with messages from before the
+settle time, the retention job deletes messages, or the schema migration moves them over. Other
+responses include the newest messages and are only valid until the next batch is committed. Both
+are checked against sequence numbers kept by PLog, taken before the query runs, so a change during
+the query makes the response stale rather than wrong. Set in plog.properties:
+
+cache.bytes=16777216        (memory for cached responses, 0 turns the cache off)
+cache.entry.bytes=1048576   (larger responses aren't cached)
+cache.settle.millis=10000   (a time range that ended this long ago is final)
+*/
+class ResultCache {
+    static final long SETTLE_MILLIS = Math.max(0, PLog.GetLongProperty("cache.settle.millis", 10000));
+    private static final int ENTRY_OVERHEAD = 96; // Estimated bytes per entry besides the key and response.
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true); // Least recently used first.
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long stale = 0;
+    private long evictions = 0;
+
+    public ResultCache() {
+        this.maxBytes = Math.max(0, PLog.GetLongProperty("cache.bytes", 16 * 1024 * 1024));
+        this.maxEntryBytes = Math.min(maxBytes, Math.max(0, PLog.GetLongProperty("cache.entry.bytes", 1024 * 1024)));
+    }
+
+    /*
+    The data a response was computed from. Taken before running the query.
+    */
+    static class Version {
+        final boolean fixed; // The time range ended before the settle time.
+        final long commits;
+        final long rewrites;
+
+        Version(long to) {
+            this.fixed = to < System.currentTimeMillis() - SETTLE_MILLIS;
+            this.commits = PLog.CommitSequence();
+            this.rewrites = PLog.RewriteSequence();
+        }
+
+        boolean current() {
+            return rewrites == PLog.RewriteSequence() && (fixed || commits == PLog.CommitSequence());
+        }
+    }
+
+    /*
+    Returns the cached response, or null if there is none or it is stale.
+    */
+    public synchronized byte[] get(String key) {
+        Entry e = entries.get(key);
+        if(e != null && !e.version.current()) {
+            remove(key);
+            stale++;
+            e = null;
+        }
+
+        if(e == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return e.body;
+    }
+
+    /*
+    Cache a response, unless it is too large or already stale. Evicts the least recently used
+    responses to stay within the memory limit.
+    */
+    public synchronized void put(String key, byte[] body, Version version) {
+        if(body.length > maxEntryBytes || !version.current()) {
+            return;
+        }
+
+        remove(key);
+        Entry e = new Entry(body, version, ENTRY_OVERHEAD + 2L * key.length() + body.length);
+        entries.put(key, e);
+        bytes += e.size;
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while(bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getValue().size;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /*
+    Returns a stream that copies what is written to out, so a streamed response can be cached
+    afterwards. The copy is dropped if it grows past the largest response cached.
+    */
+    public Capture capture(OutputStream out) {
+        return new Capture(out, maxEntryBytes);
+    }
+
+    /*
+    Remove all responses.
+    */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /*
+    Returns cache counters, for display.
+    */
+    public synchronized Map<String, Object> describe() {
+        int fixed = 0;
+        for(Entry e : entries.values()) {
+            if(e.version.fixed) {
+                fixed++;
+            }
+        }
+
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("entries", entries.size());
+        map.put("final", fixed);
+        map.put("bytes", bytes);
+        map.put("maxBytes", maxBytes);
+        map.put("hits", hits);
+        map.put("misses", misses);
+        map.put("stale", stale);
+        map.put("evictions", evictions);
+        return map;
+    }
+
+    private void remove(String key) {
+        Entry e = entries.remove(key);
+        if(e != null) {
+            bytes -= e.size;
+        }
+    }
+
+    private static class Entry {
+        final byte[] body;
+        final Version version;
+        final long size;
+
+        Entry(byte[] body, Version version, long size) {
+            this.body = body;
+            this.version = version;
+            this.size = size;
+        }
+    }
+
+    /*
+    Output stream that keeps a copy of what passes through it, up to a limit.
+    */
+    static class Capture extends FilterOutputStream {
+        private final long limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        Capture(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            keep(new byte[] { (byte)b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            keep(b, off, len);
+        }
+
+        /*
+        Returns the bytes written, or null if there were too many.
+        */
+        byte[] bytes() {
+            return copy != null ? copy.toByteArray() : null;
+        }
+
+        private void keep(byte[] b, int off, int len) {
+            if(copy != null && copy.size() + len > limit) {
+                copy = null;
+            }
+            if(copy != null) {
+                copy.write(b, off, len);
+            }
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package plog;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+Background job that deletes log messages older than the retention period.
+
+Rows are deleted in chunks, each in its own short transaction, so the queue pump is never blocked
+for long. The retention period can be set per level and per logger in plog.properties:
+
+retention.days=30                   (default for all messages)
+retention.days.level.ERROR=90       (messages at a level)
+retention.days.logger.trace=7       (messages from a logger, at any level)
+retention.interval.minutes=60       (how often the job runs)
+retention.chunk=5000                (rows deleted per transaction)
+retention.vacuum=true               (return freed pages to the file system with incremental vacuum)
+
+A logger setting takes precedence over a level setting.
+
+With partitions (see Partitions), files that end before the longest retention period are deleted
+whole. Rows are only deleted one by one from newer files, for levels and loggers with a shorter
+period.
+
+Stack traces no remaining message refers to are deleted after each purge.
+*/
+class RetentionJob {
+    private static final long PAUSE_MILLIS = 10; // Pause between chunks to let the queue pump in.
+
+    private final int defaultDays;
+    private final Map<Message.Level, Integer> levelDays = new TreeMap<Message.Level, Integer>();
+    private final Map<String, Integer> loggerDays = new TreeMap<String, Integer>();
+    private final int chunk;
+    private final boolean vacuum;
+    private ScheduledExecutorService executor = null;
+
+    // Reporting. Written only by the job thread.
+    private volatile long runs = 0;
+    private volatile long totalPurged = 0;
+    private volatile long lastPurged = 0;
+    private volatile long lastMillis = 0;
+    private volatile long lastPagesFreed = 0;
+    private volatile long partitionsDropped = 0;
+    private volatile long lastRun = 0; // Epoch millis of the last completed run.
+
+    public RetentionJob() {
+        this.defaultDays = (int)PLog.GetLongProperty("retention.days", 30);
+        this.chunk = (int)Math.max(1, PLog.GetLongProperty("retention.chunk", 5000));
+        this.vacuum = Vacuum();
+
+        for(String key : PLog.GetPropertyNames("retention.days.level.")) {
+            Message.Level level = LoggerConfig.ParseLevel(key.substring("retention.days.level.".length()), null);
+            if(level != null) {
+                levelDays.put(level, (int)PLog.GetLongProperty(key, defaultDays));
+            }
+        }
+
+        for(String key : PLog.GetPropertyNames("retention.days.logger.")) {
+            loggerDays.put(key.substring("retention.days.logger.".length()), (int)PLog.GetLongProperty(key, defaultDays));
+        }
+
+        this.registerMetrics();
+        this.start();
+    }
+
+    private void registerMetrics() {
+        Metrics.Counter("plog_retention_runs_total", "", "Retention job runs.", new Metrics.Value() {
+            public long get() { return runs; }
+        });
+        Metrics.Counter("plog_retention_purged_total", "", "Expired messages deleted by the retention job.", new Metrics.Value() {
+            public long get() { return totalPurged; }
+        });
+        Metrics.Counter("plog_retention_partitions_dropped_total", "", "Expired partition files deleted by the retention job.", new Metrics.Value() {
+            public long get() { return partitionsDropped; }
+        });
+        Metrics.Gauge("plog_retention_last_millis", "", "Duration of the last retention run.", new Metrics.Value() {
+            public long get() { return lastMillis; }
+        });
+        Metrics.Gauge("plog_retention_last_pages_freed", "", "Database pages freed by the last retention run.", new Metrics.Value() {
+            public long get() { return lastPagesFreed; }
+        });
+    }
+
+    /*
+    Returns true if incremental vacuum is enabled in plog.properties.
+    */
+    public static boolean Vacuum() {
+        return Boolean.parseBoolean(PLog.GetProperty("retention.vacuum", "false").trim());
+    }
+
+    /*
+    Schedule the job. The first run is shortly after startup.
+    */
+    private void start() {
+        long interval = Math.max(1, PLog.GetLongProperty("retention.interval.minutes", 60));
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "plog-retention");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    purge();
+                } catch(Exception e) {
+                    // Keep the schedule running. The next run will try again.
+                    System.out.println("Log retention failed: " + e);
+                }
+            }
+        }, TimeUnit.MINUTES.toSeconds(1), TimeUnit.MINUTES.toSeconds(interval), TimeUnit.SECONDS);
+    }
+
+    /*
+    Stop the job. A chunk in progress is allowed to finish.
+    */
+    public void stop() {
+        if(executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /*
+    Delete expired partitions and messages.
+    */
+    private void purge() throws SQLException {
+        long start = System.currentTimeMillis();
+        long purged = 0;
+        long pagesFreed = 0;
+
+        // Longest and shortest retention periods.
+        int maxDays = defaultDays;
+        int minDays = defaultDays;
+        List<Integer> days = new ArrayList<Integer>(levelDays.values());
+        days.addAll(loggerDays.values());
+        for(int d : days) {
+            maxDays = Math.max(maxDays, d);
+            minDays = Math.min(minDays, d);
+        }
+
+        if(Partitions.LAYOUT != Partitions.Layout.NONE) {
+            for(Partitions.Partition p : Partitions.List(Long.MIN_VALUE, Cutoff(maxDays) - 1)) {
+                if(p.end <= Cutoff(maxDays)) {
+                    purged += drop(p);
+                }
+            }
+        }
+
+        for(Partitions.Partition p : Partitions.List(Long.MIN_VALUE, Cutoff(minDays) - 1)) {
+            long[] counts = purge(p);
+            purged += counts[0];
+            pagesFreed += counts[1];
+        }
+
+        runs++;
+        totalPurged += purged;
+        lastPurged = purged;
+        lastPagesFreed = pagesFreed;
+        lastMillis = System.currentTimeMillis() - start;
+        lastRun = System.currentTimeMillis();
+
+        if(purged > 0) {
+            System.out.println("Log retention purged " + purged + " messages in " + lastMillis + " ms.");
+        }
+    }
+
+    /*
+    Delete a partition file. Returns the number of messages it had, from the summary counts.
+    */
+    private long drop(Partitions.Partition p) throws SQLException {
+        long count = 0;
+
+        Connection c = PLog.GetLogConnection(p.path);
+        try {
+            PreparedStatement s = c.prepareStatement("select coalesce(sum(count), 0) from log_rollup");
+            try {
+                ResultSet rs = s.executeQuery();
+                count = rs.next() ? rs.getLong(1) : 0;
+            } finally {
+                s.close();
+            }
+        } finally {
+            c.close();
+        }
+
+        // The writer only has the current partition open. If a reader still has the file open, the
+        // delete may fail on some systems, and is tried again on the next run.
+        if(!new File(p.path).delete()) {
+            System.out.println("Couldn't delete expired log partition " + p.path);
+            return 0;
+        }
+        new File(p.path + "-wal").delete();
+        new File(p.path + "-shm").delete();
+        PLog.Rewritten();
+
+        partitionsDropped++;
+        System.out.println("Log retention deleted " + p.path);
+        return count;
+    }
+
+    /*
+    Delete expired messages from a partition, then optionally vacuum. Returns the number of
+    messages deleted and pages freed.
+    */
+    private long[] purge(Partitions.Partition p) throws SQLException {
+        long purged = 0;
+        long pagesFreed = 0;
+
+        Connection c = null;
+        try {
+            c = PLog.GetLogConnection(p.path);
+
+            // Loggers with their own retention period.
+            List<Object> loggers = new ArrayList<Object>(loggerDays.keySet());
+            for(Object logger : loggers) {
+                purged += purge(c, "logger_id = (select id from logger where name = ?)", logger, Cutoff(loggerDays.get(logger)));
+            }
+
+            // Everything else, by level.
+            StringBuilder exclude = new StringBuilder();
+            for(int a = 0; a < loggers.size(); a++) {
+                exclude.append(a == 0 ? " and logger_id not in (select id from logger where name in (?" : ", ?");
+            }
+            if(loggers.size() > 0) {
+                exclude.append("))");
+            }
+
+            for(Message.Level level : Message.Level.values()) {
+                Integer days = levelDays.get(level);
+                long cutoff = Cutoff(days != null ? days : defaultDays);
+                purged += purge(c, "level = ?" + exclude, level.severity, cutoff, loggers);
+            }
+
+            // The delete trigger has subtracted the purged messages from the summary counts. Remove emptied hours.
+            if(purged > 0) {
+                PreparedStatement s = c.prepareStatement("delete from log_rollup where count <= 0");
+                try {
+                    s.executeUpdate();
+                } finally {
+                    s.close();
+                }
+            }
+
+            // Stack traces of purged messages that no message refers to anymore. The writer looks up
+            // trace ids in the same transaction as the messages that refer to them, so it can't use a deleted one.
+            if(purged > 0) {
+                PreparedStatement s = c.prepareStatement("delete from trace where id not in (select trace_id from log where trace_id is not null)");
+                try {
+                    s.executeUpdate();
+                } finally {
+                    s.close();
+                }
+            }
+
+            if(vacuum && purged > 0) {
+                pagesFreed = IncrementalVacuum(c);
+            }
+        } finally {
+            try { if(c != null) c.close(); } catch(SQLException e) {}
+        }
+
+        return new long[] { purged, pagesFreed };
+    }
+
+    private int purge(Connection c, String filter, Object value, long cutoff) throws SQLException {
+        return purge(c, filter, value, cutoff, new ArrayList<Object>());
+    }
+
+    /*
+    Delete rows older than the cutoff that match the filter, one chunk at a time.
+    The filter's first parameter is bound to value, and the rest to the extra values.
+    */
+    private int purge(Connection c, String filter, Object value, long cutoff, List<Object> extra) throws SQLException {
+        String sql = "delete from log where id in (select id from log where ts < ? and " + filter + " limit " + chunk + ")";
+        int total = 0;
+
+        PreparedStatement s = c.prepareStatement(sql);
+        PreparedStatement changes = c.prepareStatement("select changes()");
+        try {
+            s.setLong(1, cutoff);
+            s.setObject(2, value);
+            for(int a = 0; a < extra.size(); a++) {
+                s.setObject(3 + a, extra.get(a));
+            }
+
+            while(true) {
+                s.executeUpdate(); // Auto-commit: each chunk is its own transaction.
+
+                // The driver's update count includes rows changed by the delete triggers. changes() doesn't.
+                ResultSet rs = changes.executeQuery();
+                int count = rs.next() ? rs.getInt(1) : 0;
+                rs.close();
+
+                total += count;
+                if(count > 0) {
+                    PLog.Rewritten(); // Cached query results are stale.
+                }
+                if(count < chunk) {
+                    break;
+                }
+
+                try {
+                    Thread.sleep(PAUSE_MILLIS);
+                } catch(InterruptedException e) {
+                    // Stopping.
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            s.close();
+            changes.close();
+        }
+
+        return total;
+    }
+
+    /*
+    Return free pages to the file system in small steps. Returns the number of pages freed.
+    */
+    private static long IncrementalVacuum(Connection c) throws SQLException {
+        long freed = 0;
+
+        PreparedStatement free = c.prepareStatement("PRAGMA freelist_count");
+        PreparedStatement vac = c.prepareStatement("PRAGMA incremental_vacuum(1000)");
+        try {
+            long pages = FreePages(free);
+            while(pages > 0 && !Thread.currentThread().isInterrupted()) {
+                vac.execute();
+
+                long remaining = FreePages(free);
+                if(remaining >= pages) {
+                    break; // No progress. Auto vacuum is probably not enabled on this database.
+                }
+                freed += pages - remaining;
+                pages = remaining;
+            }
+        } finally {
+            free.close();
+            vac.close();
+        }
+
+        return freed;
+    }
+
+    private static long FreePages(PreparedStatement free) throws SQLException {
+        ResultSet rs = free.executeQuery();
+        try {
+            return rs.next() ? rs.getLong(1) : 0;
+        } finally {
+            rs.close();
+        }
+    }
+
+    /*
+    Returns the cutoff timestamp (epoch millis) for a retention period.
+    */
+    private static long Cutoff(int days) {
+        return System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+    }
+
+    /*
+    Returns job counters, for display.
+    */
+    public Map<String, Object> describe() {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("runs", runs);
+        map.put("totalPurged", totalPurged);
+        map.put("lastPurged", lastPurged);
+        map.put("lastMillis", lastMillis);
+        map.put("lastPagesFreed", lastPagesFreed);
+        map.put("partitionsDropped", partitionsDropped);
+        map.put("lastRun", lastRun);
+        return map;
+    }
+}
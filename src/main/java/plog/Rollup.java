@@ -0,0 +1,169 @@
+package plog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+Message counts per hour, level, logger and node, kept in the log_rollup table so the summary can be
+answered without scanning the log table, with or without the level, logger and node filters.
+
+Inserts are counted in memory while a batch is written and added to the table in the same
+transaction by flush(). Deletes are subtracted by the log_delete trigger, so the retention job and
+manual deletes keep the counts right. Hours are epoch hours (ts / 3600000). Messages without a node
+are counted under node_id 0, since a null can't be part of the key.
+
+Uses one connection. Not thread safe.
+*/
+class Rollup {
+    static final long HOUR_MILLIS = 3600000;
+
+    private final PreparedStatement insert;
+    private final PreparedStatement update;
+    private final Map<Key, Long> counts = new HashMap<Key, Long>(); // Pending counts, added by flush().
+
+    public Rollup(Connection c) throws SQLException {
+        // No upsert in this SQLite version: make sure the row exists, then add to it.
+        this.insert = c.prepareStatement("insert or ignore into log_rollup(hour, level, logger_id, node_id, count) values(?, ?, ?, ?, 0)");
+        this.update = c.prepareStatement("update log_rollup set count = count + ? where hour = ? and level = ? and logger_id = ? and node_id = ?");
+    }
+
+    /*
+    Create the rollup table and the trigger that subtracts deleted messages.
+    */
+    public static void Create(Connection c) throws SQLException {
+        Execute(c, "create table if not exists log_rollup( hour integer not null, level integer not null, logger_id integer not null, node_id integer not null, count integer not null, primary key (hour, level, logger_id, node_id) )");
+        Execute(c,
+            "create trigger if not exists log_delete after delete on log begin " +
+            "update log_rollup set count = count - 1 where hour = old.ts / " + HOUR_MILLIS + " and level = old.level and logger_id = old.logger_id and node_id = ifnull(old.node_id, 0); " +
+            "end");
+    }
+
+    /*
+    Drop the rollup table and its trigger, to be created again with a new key.
+    */
+    public static void Drop(Connection c) throws SQLException {
+        Execute(c, "drop trigger if exists log_delete");
+        Execute(c, "drop table if exists log_rollup");
+    }
+
+    /*
+    Rebuild the counts from the log table. Scans the whole table, so it is only done once, when the
+    rollup table is added to an existing database.
+    */
+    public static void Backfill(Connection c) throws SQLException {
+        Execute(c, "delete from log_rollup");
+        Execute(c, "insert into log_rollup(hour, level, logger_id, node_id, count) select ts / " + HOUR_MILLIS + ", level, logger_id, ifnull(node_id, 0), count(*) from log group by 1, 2, 3, 4");
+    }
+
+    /*
+    Count one inserted message. The node id is 0 for messages without a node.
+    */
+    public void add(long ts, int level, long loggerId, long nodeId) {
+        add(ts / HOUR_MILLIS, level, loggerId, nodeId, 1);
+    }
+
+    /*
+    Count the messages with ids in (fromId, toId], read back from the log table.
+    */
+    public void addRange(Connection c, long fromId, long toId) throws SQLException {
+        PreparedStatement s = c.prepareStatement("select ts / " + HOUR_MILLIS + ", level, logger_id, ifnull(node_id, 0), count(*) from log where id > ? and id <= ? group by 1, 2, 3, 4");
+        try {
+            s.setLong(1, fromId);
+            s.setLong(2, toId);
+            ResultSet rs = s.executeQuery();
+            while(rs.next()) {
+                add(rs.getLong(1), rs.getInt(2), rs.getLong(3), rs.getLong(4), rs.getLong(5));
+            }
+        } finally {
+            s.close();
+        }
+    }
+
+    private void add(long hour, int level, long loggerId, long nodeId, long n) {
+        Key key = new Key(hour, level, loggerId, nodeId);
+        Long count = counts.get(key);
+        counts.put(key, count == null ? n : count + n);
+    }
+
+    /*
+    Add the pending counts to the table, in the caller's transaction.
+    */
+    public void flush() throws SQLException {
+        if(counts.isEmpty()) {
+            return;
+        }
+
+        for(Map.Entry<Key, Long> e : counts.entrySet()) {
+            Key k = e.getKey();
+            insert.setLong(1, k.hour);
+            insert.setInt(2, k.level);
+            insert.setLong(3, k.loggerId);
+            insert.setLong(4, k.nodeId);
+            insert.addBatch();
+
+            update.setLong(1, e.getValue());
+            update.setLong(2, k.hour);
+            update.setInt(3, k.level);
+            update.setLong(4, k.loggerId);
+            update.setLong(5, k.nodeId);
+            update.addBatch();
+        }
+
+        insert.executeBatch();
+        update.executeBatch();
+        counts.clear();
+    }
+
+    /*
+    Forget the pending counts, e.g. after a rollback.
+    */
+    public void clear() {
+        counts.clear();
+        try { insert.clearBatch(); } catch(SQLException e) {}
+        try { update.clearBatch(); } catch(SQLException e) {}
+    }
+
+    public void close() {
+        try { insert.close(); } catch(SQLException e) {}
+        try { update.close(); } catch(SQLException e) {}
+    }
+
+    private static void Execute(Connection c, String sql) throws SQLException {
+        PreparedStatement s = c.prepareStatement(sql);
+        try {
+            s.executeUpdate();
+        } finally {
+            s.close();
+        }
+    }
+
+    private static class Key {
+        final long hour;
+        final int level;
+        final long loggerId;
+        final long nodeId;
+
+        Key(long hour, int level, long loggerId, long nodeId) {
+            this.hour = hour;
+            this.level = level;
+            this.loggerId = loggerId;
+            this.nodeId = nodeId;
+        }
+
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return hour == k.hour && level == k.level && loggerId == k.loggerId && nodeId == k.nodeId;
+        }
+
+        public int hashCode() {
+            return (int)(hour ^ (hour >>> 32)) * 31 * 31 * 31 + level * 31 * 31 + (int)(loggerId ^ (loggerId >>> 32)) * 31 + (int)(nodeId ^ (nodeId >>> 32));
+        }
+    }
+}
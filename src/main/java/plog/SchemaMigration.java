@@ -0,0 +1,176 @@
+package plog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+Copies messages from a version 0 database (text ts, level and logger columns) into the compact
+version 1 schema.
+
+At startup SetupDatabase renames the old table to log_v1 and creates the new tables, so logging
+continues into the new schema right away. This thread then moves the old rows over in chunks. Each
+chunk is inserted and deleted from log_v1 in one transaction, so the migration picks up where it
+left off after a restart. log_v1 is dropped once it is empty. The moved messages are added to the
+summary rollup in the same transaction.
+
+Old messages appear in queries as they are migrated.
+*/
+class SchemaMigration extends Thread {
+    private static final int CHUNK = 10000; // Rows moved per transaction.
+    private static final long PAUSE_MILLIS = 10; // Pause between chunks to let the queue pump in.
+    private static final long RETRY_MILLIS = 1000; // Wait after a failed chunk, e.g. database locked.
+
+    private volatile long migrated = 0;
+    private volatile boolean done = false;
+
+    public SchemaMigration() {
+        super("plog-migration");
+        setDaemon(true);
+    }
+
+    /*
+    Returns true if the database has a log_v1 table waiting to be migrated.
+    */
+    public static boolean Needed(Connection c) throws SQLException {
+        PreparedStatement s = c.prepareStatement("select count(*) from sqlite_master where type = 'table' and name = 'log_v1'");
+        try {
+            ResultSet rs = s.executeQuery();
+            return rs.next() && rs.getInt(1) > 0;
+        } finally {
+            s.close();
+        }
+    }
+
+    public void run() {
+        System.out.println("Migrating log database to the new schema.");
+        long start = System.currentTimeMillis();
+
+        Connection c = null;
+        try {
+            c = PLog.GetLogConnection();
+
+            // Add the old logger names to the dictionary.
+            Execute(c, "insert or ignore into logger(name) select distinct logger from log_v1 where logger is not null");
+
+            while(!isInterrupted()) {
+                int count;
+                try {
+                    count = migrateChunk(c);
+                } catch(SQLException e) {
+                    System.out.println("Log database migration: " + e.getMessage());
+                    Thread.sleep(RETRY_MILLIS);
+                    continue;
+                }
+
+                if(count == 0) {
+                    Execute(c, "drop table log_v1");
+                    done = true;
+                    System.out.println("Log database migration finished. Migrated " + migrated + " messages in " + (System.currentTimeMillis() - start) + " ms.");
+                    break;
+                }
+
+                Thread.sleep(PAUSE_MILLIS);
+            }
+        } catch(InterruptedException e) {
+            // Stopping. The migration continues on the next start.
+        } catch(Exception e) {
+            System.out.println("Log database migration failed: " + e);
+        } finally {
+            try { if(c != null) c.close(); } catch(SQLException e) {}
+        }
+    }
+
+    /*
+    Move the next chunk of rows. Returns the number of rows moved.
+    */
+    private int migrateChunk(Connection c) throws SQLException {
+        c.setAutoCommit(false);
+        Rollup rollup = new Rollup(c);
+        try {
+            long last = 0;
+            PreparedStatement s = c.prepareStatement("select max(rowid) from (select rowid from log_v1 order by rowid limit " + CHUNK + ")");
+            try {
+                ResultSet rs = s.executeQuery();
+                if(rs.next()) {
+                    last = rs.getLong(1);
+                }
+            } finally {
+                s.close();
+            }
+
+            // The new rows get the ids after this one. The queue pump can't insert until we commit.
+            long firstId = MaxId(c);
+
+            // ts 'yyyy-MM-dd HH:mm:ss.SSS' (UTC) becomes epoch millis, and level names become level codes.
+            s = c.prepareStatement(
+                "insert into log(ts, level, logger_id, message) " +
+                "select cast(strftime('%s', ts) as integer) * 1000 + cast(substr(ts, 21, 3) as integer), " +
+                "case level when 'DEBUG' then " + Message.Level.DEBUG.severity + " when 'INFO' then " + Message.Level.INFO.severity +
+                " when 'WARN' then " + Message.Level.WARN.severity + " else " + Message.Level.ERROR.severity + " end, " +
+                "(select id from logger where logger.name = log_v1.logger), message " +
+                "from log_v1 where rowid <= ? and ts is not null and logger is not null");
+            int count;
+            try {
+                s.setLong(1, last);
+                s.executeUpdate();
+            } finally {
+                s.close();
+            }
+
+            rollup.addRange(c, firstId, MaxId(c));
+            rollup.flush();
+
+            s = c.prepareStatement("delete from log_v1 where rowid <= ?");
+            try {
+                s.setLong(1, last);
+                count = s.executeUpdate();
+            } finally {
+                s.close();
+            }
+
+            c.commit();
+            PLog.Rewritten();
+            migrated += count;
+            return count;
+        } catch(SQLException e) {
+            try { c.rollback(); } catch(SQLException ex) {}
+            throw e;
+        } finally {
+            rollup.close();
+            c.setAutoCommit(true);
+        }
+    }
+
+    private static long MaxId(Connection c) throws SQLException {
+        PreparedStatement s = c.prepareStatement("select coalesce(max(id), 0) from log");
+        try {
+            ResultSet rs = s.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        } finally {
+            s.close();
+        }
+    }
+
+    private static void Execute(Connection c, String sql) throws SQLException {
+        PreparedStatement s = c.prepareStatement(sql);
+        try {
+            s.executeUpdate();
+        } finally {
+            s.close();
+        }
+    }
+
+    /*
+    Returns migration progress, for display.
+    */
+    public Map<String, Object> describe() {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("migrated", migrated);
+        map.put("done", done);
+        return map;
+    }
+}
@@ -0,0 +1,134 @@
+package plog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+Full text index of log messages, for the q parameter of log queries.
+
+log_fts is an FTS4 table that uses the log table as its external content, so the message text isn't
+stored twice. Triggers keep it in sync: rows are indexed in the transaction that inserts them (the
+queue pump's batch, or a migration chunk) and removed in the transaction that deletes them (the
+retention job). FTS5 isn't available in the bundled SQLite version.
+
+A search is run one of two ways. For words in few messages, the matching rows are looked up by id
+and sorted by time. For common words that is slow, since every match is read, so the time index is
+read in order instead and each row is tested against the matches until the page is full. The number
+of messages containing each word is read from the index's term statistics to choose.
+
+The index is on by default and can be turned off in plog.properties, which drops it:
+
+search.index=false
+search.scan.documents=20000   (words in more messages than this are searched in time order)
+*/
+class SearchIndex {
+    private static final long SCAN_DOCUMENTS = PLog.GetLongProperty("search.scan.documents", 20000);
+
+    /*
+    Returns true if the index is enabled in plog.properties.
+    */
+    public static boolean Enabled() {
+        return Boolean.parseBoolean(PLog.GetProperty("search.index", "true").trim());
+    }
+
+    /*
+    Returns true if the database has the index.
+    */
+    public static boolean Exists(Connection c) throws SQLException {
+        PreparedStatement s = c.prepareStatement("select count(*) from sqlite_master where type = 'table' and name = 'log_fts'");
+        try {
+            ResultSet rs = s.executeQuery();
+            return rs.next() && rs.getInt(1) > 0;
+        } finally {
+            s.close();
+        }
+    }
+
+    /*
+    Create the index and its triggers, if needed. A new index over existing messages is built from
+    the log table, which takes a while on a large database.
+    */
+    public static void Create(Connection c) throws SQLException {
+        boolean exists = Exists(c);
+
+        if(!exists) {
+            Execute(c, "create virtual table log_fts using fts4(content='log', message)");
+        }
+        Execute(c, "create trigger if not exists log_fts_insert after insert on log begin insert into log_fts(docid, message) values(new.id, new.message); end");
+        Execute(c, "create trigger if not exists log_fts_delete before delete on log begin delete from log_fts where docid = old.id; end");
+
+        if(!exists && Any(c)) {
+            System.out.println("Building log search index.");
+            Execute(c, "insert into log_fts(log_fts) values('rebuild')");
+        }
+    }
+
+    /*
+    Returns true if the log table has rows to index.
+    */
+    private static boolean Any(Connection c) throws SQLException {
+        PreparedStatement s = c.prepareStatement("select 1 from log limit 1");
+        try {
+            return s.executeQuery().next();
+        } finally {
+            s.close();
+        }
+    }
+
+    /*
+    Choose how to run the query's search. See above.
+    */
+    public static void Plan(Connection c, LogQuery q) throws SQLException {
+        if(q.search != null && Enabled()) {
+            q.searchByTime = Documents(c, q.search) > SCAN_DOCUMENTS;
+        }
+    }
+
+    /*
+    Returns an estimate of the number of messages matching the search: the fewest messages any of
+    its words appear in. Operators and prefix words (ending with *) aren't counted.
+    */
+    private static long Documents(Connection c, String search) throws SQLException {
+        // Term statistics. A temp table, so it is created on each connection.
+        Execute(c, "create virtual table if not exists temp.log_fts_terms using fts4aux(main, log_fts)");
+
+        long documents = Long.MAX_VALUE;
+        PreparedStatement s = c.prepareStatement("select documents from temp.log_fts_terms where term = ? and col = '*'");
+        try {
+            for(String word : search.split("[^A-Za-z0-9*]+")) {
+                if(word.length() == 0 || word.endsWith("*") || word.matches("AND|OR|NOT|NEAR")) {
+                    continue;
+                }
+
+                s.setString(1, word.toLowerCase()); // The simple tokenizer folds case.
+                ResultSet rs = s.executeQuery();
+                documents = Math.min(documents, rs.next() ? rs.getLong(1) : 0);
+                rs.close();
+            }
+        } finally {
+            s.close();
+        }
+
+        return documents;
+    }
+
+    /*
+    Remove the index and its triggers.
+    */
+    public static void Drop(Connection c) throws SQLException {
+        Execute(c, "drop trigger if exists log_fts_insert");
+        Execute(c, "drop trigger if exists log_fts_delete");
+        Execute(c, "drop table if exists log_fts");
+    }
+
+    private static void Execute(Connection c, String sql) throws SQLException {
+        PreparedStatement s = c.prepareStatement(sql);
+        try {
+            s.executeUpdate();
+        } finally {
+            s.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package plog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+Ring of the most recently committed messages, so the newest pages, which nearly all requests ask
+for, are answered from memory instead of the database.
+
+The queue pump adds each batch once it is committed, with the ids its rows were given. The ring
+then holds every message newer than its watermark: the time it was created, raised to the newest
+timestamp of each message pushed out of it. Messages are committed in about time order, so older
+ones may be missing. A query is answered from the ring if its whole time range is past the
+watermark and it has no search, since the ring can't match the full text search syntax exactly.
+Set in plog.properties:
+
+tail.cache=10000   (messages kept, 0 turns the cache off)
+*/
+class TailCache {
+    private static final int MESSAGE_BYTES = 112; // Estimated size of a message without its text: the message, its string and array headers.
+
+    private final Message[] ring;
+    private int next = 0; // Slot the next message goes in.
+    private int size = 0;
+    private long watermark = System.currentTimeMillis(); // Messages after this are all in the ring.
+    private long bytes = 0; // Estimated memory used by the messages.
+    private long hits = 0;
+    private long misses = 0;
+
+    public TailCache() {
+        this.ring = new Message[(int)Math.max(0, PLog.GetLongProperty("tail.cache", 10000))];
+    }
+
+    /*
+    Add committed messages, pushing out the oldest. Called by the queue pump.
+    */
+    public synchronized void add(List<Message> msgs) {
+        if(ring.length == 0) {
+            return;
+        }
+
+        for(Message m : msgs) {
+            Message old = ring[next];
+            if(old != null) {
+                watermark = Math.max(watermark, old.time);
+                bytes -= Bytes(old);
+            }
+
+            ring[next] = m;
+            bytes += Bytes(m);
+            next = (next + 1) % ring.length;
+            size = Math.min(size + 1, ring.length);
+        }
+    }
+
+    /*
+    Forget the messages. Called when a batch fails part way, since messages committed before the
+    failure aren't added.
+    */
+    public synchronized void clear() {
+        for(int a = 0; a < ring.length; a++) {
+            ring[a] = null;
+        }
+        next = 0;
+        size = 0;
+        bytes = 0;
+        watermark = Math.max(watermark, System.currentTimeMillis());
+    }
+
+    /*
+    Returns up to limit rows of the query, in reading order, or null if the ring can't answer it.
+    The rows are copies, so the caller can change them.
+    */
+    public List<Message> find(final LogQuery q, int limit) {
+        List<Message> rows = new ArrayList<Message>();
+
+        synchronized(this) {
+            if(ring.length == 0 || q.search != null || q.lower() <= watermark) {
+                misses++;
+                return null;
+            }
+
+            hits++;
+            for(int a = 0; a < size; a++) {
+                Message m = ring[(next - 1 - a + ring.length) % ring.length];
+                if(q.inRange(m.time, m.id) && q.matches(m)) {
+                    rows.add(m);
+                }
+            }
+        }
+
+        Collections.sort(rows, new Comparator<Message>() {
+            public int compare(Message a, Message b) {
+                int c = a.time < b.time ? -1 : (a.time > b.time ? 1 : (a.id < b.id ? -1 : (a.id > b.id ? 1 : 0)));
+                return q.scanAsc() ? c : -c;
+            }
+        });
+
+        List<Message> page = new ArrayList<Message>(Math.min(limit, rows.size()));
+        for(Message m : rows) {
+            if(page.size() == limit) {
+                break;
+            }
+
+            Message copy = new Message();
+            copy.id = m.id;
+            copy.time = m.time;
+            copy.level = m.level;
+            copy.logger = m.logger;
+            copy.message = m.message;
+            copy.node = m.node;
+            copy.trace = m.trace;
+            page.add(copy);
+        }
+
+        return page;
+    }
+
+    /*
+    Returns the cache counters and estimated memory use, for display.
+    */
+    public synchronized Map<String, Object> describe() {
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("capacity", ring.length);
+        map.put("size", size);
+        map.put("bytes", bytes);
+        map.put("hits", hits);
+        map.put("misses", misses);
+        map.put("watermark", watermark);
+        return map;
+    }
+
+    private static long Bytes(Message m) {
+        return MESSAGE_BYTES + (m.message != null ? 2L * m.message.length() : 0);
+    }
+}
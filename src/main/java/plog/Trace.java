@@ -0,0 +1,91 @@
+package plog;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/*
+Stack traces of logged exceptions.
+
+The exception is kept by the message and rendered on the queue pump thread, with its causes, like
+printStackTrace: frames a cause has in common with the exception it caused are left out. The
+exception and cause messages ("java.io.IOException: Connection refused") go in the message, and the
+frames in the trace, which has only the class names. The same failure then has the same trace
+however its messages vary, and it is stored once per database file in the trace table, keyed by its
+fingerprint. Log rows refer to it by trace_id.
+
+The fingerprint is a hash of the trace with the line numbers and generated class numbers taken out,
+so it stays the same across builds that move code around.
+*/
+class Trace {
+    private static final int MAX_CAUSES = 32; // Longer cause chains are cut short.
+    private static final Pattern LINE = Pattern.compile(":\\d+\\)");
+    private static final Pattern LAMBDA = Pattern.compile("\\$\\$Lambda[^.(\\s]*");
+    private static final Pattern GENERATED = Pattern.compile("(Generated\\w*Accessor|\\$Proxy)\\d+");
+
+    /*
+    Returns the exception and cause messages, one per line, and the trace.
+    */
+    static String[] Render(Throwable t) {
+        StringBuilder messages = new StringBuilder();
+        StringBuilder trace = new StringBuilder();
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+
+        StackTraceElement[] enclosing = new StackTraceElement[0];
+        for(int a = 0; t != null && a < MAX_CAUSES && seen.add(t); a++) {
+            if(a > 0) {
+                messages.append("\nCaused by: ");
+                trace.append("\nCaused by: ");
+            }
+            messages.append(t);
+            trace.append(t.getClass().getName());
+
+            // Frames in common with the exception this one caused are at the end.
+            StackTraceElement[] frames = t.getStackTrace();
+            int m = frames.length - 1;
+            int n = enclosing.length - 1;
+            while(m >= 0 && n >= 0 && frames[m].equals(enclosing[n])) {
+                m--;
+                n--;
+            }
+
+            for(int b = 0; b <= m; b++) {
+                trace.append("\n  at ").append(frames[b]);
+            }
+            if(m < frames.length - 1) {
+                trace.append("\n  ... ").append(frames.length - 1 - m).append(" more");
+            }
+
+            enclosing = frames;
+            t = t.getCause();
+        }
+
+        return new String[] { messages.toString(), trace.toString() };
+    }
+
+    /*
+    Returns the fingerprint of a trace.
+    */
+    static String Fingerprint(String trace) {
+        String normal = LINE.matcher(trace).replaceAll(")");
+        normal = LAMBDA.matcher(normal).replaceAll("\\$\\$Lambda");
+        normal = GENERATED.matcher(normal).replaceAll("$1");
+
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(normal.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for(int a = 0; a < 8; a++) {
+                sb.append(String.format("%02x", hash[a]));
+            }
+            return sb.toString();
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package plog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.IOUtils;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/*
+Static files of the web interface, from the web directory on the class path.
+
+The files are read when the server starts and kept in memory, along with a gzipped copy of the
+text files, so a request is answered without reading or compressing anything. Files that can't be
+listed, e.g. with an unusual class loader, are read on their first request instead. Responses carry
+an ETag and Last-Modified, and a browser revalidating its copy gets 304 Not Modified. Browsers use
+their copy without asking for a while, except for index.html, which is always revalidated so a new
+version of the page is picked up. Set in plog.properties:
+
+web.max.age.seconds=3600   (time browsers use a file before revalidating it)
+*/
+class WebAssets {
+    private static final String ROOT = "web/";
+    private static final Map<String, String> TYPES = new HashMap<String, String>(); // Content type by file extension.
+    static {
+        TYPES.put("html", "text/html; charset=utf-8");
+        TYPES.put("css", "text/css; charset=utf-8");
+        TYPES.put("js", "application/javascript; charset=utf-8");
+        TYPES.put("json", "application/json; charset=utf-8");
+        TYPES.put("svg", "image/svg+xml");
+        TYPES.put("png", "image/png");
+        TYPES.put("jpg", "image/jpeg");
+        TYPES.put("jpeg", "image/jpeg");
+        TYPES.put("gif", "image/gif");
+        TYPES.put("ico", "image/x-icon");
+    }
+
+    private final Map<String, Asset> assets = new HashMap<String, Asset>(); // By path relative to the web directory.
+    private final long maxAgeSeconds;
+    private final long started = System.currentTimeMillis();
+
+    public WebAssets() {
+        this.maxAgeSeconds = Math.max(0, PLog.GetLongProperty("web.max.age.seconds", 3600));
+
+        try {
+            preload();
+        } catch(Exception e) {
+            System.out.println("Couldn't list web files: " + e);
+        }
+    }
+
+    /*
+    Send the file at the path relative to the web directory. Returns false if there is no such file,
+    without sending anything.
+    */
+    public boolean send(String rel, HttpExchange exchange) throws IOException {
+        Asset a = get(rel);
+        if(a == null) {
+            return false;
+        }
+
+        boolean gzip = a.gzip != null && PServer.AcceptsGzip(exchange);
+        String tag = gzip ? a.gzipTag : a.tag;
+
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", tag);
+        headers.set("Last-Modified", HttpDate().format(new Date(a.modified)));
+        headers.set("Cache-Control", rel.equals("index.html") ? "no-cache" : "max-age=" + maxAgeSeconds);
+        if(a.gzip != null) {
+            headers.set("Vary", "Accept-Encoding");
+        }
+
+        if(notModified(exchange.getRequestHeaders(), a)) {
+            exchange.sendResponseHeaders(304, -1);
+            return true;
+        }
+
+        byte[] body = gzip ? a.gzip : a.bytes;
+        headers.set("content-type", a.type);
+        if(gzip) {
+            headers.set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        return true;
+    }
+
+    /*
+    Returns the number of files and their size, for display.
+    */
+    public synchronized Map<String, Object> describe() {
+        long bytes = 0;
+        long gzipBytes = 0;
+        for(Asset a : assets.values()) {
+            bytes += a.bytes.length;
+            gzipBytes += a.gzip != null ? a.gzip.length : a.bytes.length;
+        }
+
+        Map<String, Object> map = new TreeMap<String, Object>();
+        map.put("files", assets.size());
+        map.put("bytes", bytes);
+        map.put("gzipBytes", gzipBytes);
+        return map;
+    }
+
+    /*
+    Returns true if the browser's copy is current: its ETag matches, or without one, it is as new
+    as the file.
+    */
+    private boolean notModified(Headers request, Asset a) {
+        String match = request.getFirst("If-None-Match");
+        if(match != null) {
+            for(String tag : match.split(",")) {
+                tag = tag.trim();
+                if(tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if(tag.equals("*") || tag.equals(a.tag) || tag.equals(a.gzipTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String since = request.getFirst("If-Modified-Since");
+        if(since != null) {
+            try {
+                return a.modified <= HttpDate().parse(since).getTime();
+            } catch(ParseException e) {}
+        }
+        return false;
+    }
+
+    private synchronized Asset get(String rel) throws IOException {
+        Asset a = assets.get(rel);
+        if(a == null && rel.length() > 0 && !rel.endsWith("/") && !rel.contains("..")) {
+            // Not listed at startup. Only files that exist are kept, so the map can't grow past the web directory.
+            URL url = PLog.class.getResource("/" + ROOT + rel);
+            if(url != null) {
+                URLConnection conn = url.openConnection();
+                InputStream is = conn.getInputStream();
+                try {
+                    a = new Asset(rel, IOUtils.toByteArray(is), conn.getLastModified());
+                } finally {
+                    is.close();
+                }
+                assets.put(rel, a);
+            }
+        }
+        return a;
+    }
+
+    /*
+    Read all files in the web directory, from the jar or from the file system.
+    */
+    private void preload() throws Exception {
+        URL url = PLog.class.getResource("/" + ROOT);
+        if(url == null) {
+            return;
+        }
+
+        if(url.getProtocol().equals("jar")) {
+            JarURLConnection conn = (JarURLConnection)url.openConnection();
+            conn.setUseCaches(false);
+            JarFile jar = conn.getJarFile();
+            try {
+                for(Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+                    JarEntry entry = e.nextElement();
+                    if(!entry.isDirectory() && entry.getName().startsWith(ROOT)) {
+                        InputStream is = jar.getInputStream(entry);
+                        try {
+                            String rel = entry.getName().substring(ROOT.length());
+                            assets.put(rel, new Asset(rel, IOUtils.toByteArray(is), entry.getTime()));
+                        } finally {
+                            is.close();
+                        }
+                    }
+                }
+            } finally {
+                jar.close();
+            }
+        } else if(url.getProtocol().equals("file")) {
+            preload(new File(url.toURI()), "");
+        }
+    }
+
+    private void preload(File dir, String prefix) throws IOException {
+        File[] files = dir.listFiles();
+        if(files == null) {
+            return;
+        }
+
+        for(File f : files) {
+            String rel = prefix + f.getName();
+            if(f.isDirectory()) {
+                preload(f, rel + "/");
+            } else {
+                InputStream is = new FileInputStream(f);
+                try {
+                    assets.put(rel, new Asset(rel, IOUtils.toByteArray(is), f.lastModified()));
+                } finally {
+                    is.close();
+                }
+            }
+        }
+    }
+
+    /*
+    Returns the date format of HTTP headers. Not thread safe, so a new one is made for each use.
+    */
+    private static DateFormat HttpDate() {
+        DateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        df.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return df;
+    }
+
+    private class Asset {
+        final byte[] bytes;
+        final byte[] gzip; // Null if the file is an image or doesn't get smaller.
+        final String type;
+        final String tag;
+        final String gzipTag;
+        final long modified; // Epoch millis, in whole seconds like the header.
+
+        Asset(String rel, byte[] bytes, long modified) throws IOException {
+            String ext = rel.substring(rel.lastIndexOf('.') + 1).toLowerCase();
+            String type = TYPES.get(ext);
+
+            this.bytes = bytes;
+            this.type = type != null ? type : "application/octet-stream";
+            this.modified = ((modified > 0 ? modified : started) / 1000) * 1000;
+            this.gzip = !this.type.startsWith("image/") || ext.equals("svg") ? Gzip(bytes) : null; // Images are compressed already.
+
+            String digest = Digest(bytes);
+            this.tag = "\"" + digest + "\"";
+            this.gzipTag = "\"" + digest + "-gzip\"";
+        }
+    }
+
+    /*
+    Returns the gzipped bytes, or null if they aren't smaller.
+    */
+    private static byte[] Gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        GZIPOutputStream gz = new GZIPOutputStream(buf);
+        gz.write(bytes);
+        gz.close();
+        return buf.size() < bytes.length ? buf.toByteArray() : null;
+    }
+
+    /*
+    Returns a hash of the bytes for the ETag.
+    */
+    private static String Digest(byte[] bytes) {
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(bytes);
+            StringBuilder sb = new StringBuilder();
+            for(int a = 0; a < 8; a++) {
+                sb.append(String.format("%02x", hash[a]));
+            }
+            return sb.toString();
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
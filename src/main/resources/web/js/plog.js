@@ -1,379 +1,677 @@
-// Global namespace object.
-var P = {
-    environment: {
-        dev: 0, live: 1
-    },
-    env: undefined
-};
-P.page = 1;
-
-// Called on window load.
-P.load = function() {
-    P.setup();
-    
-    // Perform initial log request.
-    P.getLogs();
-};
-
-P.setup = function() {
-    P.setEnvironment();
-    
-    if(P.env === P.environment.live) {
-        // Clear the sample/test rows.
-        $("#logTable tbody tr").remove();
-    }
-    
-    // Show the log table. It's hidden so the above test rows aren't visible briefly on page load.
-    $("#logTable").show();
-    
-    // Setup user option controls.
-    P.setupUserOptions();
-    
-    // Setup browser / summary table.
-    P.setupBrowser();
-};
-
-// Determine and set environment.
-P.setEnvironment = function() {
-    if(location.hostname === "") {
-        // Local browser, not hosted from server.
-        P.env = P.environment.dev;
-        console.log("Environment: dev");
-    } else {
-        // Hosted.
-        P.env = P.environment.live;
-        console.log("Environment: live, Host: " + location.hostname);
-    }
-};
-
-// Sets up user option controls.
-P.setupUserOptions = function() {
-    // Setup log level radio button change handler.
-    $("#options input[type='radio'][name='log_level']").change(function() {
-        // A log level radio button was clicked.
-        P.optionChanged();
-    });
-    
-    // Setup logger search box change handler.
-    $("#loggerSearchBox").keyup(function() {
-        // Clear a pending log refresh, and reschedule. This prevents refresh on rapid key presses.
-        clearTimeout(P.loggerSearchBoxChangeTimeoutID);
-        P.loggerSearchBoxChangeTimeoutID = setTimeout(P.optionChanged, 500);
-    });
-    
-    // Sort order selection.
-    $("#sortOrder").change(function() {
-        P.optionChanged();
-    });
-    
-    // Setup realtime (tail) checkbox change handler.
-    $("#tail").change(function() {
-        var checked = $(this).is(":checked");
-        if(!checked) {
-            // Tail was disabled. Cancel pending log request.
-            clearTimeout(P.tailTimeoutID);
-            
-            // Hide realtime status bar.
-            $("#realtimeStatusbar").hide();
-        } else {
-            // Tail was enabled.
-            P.getLogs();
-            
-            // Show realtime status bar.
-            $("#realtimeStatusbar").show();
-        }
-    });
-    
-    // Datepicker.
-    $("#dt").val($.datepicker.formatDate("yy-mm-dd", new Date())); // Today.
-    $("#dt").datepicker({
-        dateFormat: "yy-mm-dd",
-        defaultDate: new Date(),
-        autoClose: true,
-        onSelect: function(dt, picker) {
-            P.optionChanged();
-        }
-    });
-    
-    // Time picker.
-    $("#ts").change(function() {
-        P.optionChanged();
-    });
-    
-    // Set the default timestamp selection for the initial load of "most recent" messages.
-    var now = moment().add(1, "hours");
-    $("#dt").val(now.format("YYYY-MM-DD"));
-    $("#ts").val(now.format("HH:00:00"));
-    
-    // Range selection.
-    $("#range").change(function() {
-        P.optionChanged();
-    });
-    
-    // Setup page buttons.
-    $("#browseLeft").click(function() {
-        if(P.page > 1) {
-            // Decrease page number.
-            P.page--;
-            
-            // Query the database.
-            P.getLogs();
-        }
-    });
-    
-    $("#browseRight").click(function() {
-        // Increase the page number.
-        P.page++;
-        
-        // Query the database.
-        P.getLogs();
-    });
-    
-    // Page button hover.
-    $(".pageButton").hover(function() {
-        // Hover over.
-        $(this).addClass("pageButton_hover");
-    },
-    function() {
-        // Hover off.
-        $(this).removeClass("pageButton_hover");
-    });
-};
-
-// Called when an option is changed.
-P.optionChanged = function() {
-    // Get logs based on new selection unless realtime is enabled.
-    var tail = $("#tail").is(":checked");
-    if(tail) { return; }
-    
-    // Reset the page number.
-    P.page = 1;
-    
-    P.getLogs();
-}
-
-// Requests logs based on user selections.
-P.getLogs = function() {
-    // Check if tail is enabled.
-    if($("#tail").is(":checked")) {
-        // Setup search values for realtime query.
-        P.page = 1;
-        $("#sortOrder").val("DESC");
-        $("#range").val("-1_hours");
-        
-        // Set datepicker and timestamp field for a load of "most recent" messages.
-        var now = moment().add(1, "hours");
-        $("#dt").val(now.format("YYYY-MM-DD"));
-        $("#ts").val(now.format("HH:00:00"));
-    }
-    
-    // Get selections.
-    var level = $("#options input[type='radio'][name='log_level']:checked").val();
-    var logger = $("#loggerSearchBox").val().trim() || "all"; // If the value is "", send "all".
-    var order = $("#sortOrder").val();
-    
-    // Set from, to timestamps.
-    var range = $("#range").val().split("_");
-    var amount = parseInt(range[0], 10);
-    
-    var a = moment($("#dt").val() + " " + $("#ts").val(), "YYYY-MM-DD HH:mm:ss");
-    
-    var b = a.clone().add(amount, range[1]);
-    var from = a;
-    var to = b;
-    if(a > b) {
-        from = b;
-        to = a;
-    }
-    
-    // Set footer text.
-    $("#footer").removeClass("error_message");
-    $("#footer").text("Wait.");
-    
-    $.ajax({
-        method: "GET",
-        url: "logs",
-        timeout: 15000, // millis
-        data: {
-            level: level,
-            logger: logger,
-            from: encodeURI(from.format("YYYY-MM-DD HH:mm:ss.SSS")),
-            to: encodeURI(to.format("YYYY-MM-DD HH:mm:ss.SSS")),
-            order: order,
-            page: P.page
-        }
-    }).done(function(data) {
-        // Success
-        var messages = JSON.parse(data);
-        
-        if($("#tail").is(":checked")) {
-            // Messages are in asc order, but we want to view them desc.
-            //messages.reverse();
-        }
-        
-        // Display the logs.
-        P.showLogs(messages);
-        
-        // Display the current page in the footer.
-        $("#footer").text("Page: " + P.page);
-    }).fail(function(jqXHR, textStatus, errorThrown) {
-        // Fail. Display error message in the footer.
-        $("#footer").addClass("error_message");
-        $("#footer").text("Error requesting logs.");
-    }).always(function() {
-        // Complete (after done or fail). Schedule new request if tail is enabled.
-        var tail = $("#tail").is(":checked");
-        
-        if(tail) {
-            // Tail is enabled. Schedule a log refresh.
-            clearTimeout(P.tailTimeoutID); // To be safe, clear any pending refresh.
-            P.tailTimeoutID = setTimeout(P.getLogs, 1000);
-        }
-    });
-};
-
-P.showLogs = function(messages) {
-    var t = $("#logTable tbody");
-    
-    // Remove existing rows.
-    t.find("tr").remove();
-    
-    // Add rows.
-    for(var a = 0; a < messages.length; a++) {
-        var m = messages[a];
-        var row = "<tr><td class='ts'>" + m.ts + "</td><td class='" + m.level + "'>" + m.level + "</td><td class='logger'>" + m.logger + "</td><td class='message'>" + m.message + "</td></tr>";
-        
-        t.append(row);
-    }
-    
-    // Setup row hover handlers.
-    $("#logTable tbody tr").hover(function() {
-        // Hover over.
-        $(this).find(".ts").addClass("ts_highlight");
-        $(this).find(".logger").addClass("highlight");
-        $(this).find(".message").addClass("highlight");
-    },
-    function() {
-        // Hover off.
-        $(this).find(".ts").removeClass("ts_highlight");
-        $(this).find(".logger").removeClass("highlight");
-        $(this).find(".message").removeClass("highlight");
-    });
-};
-
-// Setup the browser / summary table.
-P.setupBrowser = function() {
-    if(P.env === P.environment.dev) {
-        // Use sample summary data.
-        var map = {};
-        var day = moment();
-        for(var a = 0; a < 30; a++) {
-            var dt = day.format("YYYY-MM-DD");
-            var r = Math.random();
-            var count = 0;
-            
-            if(r > .5) { count = 5; }
-            if(r > .7) { count = 15; }
-            if(r > .8) { count = 200; }
-            if(r > .9) { count = 1500; }
-            
-            map[dt] = count;
-            day.add(-1, "days");
-        }
-        
-        P.showSummary(map);
-    } else {
-        // Get summary from server.
-        P.requestSummary();
-    }
-};
-
-// Requests logs based on user selections.
-P.requestSummary = function() {
-    // Make request.
-    $.ajax({
-        method: "GET",
-        url: "logs/summary",
-        timeout: 15000,
-        data: {
-            
-        }
-    }).done(function(data) {
-        // Success
-        var summary = JSON.parse(data);
-        
-        // Display the summary.
-        P.showSummary(summary);
-    }).fail(function(jqXHR, textStatus, errorThrown) {
-        // Fail.
-    }).always(function() {
-        // Complete (after done or fail).
-    });
-};
-
-P.showSummary = function(map) {
-    var t = $("#browserTable tbody");
-    
-    // Remove existing rows.
-    t.find("tr").remove();
-    
-    // Create list of past n days to act as keys into the map.
-    var days = [];
-    var day = moment();
-    for(var a = 0; a < 30; a++) {
-        var dt = day.format("YYYY-MM-DD");
-        days.push(dt);
-        day.add(-1, "days");
-    }
-    
-    days.reverse(); // Order ascending
-    
-    // Add cells.
-    var html = "<tr>";
-    for(var a = 0; a < days.length; a++) {
-        var dt = days[a];
-        var count = map[dt] || 0;
-        
-        var m = moment(dt, "YYYY-MM-DD");
-        var title = m.format("MMM D") + ": " + count + " rows";
-        
-        var cls = "count_zero";
-        if(count > 0) { cls = "over_zero"; }
-        if(count > 10) { cls = "over_ten"; }
-        if(count > 100) { cls = "over_hundred"; }
-        if(count > 1000) { cls = "over_thousand"; }
-        
-        var cell = "<td class='" + cls + "' data-dt='" + dt + "' data-count='" + count + "' title='" + title + "'></td>";
-        
-        html += cell;
-    }
-    html += "</tr>";
-    t.append(html);
-    
-    // Setup cell hover handler.
-    $("#browserTable tbody tr td").hover(function() {
-        // Hover over.
-        $(this).addClass("summary_cell_highlight");
-    },
-    function() {
-        // Hover off.
-        $(this).removeClass("summary_cell_highlight");
-    });
-    
-    // Setup cell click handler.
-    $("#browserTable tbody tr td").click(function() {
-        var dt = $(this).attr("data-dt");
-        var count = $(this).attr("data-count");
-        
-        // Set search options to select records on the clicked day.
-        $("#dt").val(dt);
-        $("#ts").val("00:00:00");
-        $("#range").val("1_days");
-        
-        // Request logs.
-        P.optionChanged();
-    });
-};
-
-// Load event handler fired when all DOM objects, images, and scripts are loaded.
-window.onload = P.load;
+// Global namespace object.
+var P = {
+    environment: {
+        dev: 0, live: 1
+    },
+    env: undefined
+};
+P.page = 1;
+P.cursor = null; // Cursor of the requested page. Null for the first page.
+P.dir = "next"; // Direction to page from the cursor.
+P.next = null; // Cursors of the next and previous pages, from the last response.
+P.prev = null;
+P.stream = null; // Live tail EventSource, while tail is enabled.
+P.tailRows = 200; // Rows kept in the table while tailing.
+P.lastMetrics = null; // Time and enqueued count of the last metrics response, for the rate.
+P.trace = null; // Fingerprint of the exception the logs are filtered by, chosen in the exceptions panel. Null for all messages.
+
+// Called on window load.
+P.load = function() {
+    P.setup();
+
+    // Perform initial log request.
+    P.getLogs();
+};
+
+P.setup = function() {
+    P.setEnvironment();
+
+    if(P.env === P.environment.live) {
+        // Clear the sample/test rows.
+        $("#logTable tbody tr").remove();
+    }
+
+    // Show the log table. It's hidden so the above test rows aren't visible briefly on page load.
+    $("#logTable").show();
+
+    // Setup user option controls.
+    P.setupUserOptions();
+
+    // Setup browser / summary table.
+    P.setupBrowser();
+
+    // Fill the logger and node search box suggestions.
+    P.requestLoggers();
+    P.requestNodes();
+};
+
+// Determine and set environment.
+P.setEnvironment = function() {
+    if(location.hostname === "") {
+        // Local browser, not hosted from server.
+        P.env = P.environment.dev;
+        console.log("Environment: dev");
+    } else {
+        // Hosted.
+        P.env = P.environment.live;
+        console.log("Environment: live, Host: " + location.hostname);
+    }
+};
+
+// Sets up user option controls.
+P.setupUserOptions = function() {
+    // Setup log level radio button change handler.
+    $("#options input[type='radio'][name='log_level']").change(function() {
+        // A log level radio button was clicked.
+        P.optionChanged();
+    });
+
+    // Setup logger search box change handler.
+    $("#loggerSearchBox").keyup(function() {
+        // Clear a pending log refresh, and reschedule. This prevents refresh on rapid key presses.
+        clearTimeout(P.loggerSearchBoxChangeTimeoutID);
+        P.loggerSearchBoxChangeTimeoutID = setTimeout(P.optionChanged, 500);
+    });
+
+    // Setup node search box change handler. Same delay as the logger search box.
+    $("#nodeSearchBox").keyup(function() {
+        clearTimeout(P.nodeSearchBoxChangeTimeoutID);
+        P.nodeSearchBoxChangeTimeoutID = setTimeout(P.optionChanged, 500);
+    });
+
+    // Setup message search box change handler. Same delay as the logger search box.
+    $("#searchBox").keyup(function() {
+        clearTimeout(P.searchBoxChangeTimeoutID);
+        P.searchBoxChangeTimeoutID = setTimeout(P.optionChanged, 500);
+    });
+
+    // Sort order selection.
+    $("#sortOrder").change(function() {
+        P.optionChanged();
+    });
+
+    // Setup realtime (tail) checkbox change handler.
+    $("#tail").change(function() {
+        var checked = $(this).is(":checked");
+        if(!checked) {
+            // Tail was disabled. Close the live stream.
+            P.stopStream();
+
+            // Hide realtime status bar.
+            $("#realtimeStatusbar").hide();
+        } else {
+            // Tail was enabled.
+            P.getLogs();
+
+            // Show realtime status bar.
+            $("#realtimeStatusbar").show();
+        }
+    });
+
+    // Setup metrics checkbox change handler. The panel is refreshed every few seconds while it is shown.
+    $("#metrics").change(function() {
+        if($(this).is(":checked")) {
+            $("#metricsPanel").show();
+            P.requestMetrics();
+            P.metricsIntervalID = setInterval(P.requestMetrics, 5000);
+        } else {
+            clearInterval(P.metricsIntervalID);
+            P.lastMetrics = null;
+            $("#metricsPanel").hide();
+        }
+    });
+
+    // Setup exceptions checkbox change handler. The panel shows the most frequent exceptions in the selected time range.
+    $("#exceptions").change(function() {
+        if($(this).is(":checked")) {
+            $("#exceptionsPanel").show();
+            P.getLogs();
+        } else {
+            $("#exceptionsPanel").hide();
+            if(P.trace) {
+                // Show all messages again.
+                P.trace = null;
+                P.optionChanged();
+            }
+        }
+    });
+
+    // Datepicker.
+    $("#dt").val($.datepicker.formatDate("yy-mm-dd", new Date())); // Today.
+    $("#dt").datepicker({
+        dateFormat: "yy-mm-dd",
+        defaultDate: new Date(),
+        autoClose: true,
+        onSelect: function(dt, picker) {
+            P.optionChanged();
+        }
+    });
+
+    // Time picker.
+    $("#ts").change(function() {
+        P.optionChanged();
+    });
+
+    // Set the default timestamp selection for the initial load of "most recent" messages.
+    var now = moment().add(1, "hours");
+    $("#dt").val(now.format("YYYY-MM-DD"));
+    $("#ts").val(now.format("HH:00:00"));
+
+    // Range selection.
+    $("#range").change(function() {
+        P.optionChanged();
+    });
+
+    // Setup page buttons.
+    $("#browseLeft").click(function() {
+        if(P.prev) {
+            // Decrease page number.
+            P.page--;
+            P.cursor = P.prev;
+            P.dir = "prev";
+
+            // Query the database.
+            P.getLogs();
+        }
+    });
+
+    $("#browseRight").click(function() {
+        if(P.next) {
+            // Increase the page number.
+            P.page++;
+            P.cursor = P.next;
+            P.dir = "next";
+
+            // Query the database.
+            P.getLogs();
+        }
+    });
+
+    // Page button hover.
+    $(".pageButton").hover(function() {
+        // Hover over.
+        $(this).addClass("pageButton_hover");
+    },
+    function() {
+        // Hover off.
+        $(this).removeClass("pageButton_hover");
+    });
+};
+
+// Called when an option is changed.
+P.optionChanged = function() {
+    // Get logs based on new selection unless realtime is enabled.
+    var tail = $("#tail").is(":checked");
+    if(tail) {
+        // Restart the live stream with the new filters.
+        P.stopStream();
+    }
+
+    // Reset the page number.
+    P.page = 1;
+    P.cursor = null;
+
+    P.getLogs();
+    if(P.env !== P.environment.dev) {
+        P.requestSummary(); // The day counts follow the filters.
+    }
+}
+
+// Requests logs based on user selections.
+P.getLogs = function() {
+    // Check if tail is enabled.
+    if($("#tail").is(":checked")) {
+        // Setup search values for realtime query.
+        P.page = 1;
+        P.cursor = null;
+        $("#sortOrder").val("DESC");
+        $("#range").val("-1_hours");
+
+        // Set datepicker and timestamp field for a load of "most recent" messages.
+        var now = moment().add(1, "hours");
+        $("#dt").val(now.format("YYYY-MM-DD"));
+        $("#ts").val(now.format("HH:00:00"));
+    }
+
+    // Get selections.
+    var level = $("#options input[type='radio'][name='log_level']:checked").val();
+    var logger = $("#loggerSearchBox").val().trim() || "all"; // If the value is "", send "all".
+    var node = $("#nodeSearchBox").val().trim() || "all";
+    var search = $("#searchBox").val().trim();
+    var order = $("#sortOrder").val();
+
+    // Set from, to timestamps.
+    var range = $("#range").val().split("_");
+    var amount = parseInt(range[0], 10);
+
+    var a = moment($("#dt").val() + " " + $("#ts").val(), "YYYY-MM-DD HH:mm:ss");
+
+    var b = a.clone().add(amount, range[1]);
+    var from = a;
+    var to = b;
+    if(a > b) {
+        from = b;
+        to = a;
+    }
+
+    // Set footer text.
+    $("#footer").removeClass("error_message");
+    $("#footer").text("Wait.");
+
+    var params = {
+        level: level,
+        logger: encodeURI(logger),
+        node: encodeURI(node),
+        from: encodeURI(from.format("YYYY-MM-DD HH:mm:ss.SSS")),
+        to: encodeURI(to.format("YYYY-MM-DD HH:mm:ss.SSS")),
+        order: order
+    };
+    if(search) {
+        params.q = encodeURI(search);
+    }
+    if(P.trace) {
+        params.trace = P.trace;
+    }
+
+    // The exceptions panel shows the same time range and filters, except for the exception.
+    if($("#exceptions").is(":checked") && !P.cursor) {
+        var filters = $.extend({}, params);
+        delete filters.trace;
+        P.requestExceptions(filters);
+    }
+
+    if(P.cursor) {
+        params.cursor = P.cursor;
+        params.dir = P.dir;
+    }
+
+    $.ajax({
+        method: "GET",
+        url: "logs",
+        dataType: "json",
+        timeout: 15000, // millis
+        data: params
+    }).done(function(result) {
+        // Success
+        var messages = result.messages;
+        P.next = result.next;
+        P.prev = result.prev;
+
+        if($("#tail").is(":checked")) {
+            // Messages are in asc order, but we want to view them desc.
+            //messages.reverse();
+        }
+
+        // Display the logs.
+        P.showLogs(messages);
+
+        // Display the current page in the footer.
+        $("#footer").text("Page: " + P.page);
+    }).fail(function(jqXHR, textStatus, errorThrown) {
+        // Fail. Display error message in the footer.
+        $("#footer").addClass("error_message");
+        $("#footer").text("Error requesting logs.");
+    }).always(function() {
+        // Complete (after done or fail). Stream new messages from here on if tail is enabled.
+        var tail = $("#tail").is(":checked");
+
+        if(tail) {
+            P.startStream(params.level, params.logger, params.node, params.q, params.trace);
+        }
+    });
+};
+
+// Opens the live tail stream. New messages are pushed by the server as they are written.
+P.startStream = function(level, logger, node, q, trace) {
+    P.stopStream();
+
+    var params = { level: level, logger: logger, node: node };
+    if(q) {
+        params.q = q;
+    }
+    if(trace) {
+        params.trace = trace;
+    }
+    P.stream = new EventSource("logs/stream?" + $.param(params));
+
+    P.stream.onmessage = function(e) {
+        P.addLog(JSON.parse(e.data));
+    };
+
+    P.stream.addEventListener("dropped", function(e) {
+        // The browser fell behind and the server skipped messages.
+        $("#footer").addClass("error_message");
+        $("#footer").text("Live tail dropped " + e.data + " messages.");
+    });
+
+    P.stream.onopen = function() {
+        $("#footer").removeClass("error_message");
+        $("#footer").text("Live.");
+    };
+
+    P.stream.onerror = function() {
+        // The browser reconnects by itself, unless the server refused the stream.
+        $("#footer").addClass("error_message");
+        $("#footer").text(P.stream.readyState === EventSource.CLOSED ? "Live tail unavailable." : "Reconnecting.");
+    };
+};
+
+P.stopStream = function() {
+    if(P.stream) {
+        P.stream.close();
+        P.stream = null;
+    }
+};
+
+// Adds a message from the live tail to the top of the table.
+P.addLog = function(m) {
+    var t = $("#logTable tbody");
+    t.prepend(P.logRow(m));
+
+    // Keep the table from growing without bound.
+    t.find("tr").slice(P.tailRows).remove();
+};
+
+P.showLogs = function(messages) {
+    var t = $("#logTable tbody");
+
+    // Remove existing rows.
+    t.find("tr").remove();
+
+    // Add rows.
+    for(var a = 0; a < messages.length; a++) {
+        t.append(P.logRow(messages[a]));
+    }
+};
+
+// Returns a table row for a message. The stack trace of a logged exception follows the message.
+// The cells are filled as text, since messages from other nodes can contain anything.
+P.logRow = function(m) {
+    var row = $("<tr>");
+    row.append($("<td class='ts'>").text(m.ts));
+    row.append($("<td>").addClass(m.level).text(m.level));
+    row.append($("<td class='node'>").text(m.node || ""));
+    row.append($("<td class='logger'>").text(m.logger));
+    row.append($("<td class='message'>").text(m.message != null ? m.message : ""));
+    if(m.trace) {
+        row.find(".message").append("\n", $("<span class='trace'>").text(m.trace));
+    }
+
+    // Setup row hover handlers.
+    row.hover(function() {
+        // Hover over.
+        $(this).find(".ts").addClass("ts_highlight");
+        $(this).find(".node").addClass("highlight");
+        $(this).find(".logger").addClass("highlight");
+        $(this).find(".message").addClass("highlight");
+    },
+    function() {
+        // Hover off.
+        $(this).find(".ts").removeClass("ts_highlight");
+        $(this).find(".node").removeClass("highlight");
+        $(this).find(".logger").removeClass("highlight");
+        $(this).find(".message").removeClass("highlight");
+    });
+
+    return row;
+};
+
+// Requests the logger names and adds them as suggestions to the logger search box.
+P.requestLoggers = function() {
+    if(P.env === P.environment.dev) { return; }
+
+    $.ajax({
+        method: "GET",
+        url: "loggers",
+        dataType: "json",
+        timeout: 15000
+    }).done(function(names) {
+        var list = $("#loggerNames");
+        list.empty();
+        for(var a = 0; a < names.length; a++) {
+            list.append($("<option>").attr("value", names[a]));
+        }
+    });
+};
+
+// Requests the node names and adds them as suggestions to the node search box.
+P.requestNodes = function() {
+    if(P.env === P.environment.dev) { return; }
+
+    $.ajax({
+        method: "GET",
+        url: "nodes",
+        dataType: "json",
+        timeout: 15000
+    }).done(function(names) {
+        var list = $("#nodeNames");
+        list.empty();
+        for(var a = 0; a < names.length; a++) {
+            list.append($("<option>").attr("value", names[a]));
+        }
+    });
+};
+
+// Requests the most frequent exceptions for the given filters and shows them in the exceptions panel.
+// Clicking an exception shows only the messages that logged it. Clicking it again shows all messages.
+P.requestExceptions = function(params) {
+    if(P.env === P.environment.dev) { return; }
+
+    $.ajax({
+        method: "GET",
+        url: "logs/exceptions",
+        dataType: "json",
+        timeout: 15000,
+        data: $.extend({}, params, { limit: 20 })
+    }).done(function(exceptions) {
+        var t = $("#exceptionsTable tbody");
+        t.find("tr").remove();
+        $("#exceptionsPanel").removeClass("error_message");
+
+        if(exceptions.length === 0) {
+            t.append("<tr><td colspan='4'>No exceptions in this time range.</td></tr>");
+        }
+
+        $.each(exceptions, function(a, e) {
+            var row = $("<tr>").attr("title", e.trace);
+            row.append($("<td class='count'>").text(e.count));
+            row.append($("<td class='exception'>").text(e.exception));
+            row.append($("<td class='ts'>").text(e.first));
+            row.append($("<td class='ts'>").text(e.last));
+            if(e.fingerprint === P.trace) {
+                row.addClass("selected");
+            }
+
+            row.click(function() {
+                P.trace = P.trace === e.fingerprint ? null : e.fingerprint;
+                P.optionChanged();
+            });
+            t.append(row);
+        });
+    }).fail(function() {
+        $("#exceptionsPanel").addClass("error_message");
+        $("#exceptionsTable tbody").html("<tr><td colspan='4'>Error requesting exceptions.</td></tr>");
+    });
+};
+
+// Setup the browser / summary table.
+P.setupBrowser = function() {
+    if(P.env === P.environment.dev) {
+        // Use sample summary data.
+        var map = {};
+        var day = moment();
+        for(var a = 0; a < 30; a++) {
+            var dt = day.format("YYYY-MM-DD");
+            var r = Math.random();
+            var count = 0;
+
+            if(r > .5) { count = 5; }
+            if(r > .7) { count = 15; }
+            if(r > .8) { count = 200; }
+            if(r > .9) { count = 1500; }
+
+            map[dt] = count;
+            day.add(-1, "days");
+        }
+
+        P.showSummary(map);
+    } else {
+        // Get summary from server.
+        P.requestSummary();
+    }
+};
+
+// Requests the log pipeline metrics and shows the main ones in the metrics panel.
+P.requestMetrics = function() {
+    if(P.env === P.environment.dev) { return; }
+
+    $.ajax({
+        method: "GET",
+        url: "metrics",
+        dataType: "json",
+        timeout: 15000
+    }).done(function(m) {
+        // Enqueue rate since the last refresh.
+        var now = Date.now();
+        var rate = "";
+        if(P.lastMetrics) {
+            rate = " (" + Math.round((m.plog_enqueued_total - P.lastMetrics.enqueued) * 1000 / (now - P.lastMetrics.time)) + "/s)";
+        }
+        P.lastMetrics = { time: now, enqueued: m.plog_enqueued_total };
+
+        var dropped = 0;
+        for(var level in m.plog_dropped_total) {
+            dropped += m.plog_dropped_total[level];
+        }
+
+        var parts = [
+            "Enqueued " + m.plog_enqueued_total + rate,
+            "Queue " + m.plog_queue_depth + " / " + m.plog_queue_capacity,
+            "Dropped " + dropped,
+            "Batch p50 " + m.plog_batch_size.p50,
+            "Commit p99 " + (m.plog_commit_micros.p99 / 1000).toFixed(1) + " ms",
+            "Rollbacks " + m.plog_rollbacks_total,
+            "Purged " + m.plog_retention_purged_total,
+            "Logs p99 " + (m.plog_http_request_micros['endpoint="logs"'].p99 / 1000).toFixed(1) + " ms",
+            "Database " + (m.plog_db_bytes / 1048576).toFixed(1) + " MB"
+        ];
+        $("#metricsPanel").removeClass("error_message");
+        $("#metricsPanel").text(parts.join("   |   "));
+    }).fail(function() {
+        $("#metricsPanel").addClass("error_message");
+        $("#metricsPanel").text("Error requesting metrics.");
+    });
+};
+
+// Requests logs based on user selections.
+P.requestSummary = function() {
+    // Count the messages matching the level, logger and node selections.
+    var level = $("#options input[type='radio'][name='log_level']:checked").val();
+    var logger = $("#loggerSearchBox").val().trim() || "all";
+    var node = $("#nodeSearchBox").val().trim() || "all";
+
+    // Make request.
+    $.ajax({
+        method: "GET",
+        url: "logs/summary",
+        dataType: "json",
+        timeout: 15000,
+        data: {
+            by: "level",
+            level: level,
+            logger: encodeURI(logger),
+            node: encodeURI(node)
+        }
+    }).done(function(levels) {
+        // Success. Counts by level for each day. Add them up for the day totals.
+        var summary = {};
+        for(var dt in levels) {
+            summary[dt] = 0;
+            for(var level in levels[dt]) {
+                summary[dt] += levels[dt][level];
+            }
+        }
+
+        // Display the summary.
+        P.showSummary(summary, levels);
+    }).fail(function(jqXHR, textStatus, errorThrown) {
+        // Fail.
+    }).always(function() {
+        // Complete (after done or fail).
+    });
+};
+
+P.showSummary = function(map, levels) {
+    var t = $("#browserTable tbody");
+
+    // Remove existing rows.
+    t.find("tr").remove();
+
+    // Create list of past n days to act as keys into the map.
+    var days = [];
+    var day = moment();
+    for(var a = 0; a < 30; a++) {
+        var dt = day.format("YYYY-MM-DD");
+        days.push(dt);
+        day.add(-1, "days");
+    }
+
+    days.reverse(); // Order ascending
+
+    // Add cells.
+    var html = "<tr>";
+    for(var a = 0; a < days.length; a++) {
+        var dt = days[a];
+        var count = map[dt] || 0;
+
+        var m = moment(dt, "YYYY-MM-DD");
+        var title = m.format("MMM D") + ": " + count + " rows";
+        if(levels && levels[dt]) {
+            // Add the counts by level, e.g. "(ERROR 3, INFO 120)".
+            var parts = [];
+            for(var level in levels[dt]) {
+                parts.push(level + " " + levels[dt][level]);
+            }
+            title += " (" + parts.join(", ") + ")";
+        }
+
+        var cls = "count_zero";
+        if(count > 0) { cls = "over_zero"; }
+        if(count > 10) { cls = "over_ten"; }
+        if(count > 100) { cls = "over_hundred"; }
+        if(count > 1000) { cls = "over_thousand"; }
+
+        var cell = "<td class='" + cls + "' data-dt='" + dt + "' data-count='" + count + "' title='" + title + "'></td>";
+
+        html += cell;
+    }
+    html += "</tr>";
+    t.append(html);
+
+    // Setup cell hover handler.
+    $("#browserTable tbody tr td").hover(function() {
+        // Hover over.
+        $(this).addClass("summary_cell_highlight");
+    },
+    function() {
+        // Hover off.
+        $(this).removeClass("summary_cell_highlight");
+    });
+
+    // Setup cell click handler.
+    $("#browserTable tbody tr td").click(function() {
+        var dt = $(this).attr("data-dt");
+        var count = $(this).attr("data-count");
+
+        // Set search options to select records on the clicked day.
+        $("#dt").val(dt);
+        $("#ts").val("00:00:00");
+        $("#range").val("1_days");
+
+        // Request logs.
+        P.optionChanged();
+    });
+};
+
+// Load event handler fired when all DOM objects, images, and scripts are loaded.
+window.onload = P.load;
@@ -0,0 +1,64 @@
+package plog;
+
+/*
+Cost on the calling thread of capturing the call site, by logging with capture off and on from a
+shallow and a deep stack. The frames are resolved later on the queue pump thread, which isn't
+counted. Run it in an empty directory with a plog.properties holding server=false. Not run by the
+tests:
+
+java -cp <classpath> plog.CallSiteBenchmark [calls per run, default 400000]
+*/
+public class CallSiteBenchmark {
+    private static final int[] DEPTHS = { 10, 100 }; // Frames below main when logging.
+    private static final String[] CAPTURE = { "none", "all" };
+    private static final int BATCH = 20000; // Calls between pauses, well under the queue capacity.
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 400000;
+        PLog log = new PLog("bench");
+        LoggerConfig config = LoggerConfig.get("bench");
+
+        // The first rounds warm up the JIT.
+        for(int round = 0; round < 3; round++) {
+            for(int depth : DEPTHS) {
+                for(String capture : CAPTURE) {
+                    config.setCapture(capture);
+                    double[] perCall = At(depth, log, calls);
+                    if(round == 2) {
+                        LevelBenchmark.Print("depth " + depth + ", callsite=" + capture, perCall);
+                    }
+                }
+            }
+        }
+
+        PLog.Shutdown();
+        System.exit(0);
+    }
+
+    /*
+    Logs from the given number of frames down, like an application several calls deep. Returns the
+    nanoseconds of CPU time and bytes allocated per call. Calls are made in batches, with a pause
+    after each for the queue pump to write them, so the calls are timed without waiting for room in
+    the queue.
+    */
+    private static double[] At(int depth, PLog log, int calls) throws InterruptedException {
+        if(depth > 1) {
+            return At(depth - 1, log, calls);
+        }
+
+        long nanos = 0;
+        long bytes = 0;
+        for(int done = 0; done < calls; done += BATCH) {
+            long t0 = LevelBenchmark.Cpu();
+            long b0 = LevelBenchmark.Allocated();
+            for(int a = 0; a < BATCH; a++) {
+                log.info("This is an info log message of about average length.");
+            }
+            nanos += LevelBenchmark.Cpu() - t0;
+            bytes += LevelBenchmark.Allocated() - b0;
+            Thread.sleep(500);
+        }
+        double made = (calls + BATCH - 1) / BATCH * BATCH;
+        return new double[] { nanos / made, bytes / made };
+    }
+}
@@ -0,0 +1,160 @@
+package plog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+/*
+Tests of the collector: batches sent again aren't queued twice, and the batch format reads back what
+was written. The accepted messages go to the test database through the queue.
+*/
+public class CollectorTest {
+    private final Collector collector = new Collector();
+    private final long journal = new Random().nextLong(); // Not in the test database yet.
+
+    @Test
+    public void batchSentAgainIsDropped() {
+        Map<String, Object> before = collector.describe();
+        assertEquals(204, collector.ingest(Batch("n1", journal, 1, 5)));
+        assertEquals(204, collector.ingest(Batch("n1", journal, 1, 5)));
+
+        assertEquals(5, Delta(before, "messages"));
+        assertEquals(5, Delta(before, "duplicates"));
+        assertEquals(2, Delta(before, "batches"));
+    }
+
+    @Test
+    public void overlappingBatchQueuesOnlyNewMessages() {
+        Map<String, Object> before = collector.describe();
+        assertEquals(204, collector.ingest(Batch("n1", journal, 1, 5)));
+        assertEquals(204, collector.ingest(Batch("n1", journal, 4, 8)));
+
+        assertEquals(8, Delta(before, "messages"));
+        assertEquals(2, Delta(before, "duplicates"));
+    }
+
+    @Test
+    public void journalsAreKeptApart() {
+        Map<String, Object> before = collector.describe();
+        assertEquals(204, collector.ingest(Batch("n1", journal, 1, 5)));
+        assertEquals(204, collector.ingest(Batch("n2", journal, 1, 5)));
+        assertEquals(204, collector.ingest(Batch("n1", journal + 1, 1, 5)));
+
+        assertEquals(15, Delta(before, "messages"));
+        assertEquals(0, Delta(before, "duplicates"));
+    }
+
+    @Test
+    public void messagesWithoutSequenceAreAlwaysQueued() {
+        Map<String, Object> before = collector.describe();
+        assertEquals(204, collector.ingest(Batch("n1", journal, 0, 0)));
+        assertEquals(204, collector.ingest(Batch("n1", journal, 0, 0)));
+
+        assertEquals(2, Delta(before, "messages"));
+        assertEquals(0, Delta(before, "duplicates"));
+    }
+
+    @Test
+    public void queuedMessagesKeepTheirSource() {
+        Collector.Batch batch = Batch("n1", journal, 3, 4);
+        assertEquals(204, collector.ingest(batch));
+
+        Message m = batch.msgs.get(1);
+        assertEquals("n1:" + journal, m.source);
+        assertEquals(4, m.sourceSeq);
+        assertEquals(0, m.seq); // Numbered again by the collector's journal.
+    }
+
+    @Test
+    public void batchLargerThanTheQueueIsRefused() {
+        Map<String, Object> before = collector.describe();
+        assertEquals(413, collector.ingest(Batch("n1", journal, 1, PLog.QueueCapacity() + 1)));
+        assertEquals(0, Delta(before, "messages"));
+
+        // Nothing was accepted, so the batch can be sent again in parts.
+        assertEquals(204, collector.ingest(Batch("n1", journal, 1, 5)));
+        assertEquals(5, Delta(before, "messages"));
+    }
+
+    @Test
+    public void batchReadsBackWhatWasWritten() throws IOException {
+        Collector.Batch batch = Batch("n1", journal, 1, 2);
+        batch.msgs.get(0).trace = "java.lang.IllegalStateException\n\tat plog.Test.run(Test.java:1)";
+        batch.msgs.get(1).message = null;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Collector.Write(out, batch.node, batch.journal, batch.msgs);
+        Collector.Batch read = Collector.Read(new ByteArrayInputStream(out.toByteArray()), 1024 * 1024);
+
+        assertEquals("n1", read.node);
+        assertEquals(journal, read.journal);
+        assertEquals(2, read.msgs.size());
+        for(int a = 0; a < 2; a++) {
+            Message m = batch.msgs.get(a);
+            Message r = read.msgs.get(a);
+            assertEquals(m.seq, r.seq);
+            assertEquals(m.time, r.time);
+            assertEquals(m.level, r.level);
+            assertEquals(m.node, r.node);
+            assertEquals(m.logger, r.logger);
+            assertEquals(m.message, r.message);
+            assertEquals(m.trace, r.trace);
+        }
+        assertNull(read.msgs.get(1).message);
+    }
+
+    @Test(expected = IOException.class)
+    public void batchOverTheLimitIsRefused() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Collector.Write(out, "n1", journal, Batch("n1", journal, 1, 100).msgs);
+        Collector.Read(new ByteArrayInputStream(out.toByteArray()), 1024);
+    }
+
+    @Test(expected = EOFException.class)
+    public void stringLongerThanTheBatchIsRefused() throws IOException {
+        // A message claiming to be 60MB, in a request of a few bytes.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Collector.Write(bytes, "n1", journal, Batch("n1", journal, 1, 1).msgs);
+        byte[] batch = bytes.toByteArray();
+        int message = batch.length - 4 - "Message 1 from n1".length() - 4;
+        ByteBuffer.wrap(batch).putInt(message, 60 * 1024 * 1024);
+
+        Collector.Read(new ByteArrayInputStream(batch), 64 * 1024 * 1024);
+    }
+
+    /*
+    Returns a batch of messages with sequence numbers from first to last, or one message without
+    a sequence number for 0.
+    */
+    private static Collector.Batch Batch(String node, long journal, long first, long last) {
+        Collector.Batch batch = new Collector.Batch();
+        batch.node = node;
+        batch.journal = journal;
+        batch.msgs = new ArrayList<Message>();
+        for(long seq = first; seq <= last; seq++) {
+            Message m = new Message();
+            m.seq = seq;
+            m.time = System.currentTimeMillis();
+            m.level = Message.Level.INFO;
+            m.node = node;
+            m.logger = "collected";
+            m.message = "Message " + seq + " from " + node;
+            batch.msgs.add(m);
+        }
+        return batch;
+    }
+
+    private long Delta(Map<String, Object> before, String counter) {
+        return (Long)collector.describe().get(counter) - (Long)before.get(counter);
+    }
+}
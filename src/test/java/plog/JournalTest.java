@@ -0,0 +1,244 @@
+package plog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+Tests of the journal: records read back after a restart, records cut short by a crash or damaged
+dropped without losing the ones before them, and the size limit.
+*/
+public class JournalTest {
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("journal", "", new File("."));
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void recordsAreReadInOrder() throws IOException {
+        Journal j = new Journal(dir);
+        j.append(Msgs("m", 3));
+
+        assertEquals(3, j.last());
+        assertEquals(3, j.backlog());
+        List<Message> read = j.read(10);
+        assertEquals(Texts("m0", "m1", "m2"), Texts(read));
+        assertEquals(3, read.get(2).seq);
+
+        // Read again until replayed() is called, as after a failed insert.
+        assertEquals(3, j.read(10).size());
+        j.replayed();
+        assertEquals(0, j.read(10).size());
+        assertTrue(j.caughtUp());
+    }
+
+    @Test
+    public void recordsSurviveARestart() throws IOException {
+        new Journal(dir).append(Msgs("m", 3));
+
+        Journal j = new Journal(dir);
+        assertEquals(3, j.last());
+        assertEquals(Texts("m0", "m1", "m2"), Texts(j.read(10)));
+
+        j.append(Msgs("n", 1));
+        assertEquals(4, j.last());
+    }
+
+    @Test
+    public void recordWithBadChecksumEndsTheJournal() throws IOException {
+        new Journal(dir).append(Msgs("m", 3));
+
+        // The last record's payload didn't reach the disk, but its length did.
+        RandomAccessFile raf = Segment();
+        try {
+            long pos = Offset(raf, 2);
+            raf.seek(pos + 8 + 2);
+            int b = raf.read();
+            raf.seek(pos + 8 + 2);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        Journal j = new Journal(dir);
+        assertEquals(2, j.last());
+        j.append(Msgs("n", 1));
+        assertEquals(3, j.last());
+        assertEquals(Texts("m0", "m1", "n0"), Texts(j.read(10)));
+    }
+
+    @Test
+    public void recordCutShortEndsTheJournal() throws IOException {
+        new Journal(dir).append(Msgs("m", 2));
+
+        // A length was written after the last record, but nothing else.
+        RandomAccessFile raf = Segment();
+        try {
+            raf.seek(Offset(raf, 2));
+            raf.writeInt(100);
+        } finally {
+            raf.close();
+        }
+
+        Journal j = new Journal(dir);
+        assertEquals(2, j.last());
+        j.append(Msgs("n", 1));
+        assertEquals(Texts("m0", "m1", "n0"), Texts(j.read(10)));
+
+        // The partial record was cleared, so it isn't read after the next restart either.
+        j = new Journal(dir);
+        assertEquals(3, j.last());
+        assertEquals(Texts("m0", "m1", "n0"), Texts(j.read(10)));
+    }
+
+    @Test
+    public void damageInTheSegmentBeingAppendedToIsSkipped() throws IOException {
+        Journal j = new Journal(dir);
+        j.append(Msgs("m", 3));
+
+        // The second record is damaged while the journal is open.
+        RandomAccessFile raf = Segment();
+        try {
+            long pos = Offset(raf, 1);
+            raf.seek(pos + 8 + 2);
+            int b = raf.read();
+            raf.seek(pos + 8 + 2);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        // The records after the damage are skipped, and the journal is caught up once the rest is replayed.
+        assertEquals(Texts("m0"), Texts(j.read(10)));
+        j.replayed();
+        assertTrue(j.caughtUp());
+        assertEquals(0, j.read(10).size());
+        assertTrue(j.caughtUp());
+
+        // The next records go to a new segment, and are read from there.
+        j.append(Msgs("n", 2));
+        assertEquals(2, dir.listFiles().length);
+        assertEquals(Texts("n0", "n1"), Texts(j.read(10)));
+    }
+
+    @Test
+    public void segmentBeingAppendedToDoesNotFillTheJournal() throws IOException {
+        // A limit below two segments is raised to two.
+        Journal j = new Journal(dir, 1024 * 1024, 1);
+        assertEquals(2L * 1024 * 1024, j.describe().get("maxBytes"));
+
+        j.append(Msgs("m", 1));
+        assertFalse(j.full());
+
+        // Full once two whole segments wait to be replayed.
+        while(((Integer)j.describe().get("segments")) < 3) {
+            assertFalse(j.full());
+            j.append(Msgs("m", 1000));
+        }
+        assertTrue(j.full());
+
+        // Replaying them makes room.
+        while(j.read(10000).size() > 0) {
+            j.replayed();
+        }
+        assertFalse(j.full());
+    }
+
+    @Test
+    public void skipToMovesPastCommittedRecords() throws IOException {
+        Journal j = new Journal(dir);
+        j.skipTo(41); // E.g. the journal directory was deleted, but the database has the messages.
+
+        j.append(Msgs("m", 1));
+        assertEquals(42, j.last());
+        List<Message> read = j.read(10);
+        assertEquals(1, read.size());
+        assertEquals(42, read.get(0).seq);
+    }
+
+    @Test
+    public void skipToKeepsRecordsInTheJournal() throws IOException {
+        new Journal(dir).append(Msgs("m", 3));
+
+        // One database file has the first two messages, another none of them.
+        Journal j = new Journal(dir);
+        j.skipTo(2);
+        assertEquals(Texts("m0", "m1", "m2"), Texts(j.read(10)));
+        j.append(Msgs("n", 1));
+        assertEquals(4, j.last());
+    }
+
+    /*
+    Returns the only segment file, opened for writing.
+    */
+    private RandomAccessFile Segment() throws IOException {
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        return new RandomAccessFile(files[0], "rw");
+    }
+
+    /*
+    Returns the position of a record in a segment, counting from 0.
+    */
+    private static long Offset(RandomAccessFile raf, int record) throws IOException {
+        long pos = 0;
+        for(int a = 0; a < record; a++) {
+            raf.seek(pos);
+            pos += 8 + raf.readInt();
+        }
+        return pos;
+    }
+
+    private static List<Message> Msgs(String prefix, int count) {
+        List<Message> msgs = new ArrayList<Message>();
+        for(int a = 0; a < count; a++) {
+            Message m = new Message();
+            m.time = System.currentTimeMillis();
+            m.level = Message.Level.INFO;
+            m.logger = "test";
+            m.message = prefix + a;
+            msgs.add(m);
+        }
+        return msgs;
+    }
+
+    private static List<String> Texts(List<Message> msgs) {
+        List<String> texts = new ArrayList<String>();
+        for(Message m : msgs) {
+            texts.add(m.message);
+        }
+        return texts;
+    }
+
+    private static List<String> Texts(String... texts) {
+        List<String> list = new ArrayList<String>();
+        for(String s : texts) {
+            list.add(s);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,123 @@
+package plog;
+
+import java.lang.management.ManagementFactory;
+
+/*
+Cost on the calling thread of log calls below the logger's level, which return after reading the
+level, against calls that are queued. Run it in an empty directory with a plog.properties holding
+level=INFO, server=false and callsite=none, so enabled calls aren't charged for a stack walk. Not
+run by the tests:
+
+java -cp <classpath> plog.LevelBenchmark [calls per run, default 10000000]
+*/
+public class LevelBenchmark {
+    private static final int BATCH = 20000; // Enabled calls between pauses, well under the queue capacity.
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        PLog log = new PLog("bench");
+        if(log.isDebugEnabled() || !log.isInfoEnabled()) {
+            System.out.println("Run with level=INFO in plog.properties.");
+            System.exit(1);
+        }
+
+        // The first rounds warm up the JIT.
+        for(int round = 0; round < 3; round++) {
+            double[] disabled = Disabled(log, calls);
+            double[] guarded = Guarded(log, calls);
+            double[] pattern = Pattern(log, calls);
+            double[] enabled = Enabled(log, calls / 10);
+            if(round == 2) {
+                Print("debug, disabled", disabled);
+                Print("debug with a guard, disabled", guarded);
+                Print("debug with a {} argument, disabled", pattern);
+                Print("info, enabled", enabled);
+            }
+        }
+
+        PLog.Shutdown();
+        System.exit(0);
+    }
+
+    /*
+    Each run returns the nanoseconds of CPU time and bytes allocated per call on the calling thread.
+    CPU time leaves out the queue pump, which shares the cores with the caller.
+    */
+    private static double[] Disabled(PLog log, int calls) {
+        long t0 = Cpu();
+        long b0 = Allocated();
+        for(int a = 0; a < calls; a++) {
+            log.debug("This is a debug log message of about average length.");
+        }
+        return PerCall(t0, b0, calls);
+    }
+
+    private static double[] Guarded(PLog log, int calls) {
+        long t0 = Cpu();
+        long b0 = Allocated();
+        for(int a = 0; a < calls; a++) {
+            if(log.isDebugEnabled()) {
+                log.debug("Message " + a + ". This is a debug log message of about average length.");
+            }
+        }
+        return PerCall(t0, b0, calls);
+    }
+
+    private static double[] Pattern(PLog log, int calls) {
+        long t0 = Cpu();
+        long b0 = Allocated();
+        for(int a = 0; a < calls; a++) {
+            log.debug("Message {}. This is a debug log message of about average length.", a);
+        }
+        return PerCall(t0, b0, calls);
+    }
+
+    /*
+    Enabled calls are made in batches, with a pause after each for the queue pump to write them, so
+    the calls are timed without waiting for room in the queue.
+    */
+    private static double[] Enabled(PLog log, int calls) throws InterruptedException {
+        long nanos = 0;
+        long bytes = 0;
+        for(int done = 0; done < calls; done += BATCH) {
+            long t0 = Cpu();
+            long b0 = Allocated();
+            for(int a = 0; a < BATCH; a++) {
+                log.info("This is an info log message of about average length.");
+            }
+            nanos += Cpu() - t0;
+            bytes += Allocated() - b0;
+            Thread.sleep(500);
+        }
+        double made = (calls + BATCH - 1) / BATCH * BATCH;
+        return new double[] { nanos / made, bytes / made };
+    }
+
+    private static double[] PerCall(long t0, long b0, int calls) {
+        double nanos = Cpu() - t0;
+        double bytes = Allocated() - b0;
+        return new double[] { nanos / calls, bytes / calls };
+    }
+
+    static void Print(String name, double[] perCall) {
+        System.out.println(name + ": " + String.format("%.1f", perCall[0]) + " ns/call, " + Math.round(perCall[1]) + " bytes/call");
+    }
+
+    /*
+    Returns the CPU time used by this thread so far, in nanoseconds.
+    */
+    static long Cpu() {
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+
+    /*
+    Returns the bytes allocated by this thread so far, or 0 if the JVM doesn't count them.
+    */
+    static long Allocated() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,227 @@
+package plog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+Tests of cursor paging through messages that share a timestamp, which the cursor tells apart by id.
+*/
+public class LogQueryTest {
+    private static final int LIMIT = 7;
+
+    private File file;
+    private Connection c;
+    private List<String> rows; // All rows as cursors, in (ts, id) order.
+
+    @Before
+    public void createDatabase() throws IOException, SQLException {
+        file = File.createTempFile("query", ".db", new File("."));
+        PLog.SetupDatabase(file.getPath());
+        c = PLog.GetLogConnection(file.getPath());
+
+        PreparedStatement s = c.prepareStatement("insert into logger(name) values('test')");
+        s.executeUpdate();
+        s.close();
+
+        // Most rows share ts 2000, and their ids aren't contiguous.
+        Insert(2000, 10);
+        Insert(1000, 5);
+        Insert(2000, 10);
+        Insert(3000, 5);
+
+        rows = Select("select ts, id from log order by ts, id");
+        assertEquals(30, rows.size());
+    }
+
+    @After
+    public void deleteDatabase() throws SQLException {
+        c.close();
+        file.delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+    }
+
+    @Test
+    public void pagesForwardInAscendingOrder() throws SQLException {
+        assertEquals(rows, PageThrough(Query(true)));
+    }
+
+    @Test
+    public void pagesForwardInDescendingOrder() throws SQLException {
+        List<String> expected = new ArrayList<String>(rows);
+        Collections.reverse(expected);
+        assertEquals(expected, PageThrough(Query(false)));
+    }
+
+    @Test
+    public void pagesBackFromTheLastPage() throws SQLException {
+        // Start after the last row and page back to the first.
+        LogQuery q = Query(true);
+        q.hasCursor = true;
+        q.prev = true;
+        q.cursorTs = 3000;
+        q.cursorId = Long.MAX_VALUE;
+
+        List<String> all = new ArrayList<String>();
+        while(true) {
+            List<String> page = Page(q);
+            if(page.isEmpty()) {
+                break;
+            }
+            assertTrue(page.size() <= LIMIT);
+            all.addAll(0, page);
+            SetCursor(q, page.get(0));
+        }
+        assertEquals(rows, all);
+    }
+
+    @Test
+    public void nextAndPrevReturnTheSamePage() throws SQLException {
+        LogQuery q = Query(true);
+        List<String> first = Page(q);
+        SetCursor(q, first.get(LIMIT - 1));
+        List<String> second = Page(q);
+
+        // Back from the first row of the second page is the first page.
+        q.prev = true;
+        SetCursor(q, second.get(0));
+        assertEquals(first, Page(q));
+    }
+
+    @Test
+    public void inRangeBreaksTiesById() {
+        LogQuery q = Query(true);
+        q.hasCursor = true;
+        q.cursorTs = 2000;
+        q.cursorId = 10;
+
+        assertFalse(q.inRange(2000, 10));
+        assertTrue(q.inRange(2000, 11));
+        assertFalse(q.inRange(1999, 20));
+        assertTrue(q.inRange(2001, 1));
+
+        q.prev = true;
+        assertTrue(q.inRange(2000, 9));
+        assertFalse(q.inRange(2000, 11));
+    }
+
+    @Test
+    public void cursorIsParsed() {
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("from", "2016-01-01 00:00:00.000");
+        query.put("to", "2016-01-02 00:00:00.000");
+        query.put("cursor", LogQuery.Cursor(2000, 17));
+        query.put("dir", "prev");
+
+        LogQuery q = LogQuery.Parse(query);
+        assertTrue(q.hasCursor);
+        assertEquals(2000, q.cursorTs);
+        assertEquals(17, q.cursorId);
+        assertTrue(q.prev);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCursorIsRejected() {
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("from", "2016-01-01 00:00:00.000");
+        query.put("to", "2016-01-02 00:00:00.000");
+        query.put("cursor", "2000");
+        LogQuery.Parse(query);
+    }
+
+    /*
+    Returns the rows of all pages, following the cursor of the last row of each page.
+    */
+    private List<String> PageThrough(LogQuery q) throws SQLException {
+        List<String> all = new ArrayList<String>();
+        while(true) {
+            List<String> page = Page(q);
+            if(page.isEmpty()) {
+                break;
+            }
+            assertTrue(page.size() <= LIMIT);
+            all.addAll(page);
+            SetCursor(q, page.get(page.size() - 1));
+        }
+        return all;
+    }
+
+    /*
+    Returns a page of rows in display order, queried like the log server does.
+    */
+    private List<String> Page(LogQuery q) throws SQLException {
+        PreparedStatement s = c.prepareStatement("select log.ts, log.id from log where " + q.where() + " order by " + q.orderBy() + " limit " + q.limit);
+        try {
+            q.bind(s, 1);
+            List<String> page = Rows(s.executeQuery());
+            if(q.prev) {
+                Collections.reverse(page);
+            }
+            return page;
+        } finally {
+            s.close();
+        }
+    }
+
+    private static LogQuery Query(boolean asc) {
+        LogQuery q = new LogQuery();
+        q.from = 0;
+        q.to = Long.MAX_VALUE;
+        q.asc = asc;
+        q.limit = LIMIT;
+        return q;
+    }
+
+    private static void SetCursor(LogQuery q, String cursor) {
+        String[] parts = cursor.split("_");
+        q.hasCursor = true;
+        q.cursorTs = Long.parseLong(parts[0]);
+        q.cursorId = Long.parseLong(parts[1]);
+    }
+
+    private void Insert(long ts, int count) throws SQLException {
+        PreparedStatement s = c.prepareStatement("insert into log(ts, level, logger_id, message) values(?, 1, 1, 'message')");
+        try {
+            for(int a = 0; a < count; a++) {
+                s.setLong(1, ts);
+                s.executeUpdate();
+            }
+        } finally {
+            s.close();
+        }
+    }
+
+    private List<String> Select(String sql) throws SQLException {
+        PreparedStatement s = c.prepareStatement(sql);
+        try {
+            return Rows(s.executeQuery());
+        } finally {
+            s.close();
+        }
+    }
+
+    private static List<String> Rows(ResultSet rs) throws SQLException {
+        List<String> rows = new ArrayList<String>();
+        while(rs.next()) {
+            rows.add(LogQuery.Cursor(rs.getLong(1), rs.getLong(2)));
+        }
+        rs.close();
+        return rows;
+    }
+}
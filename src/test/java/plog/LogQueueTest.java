@@ -0,0 +1,210 @@
+package plog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+/*
+Tests of the log queue's overflow policies and of adding batches whole.
+*/
+public class LogQueueTest {
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(8, new LogQueue(5, LogQueue.Overflow.BLOCK, null).capacity());
+        assertEquals(8, new LogQueue(8, LogQueue.Overflow.BLOCK, null).capacity());
+    }
+
+    @Test
+    public void messagesAreTakenInOrder() {
+        LogQueue q = new LogQueue(4, LogQueue.Overflow.BLOCK, null);
+        for(int a = 0; a < 10; a++) {
+            // Wraps around the ring.
+            assertTrue(q.put(Msg(Message.Level.INFO, "m" + a)));
+            assertEquals("m" + a, Drain(q).get(0).message);
+        }
+        assertEquals(10, q.enqueued());
+        assertEquals(0, q.dropped());
+    }
+
+    @Test
+    public void dropNewestDiscardsTheNewMessage() {
+        LogQueue q = Full(LogQueue.Overflow.DROP_NEWEST, null);
+
+        assertFalse(q.put(Msg(Message.Level.ERROR, "new")));
+        assertEquals(1, q.dropped());
+        assertEquals(1, q.dropped(Message.Level.ERROR));
+        assertEquals(Texts("m0", "m1", "m2", "m3"), Texts(Drain(q)));
+    }
+
+    @Test
+    public void dropOldestMakesRoomForTheNewMessage() {
+        LogQueue q = Full(LogQueue.Overflow.DROP_OLDEST, null);
+
+        assertTrue(q.put(Msg(Message.Level.INFO, "m4")));
+        assertTrue(q.put(Msg(Message.Level.INFO, "m5")));
+        assertEquals(2, q.dropped(Message.Level.INFO));
+        assertEquals(Texts("m2", "m3", "m4", "m5"), Texts(Drain(q)));
+    }
+
+    @Test
+    public void dropBelowDiscardsLowLevels() {
+        LogQueue q = Full(LogQueue.Overflow.DROP_BELOW, Message.Level.WARN);
+
+        assertFalse(q.put(Msg(Message.Level.DEBUG, "debug")));
+        assertFalse(q.put(Msg(Message.Level.INFO, "info")));
+        assertEquals(2, q.dropped());
+        assertEquals(0, q.blocked());
+    }
+
+    @Test(timeout = 10000)
+    public void dropBelowWaitsWithHighLevels() throws Exception {
+        LogQueue q = Full(LogQueue.Overflow.DROP_BELOW, Message.Level.WARN);
+        AtomicBoolean added = new AtomicBoolean();
+        Thread producer = Put(q, Msg(Message.Level.WARN, "warn"), added);
+
+        AssertWaiting(q, producer, added);
+        assertEquals(Texts("m1", "m2", "m3", "warn"), Texts(Drain(q)));
+        assertEquals(0, q.dropped());
+    }
+
+    @Test(timeout = 10000)
+    public void blockWaitsForRoom() throws Exception {
+        LogQueue q = Full(LogQueue.Overflow.BLOCK, null);
+        AtomicBoolean added = new AtomicBoolean();
+        Thread producer = Put(q, Msg(Message.Level.DEBUG, "debug"), added);
+
+        AssertWaiting(q, producer, added);
+        assertEquals(Texts("m1", "m2", "m3", "debug"), Texts(Drain(q)));
+        assertEquals(0, q.dropped());
+    }
+
+    @Test
+    public void offerAllAddsAllOrNothing() {
+        LogQueue q = new LogQueue(8, LogQueue.Overflow.BLOCK, null);
+
+        assertTrue(q.offerAll(Msgs("a", 5)));
+        assertFalse(q.offerAll(Msgs("b", 4))); // 3 free slots.
+        assertEquals(5, q.size());
+        assertTrue(q.offerAll(Msgs("c", 3)));
+        assertEquals(Texts("a0", "a1", "a2", "a3", "a4", "c0", "c1", "c2"), Texts(Drain(q)));
+
+        assertFalse(q.offerAll(Msgs("d", 9))); // Larger than the queue.
+        assertEquals(0, q.size());
+        assertEquals(8, q.enqueued());
+    }
+
+    @Test
+    public void offerAllBypassesTheOverflowPolicy() {
+        LogQueue q = Full(LogQueue.Overflow.DROP_OLDEST, null);
+
+        assertFalse(q.offerAll(Msgs("a", 1)));
+        assertEquals(0, q.dropped());
+        assertEquals(Texts("m0", "m1", "m2", "m3"), Texts(Drain(q)));
+    }
+
+    @Test
+    public void dropOldestKeepsMessagesAddedWithOfferAll() {
+        LogQueue q = new LogQueue(4, LogQueue.Overflow.DROP_OLDEST, null);
+        assertTrue(q.offerAll(Msgs("a", 2)));
+        assertTrue(q.put(Msg(Message.Level.INFO, "m0")));
+        assertTrue(q.put(Msg(Message.Level.INFO, "m1")));
+
+        // Only the messages put are dropped to make room.
+        for(int a = 2; a < 6; a++) {
+            assertTrue(q.put(Msg(Message.Level.INFO, "m" + a)));
+        }
+        assertEquals(2, q.dropped());
+        assertEquals(6, q.size());
+
+        // The kept messages count against the room for more.
+        assertFalse(q.offerAll(Msgs("b", 3)));
+        assertEquals(Texts("a0", "a1", "m2", "m3", "m4", "m5"), Texts(Drain(q)));
+        assertTrue(q.offerAll(Msgs("b", 3)));
+    }
+
+    /*
+    Returns a queue of capacity 4 holding m0 to m3.
+    */
+    private static LogQueue Full(LogQueue.Overflow overflow, Message.Level dropLevel) {
+        LogQueue q = new LogQueue(4, overflow, dropLevel);
+        for(int a = 0; a < 4; a++) {
+            assertTrue(q.put(Msg(Message.Level.INFO, "m" + a)));
+        }
+        assertEquals(4, q.size());
+        return q;
+    }
+
+    /*
+    Start a thread that puts a message, and sets added once it returns true.
+    */
+    private static Thread Put(final LogQueue q, final Message m, final AtomicBoolean added) {
+        Thread t = new Thread() {
+            public void run() {
+                added.set(q.put(m));
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /*
+    Check that the producer waits while the queue is full, and adds its message once one is taken.
+    */
+    private static void AssertWaiting(LogQueue q, Thread producer, AtomicBoolean added) throws InterruptedException {
+        while(q.blocked() == 0) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        assertTrue(producer.isAlive());
+
+        List<Message> taken = new ArrayList<Message>();
+        assertEquals(1, q.drainTo(taken, 1));
+        assertEquals("m0", taken.get(0).message);
+
+        producer.join();
+        assertTrue(added.get());
+    }
+
+    private static Message Msg(Message.Level level, String text) {
+        Message m = new Message();
+        m.level = level;
+        m.logger = "test";
+        m.message = text;
+        return m;
+    }
+
+    private static List<Message> Msgs(String prefix, int count) {
+        List<Message> msgs = new ArrayList<Message>();
+        for(int a = 0; a < count; a++) {
+            msgs.add(Msg(Message.Level.INFO, prefix + a));
+        }
+        return msgs;
+    }
+
+    private static List<Message> Drain(LogQueue q) {
+        List<Message> msgs = new ArrayList<Message>();
+        q.drainTo(msgs, Integer.MAX_VALUE);
+        return msgs;
+    }
+
+    private static List<String> Texts(List<Message> msgs) {
+        List<String> texts = new ArrayList<String>();
+        for(Message m : msgs) {
+            texts.add(m.message);
+        }
+        return texts;
+    }
+
+    private static List<String> Texts(String... texts) {
+        List<String> list = new ArrayList<String>();
+        for(String s : texts) {
+            list.add(s);
+        }
+        return list;
+    }
+}
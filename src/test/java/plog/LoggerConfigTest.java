@@ -0,0 +1,47 @@
+package plog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/*
+Tests of settings changed for every logger at runtime, which also apply to loggers created later.
+*/
+public class LoggerConfigTest {
+    private final String prefix = "config" + new Random().nextInt(1000000) + "."; // Loggers not created yet.
+
+    @Test
+    public void captureForAllAppliesToLaterLoggers() {
+        LoggerConfig before = LoggerConfig.get(prefix + "before");
+        try {
+            LoggerConfig.SetCaptureAll("DEBUG");
+            assertTrue(before.captures(Message.Level.DEBUG));
+            assertFalse(before.captures(Message.Level.ERROR));
+
+            LoggerConfig after = LoggerConfig.get(prefix + "after");
+            assertTrue(after.captures(Message.Level.DEBUG));
+            assertFalse(after.captures(Message.Level.ERROR));
+            assertEquals("DEBUG", LoggerConfig.Describe().get("callsite"));
+        } finally {
+            LoggerConfig.SetCaptureAll("WARN,ERROR");
+        }
+    }
+
+    @Test
+    public void rateLimitForAllAppliesToLaterLoggers() {
+        LoggerConfig before = LoggerConfig.get(prefix + "before");
+        try {
+            LoggerConfig.SetRateLimitAll(5);
+            assertEquals(5, before.rateLimit().perSecond, 0);
+            assertEquals(5, LoggerConfig.get(prefix + "after").rateLimit().perSecond, 0);
+        } finally {
+            LoggerConfig.SetRateLimitAll(0);
+        }
+        assertNull(before.rateLimit());
+        assertNull(LoggerConfig.get(prefix + "later").rateLimit());
+    }
+}
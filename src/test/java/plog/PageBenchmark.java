@@ -0,0 +1,119 @@
+package plog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+
+/*
+Latency of a deep page of log messages as the table grows: the page halfway through the table,
+asked for with a cursor from the logs endpoint, against the same page read with the limit / offset
+query the endpoint used before cursors. Each step logs more messages, waits for them to be written
+and measures both. The cursor is timed through the server, so it includes the HTTP round trip; the
+offset query runs on its own connection. Not run by the tests.
+
+Run it in an empty directory with a plog.properties holding search.index=false and callsite=none:
+
+java -cp <classpath> plog.PageBenchmark [messages per step, default 500000] [steps, default 4] [queries, default 10]
+*/
+public class PageBenchmark {
+    private static final int PAGE = 50;
+
+    public static void main(String[] args) throws Exception {
+        int step = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        PLog log = new PLog("bench.app");
+
+        String url = "http://localhost:" + PLog.GetLongProperty("server.port", 50001) + "/" + PLog.LOG_NAME + "/";
+        QueryBenchmark.WaitForServer(url + "cache");
+
+        int logged = 0;
+        for(int a = 0; a < steps; a++) {
+            for(int b = 0; b < step; b++, logged++) {
+                log.info("Message " + logged + ". This is an info log message of about average length.");
+            }
+            long[] range = QueryBenchmark.Range();
+            while(range[0] < logged) {
+                Thread.sleep(500);
+                range = QueryBenchmark.Range();
+            }
+            Report(url, range, queries);
+        }
+
+        PLog.Shutdown();
+        System.exit(0);
+    }
+
+    /*
+    Prints the median time of the page halfway through the table, read with a cursor and with an
+    offset, each run once to warm up and then the given number of times. Each run asks for a page
+    of a different size, so the cursor page isn't answered from the result cache.
+    */
+    private static void Report(String url, long[] range, int queries) throws Exception {
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        long depth = range[0] / 2;
+        String params = "from=" + QueryBenchmark.Encode(df.format(range[1])) + "&to=" + QueryBenchmark.Encode(df.format(range[2] + 1));
+        String cursor = Cursor(depth);
+
+        long[] cursorMillis = new long[queries];
+        long[] offsetMillis = new long[queries];
+        for(int a = -1; a < queries; a++) {
+            int limit = PAGE + queries + a;
+            long t0 = System.nanoTime();
+            QueryBenchmark.Get(url + "logs?" + params + "&cursor=" + cursor + "&limit=" + limit);
+            long t1 = System.nanoTime();
+            Offset(range[1], range[2] + 1, limit, depth);
+            long t2 = System.nanoTime();
+            if(a >= 0) {
+                cursorMillis[a] = (t1 - t0) / 1000000;
+                offsetMillis[a] = (t2 - t1) / 1000000;
+            }
+        }
+        Arrays.sort(cursorMillis);
+        Arrays.sort(offsetMillis);
+        System.out.println(range[0] + " rows, page at row " + depth + ": cursor " + cursorMillis[queries / 2] + " ms, offset " + offsetMillis[queries / 2] + " ms");
+    }
+
+    /*
+    Returns the cursor of the row the given number of rows from the newest, so the page after it
+    starts at that depth.
+    */
+    private static String Cursor(long depth) throws Exception {
+        Connection c = PLog.GetLogConnection();
+        try {
+            PreparedStatement s = c.prepareStatement("select ts, id from log order by ts desc, id desc limit 1 offset ?");
+            s.setLong(1, depth - 1);
+            ResultSet rs = s.executeQuery();
+            String cursor = LogQuery.Cursor(rs.getLong(1), rs.getLong(2));
+            s.close();
+            return cursor;
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+    Reads a page with the offset paging the logs endpoint used before cursors: SQLite steps over
+    every row before the offset.
+    */
+    private static void Offset(long from, long to, int limit, long offset) throws Exception {
+        Connection c = PLog.GetLogConnection();
+        try {
+            PreparedStatement s = c.prepareStatement("select log.id, log.ts, log.level, logger.name, log.message from log join logger on logger.id = log.logger_id where log.ts >= ? and log.ts <= ? order by log.ts desc, log.id desc limit ? offset ?");
+            s.setLong(1, from);
+            s.setLong(2, to);
+            s.setInt(3, limit);
+            s.setLong(4, offset);
+            ResultSet rs = s.executeQuery();
+            while(rs.next()) {
+                rs.getString(5);
+            }
+            s.close();
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package plog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+
+/*
+Latency of log queries that scan many rows to fill a page: a search for a rare word without the
+search index, and a logger prefix matching few messages. Run it once per query.threads setting to
+see how reading slices in parallel scales. Not run by the tests.
+
+Run it in a directory with a plog.properties holding search.index=false and the query.threads to
+measure. The first run logs the messages and exits, later runs query them:
+
+java -cp <classpath> plog.QueryBenchmark [messages, default 2000000] [queries, default 10]
+*/
+public class QueryBenchmark {
+    private static final int RARE = 100000; // One message in this many matches the queries.
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        PLog log = new PLog("bench.app");
+        PLog rare = new PLog("rare.app");
+
+        long[] range = Range();
+        if(range[0] < messages) {
+            for(int a = 0; a < messages; a++) {
+                if(a % RARE == 0) {
+                    rare.info("Message " + a + " has the needle in it.");
+                } else {
+                    log.info("Message " + a + ". This is an info log message of about average length.");
+                }
+            }
+            PLog.Shutdown();
+            System.out.println(messages + " messages logged. Run again to query them.");
+            System.exit(0);
+        }
+
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        String url = "http://localhost:" + PLog.GetLongProperty("server.port", 50001) + "/" + PLog.LOG_NAME + "/";
+        String params = "from=" + Encode(df.format(range[1])) + "&to=" + Encode(df.format(range[2] + 1));
+        WaitForServer(url + "cache");
+
+        System.out.println(range[0] + " rows, query.threads=" + PLog.GetProperty("query.threads", "default"));
+        Report("search", url + "logs?" + params + "&q=needle", queries);
+        Report("logger prefix", url + "logs?" + params + "&logger=" + Encode("rare*"), queries);
+
+        PLog.Shutdown();
+        System.exit(0);
+    }
+
+    /*
+    Prints the median and fastest time of a query, run once to warm up and then the given number of
+    times. Each run asks for a page of a different size, so it isn't answered from the result cache.
+    Clearing the cache isn't enough: a result is cached after it is sent, so it can be put back after
+    the clear.
+    */
+    private static void Report(String name, String query, int queries) throws IOException {
+        long[] millis = new long[queries];
+        for(int a = -1; a < queries; a++) {
+            long t0 = System.nanoTime();
+            Get(query + "&limit=" + (50 + queries + a));
+            if(a >= 0) {
+                millis[a] = (System.nanoTime() - t0) / 1000000;
+            }
+        }
+        Arrays.sort(millis);
+        System.out.println(name + ": median " + millis[queries / 2] + " ms, fastest " + millis[0] + " ms");
+    }
+
+    /*
+    Returns the number of rows and the oldest and newest timestamps.
+    */
+    static long[] Range() throws Exception {
+        Connection c = PLog.GetLogConnection();
+        try {
+            Statement s = c.createStatement();
+            ResultSet rs = s.executeQuery("select count(*), min(ts), max(ts) from log");
+            long[] range = { rs.getLong(1), rs.getLong(2), rs.getLong(3) };
+            s.close();
+            return range;
+        } finally {
+            c.close();
+        }
+    }
+
+    static void WaitForServer(String url) throws Exception {
+        for(int a = 0; ; a++) {
+            try {
+                Get(url);
+                return;
+            } catch(IOException e) {
+                if(a == 100) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    static void Get(String url) throws IOException {
+        HttpURLConnection c = (HttpURLConnection)new URL(url).openConnection();
+        if(c.getResponseCode() != 200) {
+            throw new IOException(url + ": " + c.getResponseCode());
+        }
+        InputStream in = c.getInputStream();
+        byte[] buf = new byte[8192];
+        while(in.read(buf) >= 0) {
+        }
+        in.close();
+    }
+
+    static String Encode(String value) throws IOException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+}
@@ -0,0 +1,121 @@
+package plog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+Throughput of the log queue against the unbounded LinkedBlockingQueue it replaced, with 1, 8 and 32
+producer threads and one consumer draining batches like the queue pump. Not run by the tests:
+
+java -cp <classpath> plog.QueueBenchmark [messages per run, default 4000000]
+*/
+public class QueueBenchmark {
+    private static final int[] PRODUCERS = { 1, 8, 32 };
+    private static final int CAPACITY = 65536;
+    private static final int BATCH = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+
+        // The first round warms up the JIT.
+        for(int round = 0; round < 2; round++) {
+            for(int producers : PRODUCERS) {
+                long ring = Run(new Ring(new LogQueue(CAPACITY, LogQueue.Overflow.BLOCK, null)), producers, messages);
+                long linked = Run(new Linked(), producers, messages);
+                if(round > 0) {
+                    System.out.println(producers + " producers: LogQueue " + ring + " msgs/s, LinkedBlockingQueue " + linked + " msgs/s");
+                }
+            }
+        }
+    }
+
+    /*
+    Returns the messages per second handed from the producers to the consumer.
+    */
+    private static long Run(final Queue q, int producers, int messages) throws Exception {
+        final int each = messages / producers;
+        final int total = each * producers;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int a = 0; a < producers; a++) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    for(int b = 0; b < each; b++) {
+                        Message m = new Message();
+                        m.level = Message.Level.INFO;
+                        q.put(m);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+
+        long t0 = System.nanoTime();
+        start.countDown();
+        List<Message> batch = new ArrayList<Message>(BATCH);
+        int taken = 0;
+        while(taken < total) {
+            taken += q.take(batch);
+            batch.clear();
+        }
+        long nanos = System.nanoTime() - t0;
+
+        for(Thread t : threads) {
+            t.join();
+        }
+        return (long)(total * 1e9 / nanos);
+    }
+
+    private interface Queue {
+        void put(Message m);
+
+        /*
+        Wait briefly for messages, and move up to a batch of them into the list.
+        */
+        int take(List<Message> batch) throws InterruptedException;
+    }
+
+    private static class Ring implements Queue {
+        private final LogQueue q;
+
+        Ring(LogQueue q) {
+            this.q = q;
+        }
+
+        public void put(Message m) {
+            q.put(m);
+        }
+
+        public int take(List<Message> batch) {
+            q.await(1, TimeUnit.MILLISECONDS.toNanos(1));
+            return q.drainTo(batch, BATCH);
+        }
+    }
+
+    private static class Linked implements Queue {
+        private final LinkedBlockingQueue<Message> q = new LinkedBlockingQueue<Message>();
+
+        public void put(Message m) {
+            q.add(m);
+        }
+
+        public int take(List<Message> batch) throws InterruptedException {
+            Message m = q.poll(1, TimeUnit.MILLISECONDS);
+            if(m == null) {
+                return 0;
+            }
+            batch.add(m);
+            return 1 + q.drainTo(batch, BATCH - 1);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package plog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/*
+Tests of the call site rate limits: a burst, then one message per interval, with the dropped messages
+counted on the next one let through.
+*/
+public class RateLimitTest {
+    @Test
+    public void burstThenDrop() {
+        RateLimit limit = new RateLimit(1, 3);
+        assertEquals(0, limit.acquire("a", false, null));
+        assertEquals(0, limit.acquire("a", false, null));
+        assertEquals(0, limit.acquire("a", false, null));
+        assertEquals(-1, limit.acquire("a", false, null));
+        assertEquals(-1, limit.acquire("a", false, null));
+    }
+
+    @Test
+    public void nextMessageCountsTheDropped() throws InterruptedException {
+        RateLimit limit = new RateLimit(10, 1);
+        assertEquals(0, limit.acquire("a {}", true, null));
+        assertEquals(-1, limit.acquire("a {}", true, null));
+        assertEquals(-1, limit.acquire("a {}", true, null));
+
+        // One message is earned every 100 ms.
+        Thread.sleep(150);
+        assertEquals(2, limit.acquire("a {}", true, null));
+        assertEquals(-1, limit.acquire("a {}", true, null));
+        Thread.sleep(150);
+        assertEquals(1, limit.acquire("a {}", true, null));
+    }
+
+    @Test
+    public void bucketRefillsUpToTheBurst() throws InterruptedException {
+        RateLimit limit = new RateLimit(10, 2);
+        assertEquals(0, limit.acquire("a {}", true, null));
+        assertEquals(0, limit.acquire("a {}", true, null));
+        assertEquals(-1, limit.acquire("a {}", true, null));
+
+        // Idle for longer than the burst takes to earn: only the burst is let through.
+        Thread.sleep(500);
+        assertEquals(1, limit.acquire("a {}", true, null));
+        assertEquals(0, limit.acquire("a {}", true, null));
+        assertEquals(-1, limit.acquire("a {}", true, null));
+    }
+
+    @Test
+    public void patternsHaveTheirOwnBuckets() {
+        RateLimit limit = new RateLimit(1, 1);
+        assertEquals(0, limit.acquire("a {}", true, null));
+        assertEquals(-1, limit.acquire("a {}", true, null));
+        assertEquals(0, limit.acquire("b {}", true, null));
+        assertEquals(-1, limit.acquire("b {}", true, null));
+    }
+
+    @Test
+    public void messagesBuiltWithPlusShareTheirCallSite() {
+        RateLimit limit = new RateLimit(1, 2);
+        int passed = 0;
+        for(int a = 0; a < 10; a++) {
+            if(Info(limit, "a" + a) >= 0) {
+                passed++;
+            }
+        }
+        assertEquals(2, passed);
+
+        // Another call site has its own bucket.
+        passed = 0;
+        for(int a = 0; a < 10; a++) {
+            if(Info(limit, "b" + a) >= 0) {
+                passed++;
+            }
+        }
+        assertEquals(2, passed);
+    }
+
+    @Test
+    public void capturedCallSiteIsUsedForTheFrame() {
+        RateLimit limit = new RateLimit(1, 2);
+        int passed = 0;
+        for(int a = 0; a < 10; a++) {
+            if(Warn(limit, "a" + a) >= 0) {
+                passed++;
+            }
+        }
+        assertEquals(2, passed);
+        assertTrue(Warn(limit, "c" + passed) >= 0); // Another call site.
+
+        // A constant message finds its bucket by its text after the first call.
+        assertTrue(limit.needsFrame("b", false));
+        Warn(limit, "b");
+        assertFalse(limit.needsFrame("b", false));
+        assertFalse(limit.needsFrame("b {}", true));
+    }
+
+    /*
+    Calls acquire two frames below the caller, as PLog.info and PLog.log do, so the call site is
+    the line calling this.
+    */
+    private static long Info(RateLimit limit, String message) {
+        return Log(limit, message);
+    }
+
+    private static long Log(RateLimit limit, String message) {
+        return limit.acquire(message, false, null);
+    }
+
+    /*
+    Like Info, with the call site captured first, as PLog.log does when it captures the call site.
+    */
+    private static long Warn(RateLimit limit, String message) {
+        return LogCaptured(limit, message);
+    }
+
+    private static long LogCaptured(RateLimit limit, String message) {
+        return limit.acquire(message, false, new CallSite());
+    }
+}
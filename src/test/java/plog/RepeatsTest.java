@@ -0,0 +1,122 @@
+package plog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/*
+Tests of collapsing repeated messages within a window.
+*/
+public class RepeatsTest {
+    private static final long WINDOW = 60000; // Long enough that collapse() doesn't close it on its own.
+
+    private final long t = System.currentTimeMillis();
+    private final Repeats repeats = new Repeats(WINDOW);
+
+    @Test
+    public void repeatsInTheWindowAreCounted() {
+        List<Message> msgs = Msgs(Msg(t, "a"), Msg(t + 1, "a"), Msg(t + 2, "b"), Msg(t + 3, "a"));
+        repeats.collapse(msgs);
+        assertEquals(Texts("a", "b"), Texts(msgs));
+        assertTrue(repeats.pending());
+
+        // Both windows close, and the one with repeats adds one message at the time of the last repeat.
+        msgs.clear();
+        repeats.expire(msgs, t + 2 + WINDOW + 1);
+        assertEquals(Texts("a (repeated 2 times)"), Texts(msgs));
+        assertEquals(t + 3, msgs.get(0).time);
+        assertFalse(repeats.pending());
+    }
+
+    @Test
+    public void windowWithoutRepeatsAddsNothing() {
+        List<Message> msgs = Msgs(Msg(t, "a"));
+        repeats.collapse(msgs);
+
+        msgs.clear();
+        repeats.expire(msgs, t + WINDOW + 1);
+        assertEquals(0, msgs.size());
+        assertFalse(repeats.pending());
+    }
+
+    @Test
+    public void windowIsNotClosedEarly() {
+        List<Message> msgs = Msgs(Msg(t, "a"), Msg(t + 1, "a"));
+        repeats.collapse(msgs);
+
+        msgs.clear();
+        repeats.expire(msgs, t + WINDOW);
+        assertEquals(0, msgs.size());
+        assertTrue(repeats.pending());
+    }
+
+    @Test
+    public void messageAfterTheWindowStartsANewOne() {
+        List<Message> msgs = Msgs(Msg(t, "a"), Msg(t + 1, "a"), Msg(t + WINDOW + 1, "a"));
+        repeats.collapse(msgs);
+        assertEquals(Texts("a", "a (repeated 1 time)", "a"), Texts(msgs));
+    }
+
+    @Test
+    public void differentLevelsLoggersAndArgumentsAreNotRepeats() {
+        Message level = Msg(t, "a");
+        level.level = Message.Level.WARN;
+        Message logger = Msg(t, "a");
+        logger.logger = "other";
+        Message args = Msg(t, "a {}");
+        args.args = new Object[] { 1 };
+        Message args2 = Msg(t, "a {}");
+        args2.args = new Object[] { 2 };
+
+        List<Message> msgs = Msgs(Msg(t, "a"), level, logger, args, args2);
+        repeats.collapse(msgs);
+        assertEquals(5, msgs.size());
+    }
+
+    @Test
+    public void shutdownClosesAllWindows() {
+        List<Message> msgs = Msgs(Msg(t, "a"), Msg(t, "a"), Msg(t, "b"), Msg(t, "b"));
+        repeats.collapse(msgs);
+
+        msgs.clear();
+        repeats.expire(msgs, Long.MAX_VALUE);
+        assertEquals(Texts("a (repeated 1 time)", "b (repeated 1 time)"), Texts(msgs));
+    }
+
+    private static Message Msg(long time, String text) {
+        Message m = new Message();
+        m.time = time;
+        m.level = Message.Level.INFO;
+        m.logger = "test";
+        m.message = text;
+        return m;
+    }
+
+    private static List<Message> Msgs(Message... msgs) {
+        List<Message> list = new ArrayList<Message>();
+        for(Message m : msgs) {
+            list.add(m);
+        }
+        return list;
+    }
+
+    private static List<String> Texts(List<Message> msgs) {
+        List<String> texts = new ArrayList<String>();
+        for(Message m : msgs) {
+            texts.add(m.message);
+        }
+        return texts;
+    }
+
+    private static List<String> Texts(String... texts) {
+        List<String> list = new ArrayList<String>();
+        for(String s : texts) {
+            list.add(s);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,106 @@
+package plog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+
+/*
+Latency of a search through the logs endpoint, which uses the full text index, against a LIKE scan
+of the log table for the same page. Searches for a rare word, in one message in 100000, and a word
+in every message. The search is timed through the server, so it includes the HTTP round trip; the
+LIKE query runs on its own connection. Not run by the tests.
+
+Run it in an empty directory with a plog.properties holding callsite=none and the index on (the
+default). The first run logs the messages and exits, later runs search them:
+
+java -cp <classpath> plog.SearchBenchmark [messages, default 2000000] [queries, default 10]
+*/
+public class SearchBenchmark {
+    private static final int RARE = 100000; // One message in this many has the rare word.
+    private static final int PAGE = 50;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        PLog log = new PLog("bench.app");
+        if(!SearchIndex.Enabled()) {
+            System.out.println("Run with the search index on.");
+            System.exit(1);
+        }
+
+        long[] range = QueryBenchmark.Range();
+        if(range[0] < messages) {
+            for(int a = 0; a < messages; a++) {
+                if(a % RARE == 0) {
+                    log.info("Message " + a + " has the needle in it.");
+                } else {
+                    log.info("Message " + a + ". This is an info log message of about average length.");
+                }
+            }
+            PLog.Shutdown();
+            System.out.println(messages + " messages logged. Run again to search them.");
+            System.exit(0);
+        }
+
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        String url = "http://localhost:" + PLog.GetLongProperty("server.port", 50001) + "/" + PLog.LOG_NAME + "/";
+        String params = "from=" + QueryBenchmark.Encode(df.format(range[1])) + "&to=" + QueryBenchmark.Encode(df.format(range[2] + 1));
+        QueryBenchmark.WaitForServer(url + "cache");
+
+        System.out.println(range[0] + " rows");
+        Report("rare word", url + "logs?" + params + "&q=needle", range, "needle", queries);
+        Report("common word", url + "logs?" + params + "&q=message", range, "message", queries);
+
+        PLog.Shutdown();
+        System.exit(0);
+    }
+
+    /*
+    Prints the median time of the search and the LIKE scan, each run once to warm up and then the
+    given number of times. Each run asks for a page of a different size, so the search isn't
+    answered from the result cache.
+    */
+    private static void Report(String name, String search, long[] range, String word, int queries) throws Exception {
+        long[] searchMillis = new long[queries];
+        long[] likeMillis = new long[queries];
+        for(int a = -1; a < queries; a++) {
+            int limit = PAGE + queries + a;
+            long t0 = System.nanoTime();
+            QueryBenchmark.Get(search + "&limit=" + limit);
+            long t1 = System.nanoTime();
+            Like(range[1], range[2] + 1, word, limit);
+            long t2 = System.nanoTime();
+            if(a >= 0) {
+                searchMillis[a] = (t1 - t0) / 1000000;
+                likeMillis[a] = (t2 - t1) / 1000000;
+            }
+        }
+        Arrays.sort(searchMillis);
+        Arrays.sort(likeMillis);
+        System.out.println(name + ": index " + searchMillis[queries / 2] + " ms, like " + likeMillis[queries / 2] + " ms");
+    }
+
+    /*
+    Reads the newest page of messages containing the word with a LIKE scan, newest first.
+    */
+    private static void Like(long from, long to, String word, int limit) throws Exception {
+        Connection c = PLog.GetLogConnection();
+        try {
+            PreparedStatement s = c.prepareStatement("select log.id, log.ts, log.level, logger.name, log.message from log join logger on logger.id = log.logger_id where log.ts >= ? and log.ts <= ? and log.message like ? order by log.ts desc, log.id desc limit ?");
+            s.setLong(1, from);
+            s.setLong(2, to);
+            s.setString(3, "%" + word + "%");
+            s.setInt(4, limit);
+            ResultSet rs = s.executeQuery();
+            while(rs.next()) {
+                rs.getString(5);
+            }
+            s.close();
+        } finally {
+            c.close();
+        }
+    }
+}
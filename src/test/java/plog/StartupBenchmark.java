@@ -0,0 +1,30 @@
+package plog;
+
+/*
+Time from the first use of PLog to the first log call returning, which includes loading PLog and
+its setup, and the time Shutdown takes to write the queued messages and stop. Run it once with
+init.async=false and once with init.async=true in plog.properties, in an empty directory each time
+for the cost of creating the database. Not run by the tests:
+
+java -cp <classpath> plog.StartupBenchmark [messages, default 10000]
+*/
+public class StartupBenchmark {
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        long t0 = System.nanoTime();
+        PLog log = new PLog("bench");
+        log.info("First message.");
+        long first = System.nanoTime() - t0;
+
+        for(int a = 1; a < messages; a++) {
+            log.info("Message " + a + ". This is an info log message of about average length.");
+        }
+        long t1 = System.nanoTime();
+        PLog.Shutdown();
+        long shutdown = System.nanoTime() - t1;
+
+        System.out.println("init.async=" + PLog.GetProperty("init.async", "false") + ": first log call returned in " + first / 1000000 + " ms, shutdown with " + messages + " messages took " + shutdown / 1000000 + " ms");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,27 @@
+package plog;
+
+/*
+Sustained insert rate: logs a number of messages from one thread as fast as the queue takes them,
+and waits for the queue pump to write them all. Uses only the public logging API, so the same class
+can be run against older builds. Run it in an empty directory with a plog.properties holding
+shutdown.timeout.millis=0 (wait for every message) and server=false. Not run by the tests:
+
+java -cp <classpath> plog.WriterBenchmark [messages, default 10000000]
+*/
+public class WriterBenchmark {
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        PLog log = new PLog("bench");
+
+        long t0 = System.nanoTime();
+        for(int a = 0; a < messages; a++) {
+            log.info("Message " + a + ". This is an info log message of about average length.");
+        }
+        long logged = System.nanoTime() - t0;
+        PLog.Shutdown();
+        long written = System.nanoTime() - t0;
+
+        System.out.println(messages + " messages logged in " + logged / 1000000 + " ms, written in " + written / 1000000 + " ms: " + (long)(messages * 1e9 / written) + " rows/s");
+        System.exit(0);
+    }
+}